@@ -6,19 +6,25 @@ set -e
 RESOLUTION="${RESOLUTION:-1440x900}"
 DISPLAY=:0.0
 VIDEO_FORMAT="${VIDEO_FORMAT:-mp4}"
+# Segment type in segmented (HLS) mode: mpegts or fmp4
+HLS_SEGMENT_TYPE="${HLS_SEGMENT_TYPE:-mpegts}"
+SEGMENT_TIME=""
 
-if [ ! "$#" -eq 2 ]; then
-  echo "Usage: $0 -n VIDEO_NAME"
+if [ ! "$#" -eq 2 ] && [ ! "$#" -eq 4 ]; then
+  echo "Usage: $0 -n VIDEO_NAME [-s SEGMENT_SECONDS]"
   exit 1
 fi
 
-while getopts "n:" opt; do
+while getopts "n:s:" opt; do
   case "${opt}" in
     n)
       VIDEO_NAME=${OPTARG}
       ;;
+    s)
+      SEGMENT_TIME=${OPTARG}
+      ;;
     *)
-      echo "Usage: $0 -n VIDEO_NAME"
+      echo "Usage: $0 -n VIDEO_NAME [-s SEGMENT_SECONDS]"
       exit 1
       ;;
   esac
@@ -36,5 +42,23 @@ touch /tmp/stop
 # Force to be able to write the file on disk
 sudo chmod 777 $DOCKER_HOME/recordings
 
+### Output: a single file, or HLS segments and a playlist (-s) ###
+if [ -z "$SEGMENT_TIME" ]; then
+  OUTPUT="$HOME/recordings/${VIDEO_NAME}.${VIDEO_FORMAT}"
+  OUTPUT_OPTIONS=""
+else
+  # Keyframes at segment boundaries, and an event playlist that can be
+  # played while recording (and after a crash, up to the last segment)
+  OUTPUT="$HOME/recordings/${VIDEO_NAME}.m3u8"
+  if [ "$HLS_SEGMENT_TYPE" = "fmp4" ]; then
+    SEGMENT_EXTENSION="m4s"
+    SEGMENT_OPTIONS="-hls_segment_type fmp4 -hls_fmp4_init_filename ${VIDEO_NAME}_init.mp4"
+  else
+    SEGMENT_EXTENSION="ts"
+    SEGMENT_OPTIONS=""
+  fi
+  OUTPUT_OPTIONS="-force_key_frames expr:gte(t,n_forced*${SEGMENT_TIME}) -f hls -hls_time ${SEGMENT_TIME} -hls_list_size 0 -hls_playlist_type event ${SEGMENT_OPTIONS} -hls_segment_filename $HOME/recordings/${VIDEO_NAME}_%05d.${SEGMENT_EXTENSION}"
+fi
+
 ### Start recording with ffmpeg ###
-</tmp/stop ffmpeg -y -f alsa -i pulse -f x11grab -framerate 25 -video_size $RESOLUTION -i $DISPLAY -c:a libfdk_aac -c:v libx264 -preset ultrafast -crf 28 -refs 4 -qmin 4 -pix_fmt yuv420p -filter:v fps=25 ~/recordings/${VIDEO_NAME}.${VIDEO_FORMAT}
+</tmp/stop ffmpeg -y -f alsa -i pulse -f x11grab -framerate 25 -video_size $RESOLUTION -i $DISPLAY -c:a libfdk_aac -c:v libx264 -preset ultrafast -crf 28 -refs 4 -qmin 4 -pix_fmt yuv420p -filter:v fps=25 $OUTPUT_OPTIONS $OUTPUT
@@ -17,8 +17,11 @@
 package io.elastest.eus;
 
 import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.nio.file.Paths;
+
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
@@ -32,6 +35,9 @@ import io.elastest.eus.service.DockerService;
 import io.elastest.eus.service.JsonService;
 import io.elastest.eus.service.RecordingService;
 import io.elastest.eus.service.SessionService;
+import io.elastest.eus.session.FileSessionRegistry;
+import io.elastest.eus.session.InMemorySessionRegistry;
+import io.elastest.eus.session.SessionRegistry;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
 /**
@@ -47,9 +53,29 @@ public class EusSpringBootApp implements WebSocketConfigurer {
 
     final Logger log = getLogger(lookup().lookupClass());
 
+    static final String FILE_REGISTRY = "file";
+
     @Value("${ws.path}")
     private String wsPath;
 
+    @Value("${eus.instance.id}")
+    private String eusInstanceId;
+
+    @Value("${session.registry}")
+    private String sessionRegistryType;
+
+    @Value("${session.registry.folder}")
+    private String sessionRegistryFolder;
+
+    @Value("${session.registry.poll.ms}")
+    private long sessionRegistryPollMs;
+
+    @Value("${session.registry.touch.ms}")
+    private long sessionRegistryTouchMs;
+
+    @Value("${session.registry.event.retention.sec}")
+    private long sessionRegistryEventRetentionSec;
+
     private DockerService dockerService;
     private JsonService jsonService;
     private RecordingService recordingService;
@@ -67,9 +93,25 @@ public class EusSpringBootApp implements WebSocketConfigurer {
         log.debug("Registering WebSocker handler at {}", wsPath);
     }
 
+    @Bean(destroyMethod = "close")
+    public SessionRegistry sessionRegistry() {
+        if (FILE_REGISTRY.equalsIgnoreCase(sessionRegistryType)) {
+            log.info("Sharing sessions of EUS instance {} in {}",
+                    eusInstanceId, sessionRegistryFolder);
+            FileSessionRegistry fileSessionRegistry = new FileSessionRegistry(
+                    Paths.get(sessionRegistryFolder), eusInstanceId,
+                    sessionRegistryPollMs, sessionRegistryTouchMs,
+                    SECONDS.toMillis(sessionRegistryEventRetentionSec));
+            fileSessionRegistry.start();
+            return fileSessionRegistry;
+        }
+        return new InMemorySessionRegistry();
+    }
+
     @Bean
     public SessionService sessionService() {
-        return new SessionService(dockerService, jsonService, recordingService);
+        return new SessionService(dockerService, jsonService, recordingService,
+                sessionRegistry());
     }
 
     public static void main(String[] args) {
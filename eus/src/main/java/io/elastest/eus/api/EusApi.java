@@ -21,6 +21,7 @@ import static org.springframework.web.bind.annotation.RequestMethod.GET;
 import static org.springframework.web.bind.annotation.RequestMethod.POST;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
@@ -29,8 +30,10 @@ import org.springframework.http.HttpEntity;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import io.elastest.eus.api.model.AudioLevel;
 import io.elastest.eus.api.model.ColorValue;
@@ -212,8 +215,8 @@ public interface EusApi {
             @ApiResponse(code = 500, message = "Internal server error", response = String.class) })
     @RequestMapping(value = "/session/**", produces = {
             "application/json" }, method = { GET, POST, DELETE })
-    ResponseEntity<String> session(HttpEntity<String> httpEntity,
-            HttpServletRequest request);
+    CompletableFuture<ResponseEntity<StreamingResponseBody>> session(
+            HttpEntity<String> httpEntity, HttpServletRequest request);
 
     /**
      * GET /status
@@ -229,6 +232,20 @@ public interface EusApi {
             "application/json" }, method = { GET })
     ResponseEntity<String> getStatus();
 
+    /**
+     * GET /nodes
+     *
+     * Status of the Docker nodes where browsers are started
+     */
+    @ApiOperation(value = "Get status of Docker nodes", notes = "", response = String.class, tags = {
+            "Docker nodes" })
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Successful operation", response = String.class),
+            @ApiResponse(code = 500, message = "Internal server error", response = String.class) })
+    @RequestMapping(value = "/nodes", produces = {
+            "application/json" }, method = { GET })
+    ResponseEntity<String> getNodes();
+
     /**
      * GET /session/{sessionId}/vnc
      *
@@ -262,6 +279,25 @@ public interface EusApi {
             @ApiParam(value = "Session identifier (previously established)", required = true) @PathVariable("sessionId") String sessionId,
             HttpServletRequest request);
 
+    /**
+     * GET /session/{sessionId}/recording/stream
+     *
+     * Stream MP4 recording (supporting HTTP range requests)
+     */
+    @ApiOperation(value = "Stream recording", notes = "", response = StreamingResponseBody.class, tags = {
+            "Remote control" })
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Successful operation", response = StreamingResponseBody.class),
+            @ApiResponse(code = 206, message = "Partial content", response = StreamingResponseBody.class),
+            @ApiResponse(code = 404, message = "Recording not found", response = StreamingResponseBody.class),
+            @ApiResponse(code = 416, message = "Range not satisfiable", response = StreamingResponseBody.class),
+            @ApiResponse(code = 500, message = "Internal server error", response = StreamingResponseBody.class) })
+    @RequestMapping(value = "/session/{sessionId}/recording/stream", produces = {
+            "video/mp4" }, method = { GET })
+    ResponseEntity<StreamingResponseBody> streamRecording(
+            @ApiParam(value = "Session identifier (previously established)", required = true) @PathVariable("sessionId") String sessionId,
+            @RequestHeader(value = "Range", required = false) String range);
+
     /**
      * POST /session/{sessionId}/recording/{hubContainerName}/start
      *
@@ -17,25 +17,38 @@
 package io.elastest.eus.api;
 
 import static java.lang.invoke.MethodHandles.lookup;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
 import static org.slf4j.LoggerFactory.getLogger;
 import static org.springframework.http.HttpMethod.GET;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
 import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.MediaType.APPLICATION_JSON_UTF8;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
 
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import io.elastest.eus.api.model.AudioLevel;
 import io.elastest.eus.api.model.ColorValue;
@@ -49,6 +62,7 @@ import io.elastest.eus.api.model.UserMedia;
 import io.elastest.eus.service.RecordingService;
 import io.elastest.eus.service.VncService;
 import io.elastest.eus.service.WebDriverService;
+import io.elastest.eus.session.AdmissionException;
 import io.swagger.annotations.ApiParam;
 
 /**
@@ -66,13 +80,19 @@ public class EusController implements EusApi {
     private WebDriverService webDriverService;
     private VncService vncService;
     private RecordingService recordingService;
+    private Executor sessionCreateExecutor;
+    private Executor sessionCommandExecutor;
 
     @Autowired
     public EusController(WebDriverService webDriverService,
-            VncService vncService, RecordingService recordingService) {
+            VncService vncService, RecordingService recordingService,
+            @Qualifier("sessionCreateExecutor") Executor sessionCreateExecutor,
+            @Qualifier("sessionCommandExecutor") Executor sessionCommandExecutor) {
         this.webDriverService = webDriverService;
         this.vncService = vncService;
         this.recordingService = recordingService;
+        this.sessionCreateExecutor = sessionCreateExecutor;
+        this.sessionCommandExecutor = sessionCommandExecutor;
     }
 
     public ResponseEntity<Void> deleteSubscription(
@@ -179,27 +199,86 @@ public class EusController implements EusApi {
     }
 
     @Override
-    public ResponseEntity<String> session(HttpEntity<String> httpEntity,
-            HttpServletRequest request) {
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> session(
+            HttpEntity<String> httpEntity, HttpServletRequest request) {
+        // The servlet thread is released while waiting for the browser (or
+        // for Docker, when creating sessions)
+        String requestUrl = request.getRequestURL().toString();
+        HttpMethod method = HttpMethod.resolve(request.getMethod());
+        Executor executor = webDriverService.isCreateSessionRequest(
+                requestUrl, method) ? sessionCreateExecutor
+                        : sessionCommandExecutor;
+        boolean streaming = webDriverService.isStreamingRequest(requestUrl,
+                method);
+        try {
+            return supplyAsync(() -> {
+                try {
+                    // Only intercepted requests are read in memory
+                    return streaming
+                            ? webDriverService.streamSession(httpEntity,
+                                    requestUrl, method)
+                            : toStreamingResponse(webDriverService
+                                    .session(httpEntity, requestUrl, method));
+                } catch (AdmissionException e) {
+                    log.warn("Session not admitted ({} {}): {}", method,
+                            requestUrl, e.getMessage());
+                    return toStreamingResponse(
+                            webDriverService.getErrorResponse(
+                                    "Session not admitted", e,
+                                    SERVICE_UNAVAILABLE));
+                } catch (Exception e) {
+                    log.error("Exception handling session {} {}", method,
+                            requestUrl, e);
+                    return toStreamingResponse(webDriverService
+                            .getErrorResponse("Exception handling session", e));
+                }
+            }, executor);
+
+        } catch (RejectedExecutionException e) {
+            log.warn("Too many concurrent requests, rejecting {} {}", method,
+                    requestUrl);
+            return completedFuture(toStreamingResponse(
+                    webDriverService.getErrorResponse(
+                            "Too many concurrent requests", e,
+                            SERVICE_UNAVAILABLE)));
+        }
+    }
+
+    private ResponseEntity<StreamingResponseBody> toStreamingResponse(
+            ResponseEntity<String> response) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(response.getHeaders());
+        if (headers.getContentType() == null) {
+            headers.setContentType(APPLICATION_JSON_UTF8);
+        }
+        String body = response.getBody();
+        return new ResponseEntity<>(outputStream -> {
+            if (body != null) {
+                outputStream.write(body.getBytes(UTF_8));
+            }
+        }, headers, response.getStatusCode());
+    }
+
+    @Override
+    public ResponseEntity<String> getStatus() {
         ResponseEntity<String> response;
         try {
-            response = webDriverService.session(httpEntity, request);
+            response = webDriverService.getStatus();
         } catch (Exception e) {
-            log.error("Exception handling session {}", request, e);
             response = webDriverService
-                    .getErrorResponse("Exception handling session", e);
+                    .getErrorResponse("Exception getting status", e);
         }
         return response;
     }
 
     @Override
-    public ResponseEntity<String> getStatus() {
+    public ResponseEntity<String> getNodes() {
         ResponseEntity<String> response;
         try {
-            response = webDriverService.getStatus();
+            response = webDriverService.getNodes();
         } catch (Exception e) {
             response = webDriverService
-                    .getErrorResponse("Exception getting status", e);
+                    .getErrorResponse("Exception getting Docker nodes", e);
         }
         return response;
     }
@@ -237,6 +316,19 @@ public class EusController implements EusApi {
         return response;
     }
 
+    @Override
+    public ResponseEntity<StreamingResponseBody> streamRecording(
+            @ApiParam(value = "Session identifier (previously established)", required = true) @PathVariable("sessionId") String sessionId,
+            @RequestHeader(value = "Range", required = false) String range) {
+        try {
+            return recordingService.streamRecording(sessionId, range);
+        } catch (Exception e) {
+            log.error("Exception streaming recording of session {}",
+                    sessionId, e);
+            return new ResponseEntity<>(INTERNAL_SERVER_ERROR);
+        }
+    }
+
     @Override
     public ResponseEntity<String> startRecording(
             @ApiParam(value = "Session identifier (previously established)", required = true) @PathVariable("sessionId") String sessionId,
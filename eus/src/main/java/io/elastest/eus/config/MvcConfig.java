@@ -16,8 +16,13 @@
  */
 package io.elastest.eus.config;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
@@ -36,10 +41,57 @@ public class MvcConfig implements WebMvcConfigurer {
     @Value("${registry.folder}")
     private String registryFolder;
 
+    @Value("${session.async.timeout.sec}")
+    private int sessionAsyncTimeoutSec;
+
+    @Value("${session.create.max.concurrent}")
+    private int sessionCreateMaxConcurrent;
+
+    @Value("${session.create.queue.size}")
+    private int sessionCreateQueueSize;
+
+    @Value("${session.command.max.concurrent}")
+    private int sessionCommandMaxConcurrent;
+
+    @Value("${session.command.queue.size}")
+    private int sessionCommandQueueSize;
+
     @Override
     public void addResourceHandlers(final ResourceHandlerRegistry registry) {
         registry.addResourceHandler(registryContextPath + "/**")
                 .addResourceLocations("file:" + registryFolder);
     }
 
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        // Session creation includes starting (and waiting for) the browser
+        configurer.setDefaultTimeout(SECONDS.toMillis(sessionAsyncTimeoutSec));
+
+        // Used to stream the responses of the browsers to the clients
+        configurer.setTaskExecutor(sessionCommandExecutor());
+    }
+
+    @Bean
+    public ThreadPoolTaskExecutor sessionCreateExecutor() {
+        return sessionExecutor("eus-session-create-",
+                sessionCreateMaxConcurrent, sessionCreateQueueSize);
+    }
+
+    @Bean
+    public ThreadPoolTaskExecutor sessionCommandExecutor() {
+        return sessionExecutor("eus-session-command-",
+                sessionCommandMaxConcurrent, sessionCommandQueueSize);
+    }
+
+    private ThreadPoolTaskExecutor sessionExecutor(String threadNamePrefix,
+            int maxConcurrent, int queueSize) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix(threadNamePrefix);
+        executor.setCorePoolSize(maxConcurrent);
+        executor.setMaxPoolSize(maxConcurrent);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setQueueCapacity(queueSize);
+        return executor;
+    }
+
 }
\ No newline at end of file
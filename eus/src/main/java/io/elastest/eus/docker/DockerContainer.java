@@ -20,6 +20,7 @@ import static java.util.Optional.empty;
 import static java.util.Optional.of;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import com.github.dockerjava.api.model.Bind;
@@ -44,6 +45,8 @@ public class DockerContainer {
     private final Optional<String> network;
     private final Optional<Long> shmSize;
     private final Optional<List<ExposedPort>> exposedPorts;
+    private final Optional<Map<String, String>> labels;
+    private final Optional<String> node;
 
     private DockerContainer(DockerBuilder builder) {
         this.imageId = builder.imageId;
@@ -60,6 +63,8 @@ public class DockerContainer {
         this.exposedPorts = builder.exposedPorts != null
                 ? of(builder.exposedPorts)
                 : empty();
+        this.labels = builder.labels != null ? of(builder.labels) : empty();
+        this.node = builder.node != null ? of(builder.node) : empty();
     }
 
     public static DockerBuilder dockerBuilder(String imageId,
@@ -107,6 +112,14 @@ public class DockerContainer {
         return exposedPorts;
     }
 
+    public Optional<Map<String, String>> getLabels() {
+        return labels;
+    }
+
+    public Optional<String> getNode() {
+        return node;
+    }
+
     public static class DockerBuilder {
         private String imageId;
         private String containerName;
@@ -118,6 +131,8 @@ public class DockerContainer {
         private String network;
         private Long shmSize;
         private List<ExposedPort> exposedPorts;
+        private Map<String, String> labels;
+        private String node;
 
         public DockerBuilder(String imageId, String containerName) {
             this.imageId = imageId;
@@ -164,6 +179,16 @@ public class DockerContainer {
             return this;
         }
 
+        public DockerBuilder labels(Map<String, String> labels) {
+            this.labels = labels;
+            return this;
+        }
+
+        public DockerBuilder node(String node) {
+            this.node = node;
+            return this;
+        }
+
         public DockerContainer build() {
             return new DockerContainer(this);
         }
@@ -0,0 +1,238 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.docker;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.model.Event;
+import com.github.dockerjava.core.command.EventsResultCallback;
+
+/**
+ * Single subscriber to the Docker events stream. It completes the readiness
+ * futures of containers when they are started (or reported as healthy), and
+ * fails them when they die. It also keeps the state (running or not) of the
+ * containers seen, so that it can be queried without inspecting them.
+ *
+ * @since 0.9.1
+ */
+public class DockerEventsWatcher {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    static final String START = "start";
+    static final String DIE = "die";
+    static final String HEALTH_STATUS = "health_status";
+    static final String HEALTHY = "healthy";
+    static final String DESTROY = "destroy";
+
+    private DockerClient dockerClient;
+    private long reconnectMs;
+
+    // Container name -> readiness future (true when running)
+    private Map<String, CompletableFuture<Boolean>> waiters = new ConcurrentHashMap<>();
+
+    // Container name -> running (updated by events)
+    private Map<String, Boolean> containerStates = new ConcurrentHashMap<>();
+
+    // Notified with the name of each container destroyed (by EUS or not)
+    private volatile Consumer<String> destroyListener;
+
+    private ScheduledExecutorService reconnectExecutor = newSingleThreadScheduledExecutor();
+    private volatile EventsResultCallback callback;
+    private volatile boolean connected = false;
+    private AtomicBoolean reconnecting = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    public DockerEventsWatcher(DockerClient dockerClient, long reconnectMs) {
+        this.dockerClient = dockerClient;
+        this.reconnectMs = reconnectMs;
+    }
+
+    public void start() {
+        if (closed) {
+            return;
+        }
+        try {
+            callback = dockerClient.eventsCmd()
+                    .withEventFilter(START, DIE, HEALTH_STATUS, DESTROY)
+                    .exec(new ContainerEventsCallback());
+        } catch (Exception e) {
+            log.warn("Exception subscribing to Docker events: {}",
+                    e.getMessage());
+            reconnect();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        reconnectExecutor.shutdownNow();
+        if (callback != null) {
+            try {
+                callback.close();
+            } catch (IOException e) {
+                log.trace("Exception closing Docker events callback", e);
+            }
+        }
+        waiters.values().forEach(future -> future.cancel(true));
+        waiters.clear();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Registers interest in a container. It must be called before starting
+     * the container, so that the start event is not missed.
+     */
+    public CompletableFuture<Boolean> expect(String containerName) {
+        return waiters.computeIfAbsent(containerName,
+                k -> new CompletableFuture<>());
+    }
+
+    public void forget(String containerName) {
+        waiters.remove(containerName);
+    }
+
+    /**
+     * Cached state of a container: true if running, false if stopped, and
+     * null if unknown (not seen, removed, or events stream disconnected).
+     */
+    public Boolean isRunning(String containerName) {
+        return connected ? containerStates.get(containerName) : null;
+    }
+
+    /**
+     * Stores a state read from the daemon (e.g. inspect). A state already
+     * received by the events stream is not overwritten, since it is newer.
+     */
+    public void cacheState(String containerName, boolean running) {
+        if (connected) {
+            containerStates.putIfAbsent(containerName, running);
+        }
+    }
+
+    public void evictState(String containerName) {
+        containerStates.remove(containerName);
+    }
+
+    public void setDestroyListener(Consumer<String> destroyListener) {
+        this.destroyListener = destroyListener;
+    }
+
+    private void onEvent(Event event) {
+        String containerName = event.getActor() != null
+                ? event.getActor().getAttributes().get("name")
+                : null;
+        String action = event.getAction() != null ? event.getAction()
+                : event.getStatus();
+        if (containerName == null || action == null) {
+            return;
+        }
+        updateState(containerName, action);
+
+        CompletableFuture<Boolean> future = waiters.get(containerName);
+        if (future == null) {
+            return;
+        }
+        log.trace("Docker event {} in container {}", action, containerName);
+        if (action.equals(START)
+                || action.equals(HEALTH_STATUS + ": " + HEALTHY)) {
+            future.complete(true);
+        } else if (action.equals(DIE)) {
+            future.completeExceptionally(new DockerException(
+                    "Container " + containerName + " died while starting"));
+        }
+    }
+
+    private void updateState(String containerName, String action) {
+        if (action.equals(START)) {
+            containerStates.put(containerName, true);
+        } else if (action.equals(DIE)) {
+            containerStates.put(containerName, false);
+        } else if (action.equals(DESTROY)) {
+            containerStates.remove(containerName);
+            Consumer<String> listener = destroyListener;
+            if (listener != null) {
+                listener.accept(containerName);
+            }
+        }
+    }
+
+    private void reconnect() {
+        // Events can be missed while disconnected
+        connected = false;
+        containerStates.clear();
+        if (!closed && reconnecting.compareAndSet(false, true)) {
+            log.debug("Reconnecting to Docker events in {} ms", reconnectMs);
+            reconnectExecutor.schedule(() -> {
+                reconnecting.set(false);
+                start();
+            }, reconnectMs, MILLISECONDS);
+        }
+    }
+
+    private class ContainerEventsCallback extends EventsResultCallback {
+
+        @Override
+        public void onStart(Closeable stream) {
+            super.onStart(stream);
+            connected = true;
+            log.debug("Subscribed to Docker events");
+        }
+
+        @Override
+        public void onNext(Event event) {
+            try {
+                onEvent(event);
+            } catch (Exception e) {
+                log.warn("Exception processing Docker event {}: {}", event,
+                        e.getMessage());
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            log.debug("Docker events stream error: {}",
+                    throwable.getMessage());
+            super.onError(throwable);
+            reconnect();
+        }
+
+        @Override
+        public void onComplete() {
+            super.onComplete();
+            reconnect();
+        }
+    }
+
+}
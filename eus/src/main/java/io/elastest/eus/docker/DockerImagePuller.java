@@ -0,0 +1,268 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.docker;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.concurrent.CompletableFuture.runAsync;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.exception.NotFoundException;
+import com.github.dockerjava.api.model.Image;
+import com.github.dockerjava.core.command.PullImageResultCallback;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Pull manager for Docker images. It keeps an inventory of local images,
+ * shares a single pull among concurrent requests of the same image, and
+ * periodically pre-pulls the most used images in the background.
+ *
+ * @since 0.9.1
+ */
+public class DockerImagePuller {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    public enum PullPolicy {
+        ALWAYS, IF_MISSING, PERIODIC;
+
+        public static PullPolicy fromString(String policy) {
+            return valueOf(policy.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    static final String LATEST = ":latest";
+
+    private DockerClient dockerClient;
+    private PullPolicy pullPolicy;
+    private long pullPeriodMs;
+    private int prefetchCount;
+
+    // Local images (repository:tag) -> last time pulled or seen
+    private Map<String, Long> inventory = new ConcurrentHashMap<>();
+    private Map<String, CompletableFuture<Void>> pullsInProgress = new ConcurrentHashMap<>();
+    private Map<String, AtomicLong> usage = new ConcurrentHashMap<>();
+
+    private ExecutorService pullExecutor = newCachedThreadPool();
+    private ScheduledExecutorService prefetchExecutor;
+
+    private MeterRegistry meterRegistry;
+    private Counter localHits;
+    private Counter sharedPulls;
+    private DistributionSummary pulledBytes;
+
+    public DockerImagePuller(DockerClient dockerClient,
+            MeterRegistry meterRegistry, PullPolicy pullPolicy,
+            long pullPeriodSec, int prefetchCount) {
+        this.dockerClient = dockerClient;
+        this.meterRegistry = meterRegistry;
+        this.pullPolicy = pullPolicy;
+        this.pullPeriodMs = SECONDS.toMillis(pullPeriodSec);
+        this.prefetchCount = prefetchCount;
+
+        localHits = meterRegistry.counter("eus.docker.pull.requests",
+                "result", "local");
+        sharedPulls = meterRegistry.counter("eus.docker.pull.requests",
+                "result", "shared");
+        pulledBytes = DistributionSummary.builder("eus.docker.pull.size")
+                .description("Size of the pulled Docker images")
+                .baseUnit("bytes").register(meterRegistry);
+    }
+
+    public void start() {
+        refreshInventory();
+        prefetchExecutor = newSingleThreadScheduledExecutor();
+        prefetchExecutor.scheduleWithFixedDelay(this::prefetch, pullPeriodMs,
+                pullPeriodMs, MILLISECONDS);
+    }
+
+    public void close() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
+        pullExecutor.shutdownNow();
+    }
+
+    public void pull(String imageId) throws InterruptedException {
+        String image = normalize(imageId);
+        usage.computeIfAbsent(image, k -> new AtomicLong()).incrementAndGet();
+
+        Long lastPull = inventory.get(image);
+        boolean isLocal = lastPull != null || existsLocally(image);
+        if (isLocal && pullPolicy != PullPolicy.ALWAYS) {
+            localHits.increment();
+            if (pullPolicy == PullPolicy.PERIODIC && lastPull != null
+                    && currentTimeMillis() - lastPull > pullPeriodMs) {
+                // Stale image: used as is, and updated in the background
+                pullAsync(image);
+            }
+            return;
+        }
+
+        try {
+            pullAsync(image).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new DockerException("Exception pulling image " + image,
+                    cause);
+        }
+    }
+
+    /**
+     * Whether the image is known to be local (it does not call the daemon).
+     */
+    public boolean isLocal(String imageId) {
+        return inventory.containsKey(normalize(imageId));
+    }
+
+    public void invalidate(String imageId) {
+        inventory.remove(normalize(imageId));
+    }
+
+    private CompletableFuture<Void> pullAsync(String image) {
+        CompletableFuture<Void> newPull = new CompletableFuture<>();
+        CompletableFuture<Void> pull = pullsInProgress.putIfAbsent(image,
+                newPull);
+        if (pull != null) {
+            // Single flight: the pull in progress is shared
+            log.debug("Docker image {} is already being pulled", image);
+            sharedPulls.increment();
+            return pull;
+        }
+
+        runAsync(() -> doPull(image), pullExecutor).whenComplete((v, e) -> {
+            pullsInProgress.remove(image);
+            if (e != null) {
+                newPull.completeExceptionally(
+                        e instanceof CompletionException ? e.getCause() : e);
+            } else {
+                newPull.complete(null);
+            }
+        });
+        return newPull;
+    }
+
+    private void doPull(String image) {
+        log.info("Pulling Docker image {} ... please wait", image);
+        long start = nanoTime();
+        dockerClient.pullImageCmd(image).exec(new PullImageResultCallback())
+                .awaitSuccess();
+        Timer.builder("eus.docker.pull.duration").tag("image", image)
+                .description("Time pulling Docker images")
+                .register(meterRegistry)
+                .record(nanoTime() - start, NANOSECONDS);
+        inventory.put(image, currentTimeMillis());
+
+        try {
+            Long size = dockerClient.inspectImageCmd(image).exec().getSize();
+            if (size != null) {
+                pulledBytes.record(size);
+            }
+        } catch (NotFoundException e) {
+            log.trace("Image {} does not exist", image);
+        }
+        log.debug("Docker image {} downloaded", image);
+    }
+
+    private boolean existsLocally(String image) {
+        try {
+            dockerClient.inspectImageCmd(image).exec();
+            inventory.putIfAbsent(image, currentTimeMillis());
+            return true;
+        } catch (NotFoundException e) {
+            log.trace("Image {} does not exist", image);
+            return false;
+        }
+    }
+
+    private void refreshInventory() {
+        try {
+            Set<String> localImages = ConcurrentHashMap.newKeySet();
+            for (Image image : dockerClient.listImagesCmd().exec()) {
+                if (image.getRepoTags() != null) {
+                    for (String repoTag : image.getRepoTags()) {
+                        localImages.add(repoTag);
+                    }
+                }
+            }
+            inventory.keySet().retainAll(localImages);
+            localImages.forEach(
+                    image -> inventory.putIfAbsent(image, currentTimeMillis()));
+            log.trace("Local Docker images: {}", inventory.keySet());
+
+        } catch (Exception e) {
+            log.warn("Exception listing local Docker images: {}",
+                    e.getMessage());
+        }
+    }
+
+    private void prefetch() {
+        refreshInventory();
+        List<String> mostUsed = usage.entrySet().stream()
+                .sorted((e1, e2) -> Long.compare(e2.getValue().get(),
+                        e1.getValue().get()))
+                .limit(prefetchCount).map(Entry::getKey).collect(toList());
+        log.debug("Pre-pulling most used Docker images: {}", mostUsed);
+        for (String image : mostUsed) {
+            try {
+                pullAsync(image).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("Exception pre-pulling Docker image {}: {}", image,
+                        e.getMessage());
+            }
+        }
+    }
+
+    private String normalize(String imageId) {
+        int slash = imageId.lastIndexOf('/');
+        return imageId.indexOf(':', slash + 1) == -1 ? imageId + LATEST
+                : imageId;
+    }
+
+}
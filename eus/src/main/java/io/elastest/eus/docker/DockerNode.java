@@ -0,0 +1,209 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.docker;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.invoke.MethodHandles.lookup;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import com.github.dockerjava.api.DockerClient;
+
+/**
+ * Docker host (daemon) where browser containers can be started, with its own
+ * client, events watcher, image puller and allocator of host ports.
+ *
+ * @since 0.9.1
+ */
+public class DockerNode {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    public static final String LOCAL = "local";
+
+    private final String id;
+    private final String url;
+    private final String hostIp;
+    private final int maxContainers;
+    private final DockerClient dockerClient;
+    private final DockerEventsWatcher eventsWatcher;
+    private final DockerImagePuller imagePuller;
+    private final PortAllocator portAllocator;
+
+    private final AtomicInteger containers = new AtomicInteger();
+    // Browsers that fit in the memory and CPUs of the node (as computed by
+    // admission control from its Docker info)
+    private volatile int capacity = Integer.MAX_VALUE;
+    private volatile boolean healthy = true;
+    private volatile String lastError;
+    private volatile long lastCheck;
+
+    public DockerNode(String id, String url, String hostIp, int maxContainers,
+            DockerClient dockerClient, DockerEventsWatcher eventsWatcher,
+            DockerImagePuller imagePuller, PortAllocator portAllocator) {
+        this.id = id;
+        this.url = url;
+        this.hostIp = hostIp;
+        this.maxContainers = maxContainers;
+        this.dockerClient = dockerClient;
+        this.eventsWatcher = eventsWatcher;
+        this.imagePuller = imagePuller;
+        this.portAllocator = portAllocator;
+    }
+
+    public void checkHealth() {
+        try {
+            dockerClient.pingCmd().exec();
+            if (!healthy) {
+                log.info("Docker node {} is healthy again", id);
+            }
+            healthy = true;
+            lastError = null;
+        } catch (Exception e) {
+            if (healthy) {
+                log.warn("Docker node {} is not healthy: {}", id,
+                        e.getMessage());
+            }
+            healthy = false;
+            lastError = e.getMessage();
+        }
+        lastCheck = currentTimeMillis();
+    }
+
+    public void close() {
+        eventsWatcher.close();
+        imagePuller.close();
+        try {
+            dockerClient.close();
+        } catch (IOException e) {
+            log.trace("Exception closing Docker client of node {}", id, e);
+        }
+    }
+
+    /**
+     * Whether the node is healthy and below its capacity (if limited).
+     */
+    public boolean isAvailable() {
+        return healthy && containers.get() < getLimit();
+    }
+
+    /**
+     * Reserves a slot for a new container, if the node is available (checked
+     * and incremented atomically, so that concurrent placements do not
+     * exceed its capacity). The slot is released by decrementing the
+     * containers.
+     */
+    public boolean tryReserve() {
+        while (true) {
+            int current = containers.get();
+            if (!healthy || current >= getLimit()) {
+                return false;
+            }
+            if (containers.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Load of the node, as the ratio of containers to capacity (or the
+     * number of containers, for nodes without limit).
+     */
+    public double getLoad() {
+        int limit = getLimit();
+        return limit < Integer.MAX_VALUE
+                ? (double) containers.get() / limit
+                : containers.get();
+    }
+
+    /**
+     * Max containers of the node (docker.node.max.containers, if any),
+     * capped by its capacity.
+     */
+    public int getLimit() {
+        return maxContainers > 0 ? Math.min(maxContainers, capacity)
+                : capacity;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getHostIp() {
+        return hostIp;
+    }
+
+    public int getMaxContainers() {
+        return maxContainers;
+    }
+
+    public DockerClient getDockerClient() {
+        return dockerClient;
+    }
+
+    public DockerEventsWatcher getEventsWatcher() {
+        return eventsWatcher;
+    }
+
+    public DockerImagePuller getImagePuller() {
+        return imagePuller;
+    }
+
+    public PortAllocator getPortAllocator() {
+        return portAllocator;
+    }
+
+    public AtomicInteger getContainers() {
+        return containers;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public long getLastCheck() {
+        return lastCheck;
+    }
+
+    @Override
+    public String toString() {
+        return "DockerNode [id=" + id + ", url=" + url + ", healthy="
+                + healthy + ", containers=" + containers + "/"
+                + maxContainers + "]";
+    }
+
+}
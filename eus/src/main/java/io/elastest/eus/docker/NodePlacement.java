@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.docker;
+
+import static java.util.Comparator.comparingDouble;
+import static java.util.stream.Collectors.toList;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Placement strategies of new containers among the available Docker nodes.
+ *
+ * @since 0.9.1
+ */
+public enum NodePlacement {
+
+    /**
+     * The node with the lowest load (spreads the containers).
+     */
+    LEAST_LOADED,
+
+    /**
+     * The node with the highest load still below its capacity (packs the
+     * containers, leaving the rest of the nodes free).
+     */
+    BIN_PACKING,
+
+    /**
+     * The least loaded node among those which already have the image,
+     * avoiding pulls (or the least loaded node, if none has it).
+     */
+    IMAGE_AFFINITY;
+
+    public static NodePlacement fromString(String placement) {
+        return valueOf(placement.trim().toUpperCase().replace('-', '_'));
+    }
+
+    public Optional<DockerNode> select(Collection<DockerNode> nodes,
+            String imageId) {
+        List<DockerNode> available = nodes.stream()
+                .filter(DockerNode::isAvailable).collect(toList());
+        Comparator<DockerNode> byLoad = comparingDouble(DockerNode::getLoad);
+
+        switch (this) {
+        case BIN_PACKING:
+            return available.stream().max(byLoad);
+        case IMAGE_AFFINITY:
+            Optional<DockerNode> withImage = available.stream()
+                    .filter(node -> node.getImagePuller().isLocal(imageId))
+                    .min(byLoad);
+            return withImage.isPresent() ? withImage
+                    : available.stream().min(byLoad);
+        case LEAST_LOADED:
+        default:
+            return available.stream().min(byLoad);
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.docker;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.BitSet;
+
+import org.slf4j.Logger;
+
+/**
+ * Allocator of host ports for containers within a fixed range. Leased ports
+ * are tracked in a bitmap, so concurrent allocations never collide and no
+ * socket is opened to find a free port. Ports are handed out in round-robin
+ * order, so a port just released is not reused immediately. Ports can be
+ * leased for a container, so that only the ports it still holds are
+ * released when it is removed.
+ *
+ * @since 0.9.1
+ */
+public class PortAllocator {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    private final int firstPort;
+    private final int size;
+    private final BitSet leased;
+    private final String[] owners;
+    private int next = 0;
+
+    public PortAllocator(int firstPort, int lastPort) {
+        if (firstPort <= 0 || lastPort > 65535 || lastPort < firstPort) {
+            throw new IllegalArgumentException(
+                    "Invalid port range " + firstPort + "-" + lastPort);
+        }
+        this.firstPort = firstPort;
+        this.size = lastPort - firstPort + 1;
+        this.leased = new BitSet(size);
+        this.owners = new String[size];
+    }
+
+    /**
+     * Parses a range in the form first-last (e.g. 37000-37999).
+     */
+    public static PortAllocator fromRange(String range) {
+        String[] ports = range.trim().split("-");
+        if (ports.length != 2) {
+            throw new IllegalArgumentException("Invalid port range " + range);
+        }
+        return new PortAllocator(Integer.parseInt(ports[0].trim()),
+                Integer.parseInt(ports[1].trim()));
+    }
+
+    public int allocate() {
+        return allocate(null);
+    }
+
+    /**
+     * Leases a port for a container (see {@link #releaseAll(String)}).
+     */
+    public synchronized int allocate(String owner) {
+        int index = leased.nextClearBit(next);
+        if (index >= size) {
+            index = leased.nextClearBit(0);
+            if (index >= size) {
+                throw new DockerException("No free ports in range "
+                        + firstPort + "-" + (firstPort + size - 1));
+            }
+        }
+        leased.set(index);
+        owners[index] = owner;
+        next = index + 1 < size ? index + 1 : 0;
+        log.trace("Port {} leased ({} in use)", firstPort + index,
+                leased.cardinality());
+        return firstPort + index;
+    }
+
+    /**
+     * Returns a port to the range. Ports out of the range are ignored.
+     */
+    public synchronized void release(int port) {
+        int index = port - firstPort;
+        if (index >= 0 && index < size && leased.get(index)) {
+            leased.clear(index);
+            owners[index] = null;
+            log.trace("Port {} released ({} in use)", port,
+                    leased.cardinality());
+        }
+    }
+
+    /**
+     * Returns the ports still leased for a container. Ports already released
+     * (and maybe leased again for other containers) are not affected.
+     *
+     * @return number of ports released
+     */
+    public synchronized int releaseAll(String owner) {
+        int released = 0;
+        for (int index = leased.nextSetBit(0); index >= 0; index = leased
+                .nextSetBit(index + 1)) {
+            if (owner.equals(owners[index])) {
+                leased.clear(index);
+                owners[index] = null;
+                released++;
+            }
+        }
+        log.trace("{} ports of {} released ({} in use)", released, owner,
+                leased.cardinality());
+        return released;
+    }
+
+    public synchronized int getLeased() {
+        return leased.cardinality();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+}
@@ -23,6 +23,8 @@ import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.POST;
 import retrofit2.http.Path;
+import retrofit2.http.Query;
+import retrofit2.http.Streaming;
 
 /**
  * Alluxio REST service (provided by EDM) API description.
@@ -35,6 +37,7 @@ public interface EdmAluxioApi {
     @POST("/api/v1/paths//{file}/open-file")
     Call<ResponseBody> openFile(@Path("file") String file);
 
+    @Streaming
     @POST("/api/v1/streams/{streamId}/read")
     Call<ResponseBody> readStream(@Path("streamId") String streamId);
 
@@ -51,6 +54,10 @@ public interface EdmAluxioApi {
     @POST("/api/v1/paths//{file}/delete")
     Call<ResponseBody> deleteFile(@Path("file") String file);
 
+    @POST("/api/v1/paths//{file}/rename")
+    Call<ResponseBody> renameFile(@Path("file") String file,
+            @Query("dst") String destination);
+
     @POST("/api/v1/paths//{folder}/list-status")
     Call<EdmAluxioFile[]> listFiles(@Path("folder") String folder);
 
@@ -0,0 +1,124 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Streaming writer of the browser console messages sent to Logstash. The
+ * JSON is encoded (with proper escaping) directly into a buffer which is
+ * reused between calls, so an instance must not be shared among threads.
+ *
+ * @since 0.9.1
+ */
+public class ConsoleLogWriter {
+
+    static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private final JsonFactory jsonFactory;
+    private final boolean structured;
+    private final ReusableBuffer buffer = new ReusableBuffer();
+
+    public ConsoleLogWriter(JsonFactory jsonFactory, boolean structured) {
+        this.jsonFactory = jsonFactory;
+        this.structured = structured;
+    }
+
+    /**
+     * Writes the envelope of a component with its console messages. The
+     * result is available in {@link #getBuffer()} until the next call, and
+     * its length is returned.
+     */
+    public int write(String component, String exec,
+            List<WebDriverLog.Value> values) throws IOException {
+        buffer.reset();
+        try (JsonGenerator generator = jsonFactory.createGenerator(buffer)) {
+            writeStart(generator, component, exec);
+            generator.writeStartArray();
+            for (WebDriverLog.Value value : values) {
+                writeMessage(generator, value);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return buffer.size();
+    }
+
+    /**
+     * Writes the envelope of a component using an already encoded JSON array
+     * of messages.
+     */
+    public int writeRaw(String component, String exec, String jsonMessages)
+            throws IOException {
+        buffer.reset();
+        try (JsonGenerator generator = jsonFactory.createGenerator(buffer)) {
+            writeStart(generator, component, exec);
+            generator.writeRawValue(jsonMessages);
+            generator.writeEndObject();
+        }
+        return buffer.size();
+    }
+
+    public byte[] getBuffer() {
+        return buffer.array();
+    }
+
+    private void writeStart(JsonGenerator generator, String component,
+            String exec) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("component", component);
+        generator.writeStringField("exec", exec);
+        generator.writeStringField("stream", "console");
+        generator.writeFieldName("messages");
+    }
+
+    private void writeMessage(JsonGenerator generator,
+            WebDriverLog.Value value) throws IOException {
+        if (structured) {
+            generator.writeStartObject();
+            generator.writeStringField("level", value.getLevel());
+            generator.writeStringField("message", value.getMessage());
+            if (value.getTimestamp() > 0) {
+                generator.writeNumberField("timestamp", value.getTimestamp());
+            }
+            if (value.getSource() != null) {
+                generator.writeStringField("source", value.getSource());
+            }
+            generator.writeEndObject();
+            return;
+        }
+
+        generator.writeString(
+                "[" + value.getLevel() + "] " + value.getMessage());
+    }
+
+    static class ReusableBuffer extends ByteArrayOutputStream {
+        ReusableBuffer() {
+            super(INITIAL_BUFFER_SIZE);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+}
@@ -18,6 +18,7 @@ package io.elastest.eus.json;
 
 import retrofit2.Call;
 import retrofit2.http.GET;
+import retrofit2.http.Header;
 import retrofit2.http.Path;
 
 /**
@@ -30,10 +31,12 @@ public interface DockerHubApi {
 
     @GET("/v2/repositories/{namespace}/?page_size=1024")
     Call<DockerHubNameSpaceImages> listImages(
-            @Path("namespace") String namespace);
+            @Path("namespace") String namespace,
+            @Header("If-None-Match") String etag);
 
     @GET("/v2/repositories/{imageName}/tags/?page_size=1024")
-    Call<DockerHubTags> listTags(@Path("imageName") String imageName);
+    Call<DockerHubTags> listTags(@Path("imageName") String imageName,
+            @Header("If-None-Match") String etag);
 
     @GET("/v2/repositories/selenoid/vnc/tags/?page_size=1024")
     Call<DockerHubTags> listSelenoidVncTags();
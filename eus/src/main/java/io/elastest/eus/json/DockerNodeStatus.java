@@ -0,0 +1,97 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.json;
+
+import io.elastest.eus.docker.DockerNode;
+
+/**
+ * Utility class for serialize JSON messages (status of a Docker node).
+ *
+ * @since 0.9.1
+ */
+public class DockerNodeStatus {
+
+    String id;
+    String url;
+    boolean healthy;
+    String lastError;
+    int containers;
+    int maxContainers;
+    int leasedPorts;
+    long lastCheck;
+
+    public DockerNodeStatus() {
+        // Empty default construct (needed by Jackson)
+    }
+
+    public DockerNodeStatus(DockerNode node) {
+        this.id = node.getId();
+        this.url = node.getUrl();
+        this.healthy = node.isHealthy();
+        this.lastError = node.getLastError();
+        this.containers = node.getContainers().get();
+        this.maxContainers = node.getMaxContainers();
+        this.leasedPorts = node.getPortAllocator() != null
+                ? node.getPortAllocator().getLeased()
+                : 0;
+        this.lastCheck = node.getLastCheck();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public int getContainers() {
+        return containers;
+    }
+
+    public int getMaxContainers() {
+        return maxContainers;
+    }
+
+    public int getLeasedPorts() {
+        return leasedPorts;
+    }
+
+    public long getLastCheck() {
+        return lastCheck;
+    }
+
+    @Override
+    public String toString() {
+        return "DockerNodeStatus [getId()=" + getId() + ", getUrl()="
+                + getUrl() + ", isHealthy()=" + isHealthy()
+                + ", getLastError()=" + getLastError() + ", getContainers()="
+                + getContainers() + ", getMaxContainers()="
+                + getMaxContainers() + ", getLeasedPorts()="
+                + getLeasedPorts() + ", getLastCheck()=" + getLastCheck()
+                + "]";
+    }
+
+}
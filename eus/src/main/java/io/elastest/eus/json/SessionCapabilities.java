@@ -0,0 +1,133 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Immutable view of the capabilities of a new session request, decoded once
+ * from both the JSON Wire (desiredCapabilities) and the W3C
+ * (capabilities.alwaysMatch/firstMatch) forms. JSON Wire values take
+ * precedence.
+ *
+ * @since 0.9.1
+ */
+public final class SessionCapabilities {
+
+    private final String browserName;
+    private final String version;
+    private final String platform;
+    private final boolean live;
+    private final String browserId;
+    private final boolean manualRecording;
+
+    public SessionCapabilities(String browserName, String version,
+            String platform, boolean live, String browserId,
+            boolean manualRecording) {
+        this.browserName = browserName;
+        this.version = version;
+        this.platform = platform;
+        this.live = live;
+        this.browserId = browserId;
+        this.manualRecording = manualRecording;
+    }
+
+    public static SessionCapabilities fromJson(JsonNode request) {
+        List<JsonNode> sources = new ArrayList<>();
+        addSource(sources, request.get("desiredCapabilities"));
+        JsonNode capabilities = request.get("capabilities");
+        if (capabilities != null) {
+            addSource(sources, capabilities.get("alwaysMatch"));
+            JsonNode firstMatch = capabilities.get("firstMatch");
+            if (firstMatch != null && firstMatch.isArray()
+                    && firstMatch.size() > 0) {
+                addSource(sources, firstMatch.get(0));
+            }
+        }
+
+        return new SessionCapabilities(text(sources, "browserName"),
+                text(sources, "version", "browserVersion"),
+                text(sources, "platform", "platformName"),
+                bool(sources, "live"), text(sources, "browserId"),
+                bool(sources, "manualRecording"));
+    }
+
+    private static void addSource(List<JsonNode> sources, JsonNode node) {
+        if (node != null && node.isObject()) {
+            sources.add(node);
+        }
+    }
+
+    private static String text(List<JsonNode> sources, String... fields) {
+        for (JsonNode source : sources) {
+            for (String field : fields) {
+                JsonNode value = source.get(field);
+                if (value != null && !value.isNull()) {
+                    return value.asText();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean bool(List<JsonNode> sources, String field) {
+        for (JsonNode source : sources) {
+            JsonNode value = source.get(field);
+            if (value != null && !value.isNull()) {
+                return value.asBoolean();
+            }
+        }
+        return false;
+    }
+
+    public String getBrowserName() {
+        return browserName;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getPlatform() {
+        return platform;
+    }
+
+    public boolean isLive() {
+        return live;
+    }
+
+    public String getBrowserId() {
+        return browserId;
+    }
+
+    public boolean isManualRecording() {
+        return manualRecording;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionCapabilities [getBrowserName()=" + getBrowserName()
+                + ", getVersion()=" + getVersion() + ", getPlatform()="
+                + getPlatform() + ", isLive()=" + isLive()
+                + ", getBrowserId()=" + getBrowserId()
+                + ", isManualRecording()=" + isManualRecording() + "]";
+    }
+
+}
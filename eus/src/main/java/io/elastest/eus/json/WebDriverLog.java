@@ -52,6 +52,8 @@ public class WebDriverLog {
     public static class Value {
         String level;
         String message;
+        long timestamp;
+        String source;
 
         public String getLevel() {
             return level;
@@ -61,6 +63,14 @@ public class WebDriverLog {
             return message;
         }
 
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
         @Override
         public String toString() {
             return "[" + getLevel() + "] " + getMessage();
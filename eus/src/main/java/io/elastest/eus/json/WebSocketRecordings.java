@@ -0,0 +1,69 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.json;
+
+import java.util.List;
+
+/**
+ * Utility class for serialize JSON messages (page of recorded sessions).
+ *
+ * @since 0.9.1
+ */
+public class WebSocketRecordings {
+
+    List<WebSocketSessionInfoEntry> recordedSessions;
+    int page;
+    int size;
+    long total;
+
+    public WebSocketRecordings() {
+        // Empty default construct (needed by Jackson)
+    }
+
+    public WebSocketRecordings(List<WebSocketSessionInfoEntry> recordedSessions,
+            int page, int size, long total) {
+        this.recordedSessions = recordedSessions;
+        this.page = page;
+        this.size = size;
+        this.total = total;
+    }
+
+    public List<WebSocketSessionInfoEntry> getRecordedSessions() {
+        return recordedSessions;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocketRecordings [getRecordedSessions()="
+                + getRecordedSessions() + ", getPage()=" + getPage()
+                + ", getSize()=" + getSize() + ", getTotal()=" + getTotal()
+                + "]";
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.json;
+
+/**
+ * Utility class for deserialize JSON messages (recordings query). All the
+ * filters are optional; dates are epoch milliseconds.
+ *
+ * @since 0.9.1
+ */
+public class WebSocketRecordingsQuery {
+
+    String browser;
+    String browserId;
+    Long from;
+    Long to;
+    int page;
+    int size;
+
+    public WebSocketRecordingsQuery() {
+        // Empty default construct (needed by Jackson)
+    }
+
+    public String getBrowser() {
+        return browser;
+    }
+
+    public String getBrowserId() {
+        return browserId;
+    }
+
+    public Long getFrom() {
+        return from;
+    }
+
+    public Long getTo() {
+        return to;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocketRecordingsQuery [getBrowser()=" + getBrowser()
+                + ", getBrowserId()=" + getBrowserId() + ", getFrom()="
+                + getFrom() + ", getTo()=" + getTo() + ", getPage()="
+                + getPage() + ", getSize()=" + getSize() + "]";
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.json;
+
+import java.util.List;
+
+/**
+ * Utility class for serialize JSON messages (snapshot of the sessions at a
+ * given sequence number of an instance epoch).
+ *
+ * @since 0.9.1
+ */
+public class WebSocketSnapshot {
+
+    List<WebSocketNewSession> snapshot;
+    long seq;
+    String epoch;
+
+    public WebSocketSnapshot() {
+        // Empty default construct (needed by Jackson)
+    }
+
+    public WebSocketSnapshot(List<WebSocketNewSession> snapshot, long seq,
+            String epoch) {
+        this.snapshot = snapshot;
+        this.seq = seq;
+        this.epoch = epoch;
+    }
+
+    public List<WebSocketNewSession> getSnapshot() {
+        return snapshot;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocketSnapshot [getSnapshot()=" + getSnapshot()
+                + ", getSeq()=" + getSeq() + ", getEpoch()=" + getEpoch()
+                + "]";
+    }
+
+}
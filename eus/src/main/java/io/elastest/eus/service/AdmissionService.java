@@ -0,0 +1,278 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.nanoTime;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.github.dockerjava.api.model.Info;
+
+import io.elastest.eus.docker.DockerNode;
+import io.elastest.eus.session.AdmissionException;
+import io.elastest.eus.session.SessionInfo;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Admission control of new sessions. The number of browsers running (and of
+ * browsers being started at the same time) is limited, and the requests
+ * above the limit wait in FIFO order for admission.queue.timeout.sec at
+ * most. The capacity of each Docker node is computed from the memory and
+ * CPUs in its Docker info (and refreshed after each health check of the
+ * node), so that new browsers are only placed in nodes with room for them.
+ * The limit of browsers is the configured one, capped by the capacity of
+ * the healthy nodes.
+ *
+ * @since 0.9.1
+ */
+@Service
+public class AdmissionService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    static final long MB = 1024 * 1024;
+
+    @Value("${admission.max.browsers}")
+    private int admissionMaxBrowsers;
+
+    @Value("${admission.max.starts}")
+    private int admissionMaxStarts;
+
+    @Value("${admission.queue.timeout.sec}")
+    private int admissionQueueTimeoutSec;
+
+    @Value("${admission.browser.memory.mb}")
+    private long admissionBrowserMemoryMb;
+
+    @Value("${admission.browser.cpus}")
+    private double admissionBrowserCpus;
+
+    private volatile int maxBrowsers;
+    private BrowserSlots browsers;
+    private Semaphore starts;
+
+    // Hub container names of the admitted browsers
+    private Set<String> admitted = ConcurrentHashMap.newKeySet();
+
+    private DockerService dockerService;
+    private MeterRegistry meterRegistry;
+    private Timer waitTimer;
+
+    @Autowired
+    public AdmissionService(DockerService dockerService,
+            MeterRegistry meterRegistry) {
+        this.dockerService = dockerService;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        browsers = new BrowserSlots();
+        for (DockerNode node : dockerService.getNodes()) {
+            updateCapacity(node);
+        }
+        updateMaxBrowsers();
+        dockerService.setHealthListener(node -> {
+            updateCapacity(node);
+            updateMaxBrowsers();
+        });
+        starts = new Semaphore(admissionMaxStarts > 0 ? admissionMaxStarts
+                : Integer.MAX_VALUE, true);
+        log.info("Admission control: {} browsers, {} concurrent starts",
+                maxBrowsers, starts.availablePermits());
+
+        waitTimer = Timer.builder("eus.session.admission.wait")
+                .description("Time waiting for admission of new sessions")
+                .register(meterRegistry);
+        meterRegistry.gauge("eus.session.admission.queued", this,
+                admission -> admission.browsers.getQueueLength()
+                        + admission.starts.getQueueLength());
+        meterRegistry.gauge("eus.session.admission.browsers", admitted,
+                Set::size);
+    }
+
+    /**
+     * Waits for a browser slot. It must be released with
+     * {@link #release(SessionInfo)} (if the browser is started) or with
+     * {@link #cancel()} (otherwise).
+     */
+    public void acquireBrowser() throws InterruptedException {
+        acquire(browsers, "browser");
+    }
+
+    /**
+     * Starts a browser, limiting the number of concurrent starts.
+     */
+    public SessionInfo start(BrowserStarter starter)
+            throws IOException, InterruptedException {
+        acquire(starts, "start");
+        try {
+            SessionInfo sessionInfo = starter.start();
+            admitted.add(sessionInfo.getHubContainerName());
+            return sessionInfo;
+        } finally {
+            starts.release();
+        }
+    }
+
+    /**
+     * Registers a browser already started (e.g. claimed from the pool).
+     */
+    public void admit(SessionInfo sessionInfo) {
+        admitted.add(sessionInfo.getHubContainerName());
+    }
+
+    public void cancel() {
+        browsers.release();
+    }
+
+    /**
+     * Releases the slot of a browser (only once, if it was admitted).
+     */
+    public void release(SessionInfo sessionInfo) {
+        release(sessionInfo.getHubContainerName());
+    }
+
+    /**
+     * Releases the slot of a browser by its hub container name (e.g. when an
+     * orphaned container is reaped).
+     */
+    public void release(String hubContainerName) {
+        if (hubContainerName != null && admitted.remove(hubContainerName)) {
+            browsers.release();
+        }
+    }
+
+    private void acquire(Semaphore semaphore, String permit)
+            throws InterruptedException {
+        long start = nanoTime();
+        boolean acquired = semaphore.tryAcquire();
+        if (!acquired) {
+            log.debug("No {} slots available, waiting ({} queued)", permit,
+                    semaphore.getQueueLength() + 1);
+            acquired = semaphore.tryAcquire(admissionQueueTimeoutSec,
+                    SECONDS);
+        }
+        waitTimer.record(nanoTime() - start, NANOSECONDS);
+        if (!acquired) {
+            meterRegistry.counter("eus.session.admission.rejected", "permit",
+                    permit).increment();
+            throw new AdmissionException("Timeout of "
+                    + admissionQueueTimeoutSec + " seconds waiting for a "
+                    + permit + " slot (" + admitted.size() + "/" + maxBrowsers
+                    + " browsers running)");
+        }
+    }
+
+    /**
+     * Computes the capacity of a node from its Docker info (it is kept if the
+     * info cannot be read, e.g. if the node is not healthy).
+     */
+    private void updateCapacity(DockerNode node) {
+        if (!node.isHealthy()) {
+            return;
+        }
+        int capacity = Integer.MAX_VALUE;
+        try {
+            Info info = dockerService.getDockerInfo(node.getId());
+            if (info.getMemTotal() != null && admissionBrowserMemoryMb > 0) {
+                capacity = (int) min(capacity, max(1,
+                        info.getMemTotal() / (admissionBrowserMemoryMb * MB)));
+            }
+            if (info.getNCPU() != null && admissionBrowserCpus > 0) {
+                capacity = (int) min(capacity,
+                        max(1, info.getNCPU() / admissionBrowserCpus));
+            }
+            log.debug("Docker node {}: {} bytes of memory, {} CPUs",
+                    node.getId(), info.getMemTotal(), info.getNCPU());
+        } catch (Exception e) {
+            log.warn("Exception reading Docker info of node {}: {}",
+                    node.getId(), e.getMessage());
+            return;
+        }
+        if (capacity != node.getCapacity()) {
+            log.info("Capacity of Docker node {}: {} browsers", node.getId(),
+                    capacity);
+            node.setCapacity(capacity);
+        }
+    }
+
+    /**
+     * Resizes the browser slots to the capacity of the healthy nodes (capped
+     * by admission.max.browsers). Browsers already admitted keep their slot.
+     */
+    private synchronized void updateMaxBrowsers() {
+        long capacity = 0;
+        for (DockerNode node : dockerService.getNodes()) {
+            if (node.isHealthy()) {
+                capacity += node.getCapacity();
+            }
+        }
+        int limit = (int) min(capacity, admissionMaxBrowsers > 0
+                ? admissionMaxBrowsers : Integer.MAX_VALUE);
+        int delta = limit - maxBrowsers;
+        if (delta > 0) {
+            browsers.release(delta);
+        } else if (delta < 0) {
+            browsers.reducePermits(-delta);
+        }
+        if (delta != 0) {
+            log.debug("Admission control: {} browsers", limit);
+        }
+        maxBrowsers = limit;
+    }
+
+    @FunctionalInterface
+    public interface BrowserStarter {
+        SessionInfo start() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Fair semaphore whose permits can be reduced (when the capacity of the
+     * nodes decreases).
+     */
+    static class BrowserSlots extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        BrowserSlots() {
+            super(0, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+}
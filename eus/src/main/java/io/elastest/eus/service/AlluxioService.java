@@ -17,24 +17,42 @@
 package io.elastest.eus.service;
 
 import static java.lang.invoke.MethodHandles.lookup;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.util.Arrays.stream;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.stream.Collectors.toList;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import io.elastest.eus.EusException;
 import io.elastest.eus.external.EdmAluxioApi;
 import io.elastest.eus.json.EdmAluxioFile;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
@@ -55,16 +73,47 @@ public class AlluxioService {
 
     final Logger log = getLogger(lookup().lookupClass());
 
+    static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    static final String SPOOL_TMP_EXTENSION = ".tmp";
+    static final String REPLACE_TMP_EXTENSION = ".tmp";
+    static final MediaType OCTET_STREAM = MediaType
+            .parse("application/octet-stream");
+
     @Value("${edm.alluxio.url}")
     private String edmAlluxioUrl;
 
     @Value("${registry.metadata.extension}")
     private String metadataExtension;
 
+    @Value("${alluxio.upload.chunk.size}")
+    private int uploadChunkSize;
+
+    @Value("${alluxio.upload.retries}")
+    private int uploadRetries;
+
+    @Value("${alluxio.spool.folder}")
+    private String spoolFolder;
+
+    @Value("${alluxio.spool.replay.sec}")
+    private int spoolReplaySec;
+
     private EdmAluxioApi alluxio;
+    private ScheduledExecutorService spoolExecutor;
+
+    private MeterRegistry meterRegistry;
+    private Counter uploadedBytes;
+
+    @Autowired
+    public AlluxioService(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
 
     @PostConstruct
     public void postConstruct() {
+        uploadedBytes = Counter.builder("eus.alluxio.upload.bytes")
+                .description("Bytes uploaded to Alluxio").baseUnit("bytes")
+                .register(meterRegistry);
         if (!edmAlluxioUrl.isEmpty()) {
             // Ensure that EDM Alluxio URL (if available) ends with "/"
             if (!edmAlluxioUrl.endsWith("/")) {
@@ -76,6 +125,19 @@ public class AlluxioService {
                     .addConverterFactory(GsonConverterFactory.create())
                     .baseUrl(edmAlluxioUrl).build();
             alluxio = retrofit.create(EdmAluxioApi.class);
+
+            if (spoolReplaySec > 0) {
+                spoolExecutor = newSingleThreadScheduledExecutor();
+                spoolExecutor.scheduleWithFixedDelay(this::replaySpool,
+                        spoolReplaySec, spoolReplaySec, SECONDS);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        if (spoolExecutor != null) {
+            spoolExecutor.shutdownNow();
         }
     }
 
@@ -91,43 +153,265 @@ public class AlluxioService {
     }
 
     public byte[] getFile(String file) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        copyFile(file, content);
+        return content.toByteArray();
+    }
+
+    /**
+     * Copies the content of a file to the given output stream in chunks, so
+     * that the whole file is never kept in memory.
+     *
+     * @return number of bytes copied
+     */
+    public long copyFile(String file, OutputStream out) throws IOException {
         Call<ResponseBody> openFile = alluxio.openFile(file);
         Response<ResponseBody> execute = openFile.execute();
         String streamId = execute.body().string();
         log.debug("Stream id {}", streamId);
 
-        Call<ResponseBody> readStream = alluxio.readStream(streamId);
-        byte[] content = readStream.execute().body().bytes();
-        log.debug("Received {} bytes", content.length);
+        long count = 0;
+        try (ResponseBody body = alluxio.readStream(streamId).execute()
+                .body(); InputStream in = body.byteStream()) {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                count += read;
+            }
+            log.debug("Received {} bytes", count);
 
-        alluxio.closeStream(streamId).execute();
-        log.debug("Stream {} closed", streamId);
+        } finally {
+            alluxio.closeStream(streamId).execute();
+            log.debug("Stream {} closed", streamId);
+        }
+        return count;
+    }
 
-        return content;
+    /**
+     * Length of a file in bytes, or -1 if unknown.
+     */
+    public long getFileLength(String file) {
+        try {
+            EdmAluxioFile[] files = alluxio.listFiles(file).execute().body();
+            if (files != null && files.length == 1) {
+                return files[0].getLength();
+            }
+        } catch (IOException e) {
+            log.debug("Exception getting status of file {}: {}", file,
+                    e.getMessage());
+        }
+        return -1;
     }
 
     public boolean writeFile(String fileName, byte[] fileContent)
             throws IOException {
         log.debug("Writing {} bytes to Alluxio", fileContent.length);
+        return writeFile(fileName,
+                () -> new ByteArrayInputStream(fileContent), null);
+    }
 
-        Call<ResponseBody> openFile = alluxio.createFile(fileName);
-        String streamId = openFile.execute().body().string();
-        log.debug("Stream id {}", streamId);
+    /**
+     * Uploads the content of a stream in chunks of alluxio.upload.chunk.size
+     * bytes. Alluxio streams are append only, and so a failed upload (i.e. a
+     * chunk or request failed) is not resumed: the partial file is deleted,
+     * and the whole upload is restarted up to alluxio.upload.retries times.
+     *
+     * @param progress
+     *            optional consumer of the bytes uploaded so far (in the
+     *            current attempt)
+     */
+    public boolean writeFile(String fileName, UploadContent content,
+            LongConsumer progress) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            IOException exception = null;
+            try {
+                if (upload(fileName, content, progress)) {
+                    return true;
+                }
+            } catch (IOException e) {
+                exception = e;
+            }
 
-        RequestBody requestBody = RequestBody.create(
-                MediaType.parse("application/octet-stream"), fileContent);
-        Response<Void> execute = alluxio.writeStream(streamId, requestBody)
-                .execute();
-        log.debug("Result: {}", execute);
+            // Appending again to the partial file would corrupt it
+            deletePartialFile(fileName);
+            if (attempt > uploadRetries) {
+                if (exception != null) {
+                    throw exception;
+                }
+                return false;
+            }
+            log.debug("Upload of {} to Alluxio failed ({}), retry {}",
+                    fileName, exception != null ? exception.getMessage()
+                            : "unsuccessful response",
+                    attempt);
+        }
+    }
 
-        boolean writeSuccessful = execute.isSuccessful();
+    private boolean upload(String fileName, UploadContent content,
+            LongConsumer progress) throws IOException {
+        Response<ResponseBody> createFile = alluxio.createFile(fileName)
+                .execute();
+        if (!createFile.isSuccessful()) {
+            log.debug("File {} cannot be created: {}", fileName, createFile);
+            return false;
+        }
+        String streamId = createFile.body().string();
+        log.debug("Stream id {}", streamId);
 
-        alluxio.closeStream(streamId).execute();
-        log.debug("Stream {} closed", streamId);
+        boolean writeSuccessful = true;
+        long uploaded = 0;
+        try (InputStream in = content.open()) {
+            byte[] chunk = new byte[uploadChunkSize > 0 ? uploadChunkSize
+                    : DEFAULT_CHUNK_SIZE];
+            int length;
+            while (writeSuccessful && (length = readChunk(in, chunk)) > 0) {
+                Response<Void> execute = alluxio.writeStream(streamId,
+                        RequestBody.create(OCTET_STREAM, chunk, 0, length))
+                        .execute();
+                log.trace("Result: {}", execute);
+                writeSuccessful = execute.isSuccessful();
+                uploaded += length;
+                uploadedBytes.increment(length);
+                if (progress != null) {
+                    progress.accept(uploaded);
+                }
+                log.trace("{} bytes of {} written to Alluxio", uploaded,
+                        fileName);
+            }
+        } finally {
+            alluxio.closeStream(streamId).execute();
+            log.debug("Stream {} closed", streamId);
+        }
+        log.debug("Written {} bytes of {} to Alluxio (successful: {})",
+                uploaded, fileName, writeSuccessful);
 
         return writeSuccessful;
     }
 
+    private void deletePartialFile(String fileName) {
+        try {
+            deleteFile(fileName);
+        } catch (IOException e) {
+            log.debug("Exception deleting partial file {}: {}", fileName,
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the content of a file, so that readers get either the old or
+     * the new content, but never a partial one: the new content is written
+     * to a temporary file, which is then renamed (Alluxio does not rename
+     * over an existing file, so the old one is deleted just before).
+     *
+     * @return true if the file has been replaced
+     */
+    public boolean replaceFile(String fileName, byte[] fileContent)
+            throws IOException {
+        String tmpFileName = fileName + REPLACE_TMP_EXTENSION;
+        // Leftover of a previous failed replacement, if any
+        deletePartialFile(tmpFileName);
+        if (!writeFile(tmpFileName, fileContent)) {
+            return false;
+        }
+        deleteFile(fileName);
+        Response<ResponseBody> response = alluxio
+                .renameFile(tmpFileName, "/" + fileName).execute();
+        log.debug("File {} replaced: {}", fileName, response);
+        return response.isSuccessful();
+    }
+
+    /**
+     * Writes a file to Alluxio. If Alluxio is not available, the file is
+     * stored in a local spool, which is replayed in background.
+     *
+     * @return true if the file has been written to Alluxio
+     */
+    public boolean writeFileOrSpool(String fileName, byte[] fileContent) {
+        return writeFileOrSpool(fileName,
+                () -> new ByteArrayInputStream(fileContent));
+    }
+
+    /**
+     * Writes a local file to Alluxio (streaming it, without loading it in
+     * memory), or copies it to the spool if Alluxio is not available.
+     *
+     * @return true if the file has been written to Alluxio
+     */
+    public boolean writeFileOrSpool(String fileName, Path path) {
+        return writeFileOrSpool(fileName, () -> Files.newInputStream(path));
+    }
+
+    private boolean writeFileOrSpool(String fileName, UploadContent content) {
+        try {
+            if (writeFile(fileName, content, null)) {
+                return true;
+            }
+        } catch (Exception e) {
+            log.warn("Exception writing {} to Alluxio: {}", fileName,
+                    e.getMessage());
+        }
+
+        try {
+            File dir = new File(spoolFolder);
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("The " + spoolFolder
+                        + " directory could not be created");
+            }
+            Path tmpFile = new File(dir, fileName + SPOOL_TMP_EXTENSION)
+                    .toPath();
+            try (InputStream in = content.open()) {
+                Files.copy(in, tmpFile, REPLACE_EXISTING);
+            }
+            Files.move(tmpFile, new File(dir, fileName).toPath(),
+                    REPLACE_EXISTING, ATOMIC_MOVE);
+            log.info("File {} stored in spool {}", fileName, spoolFolder);
+
+        } catch (IOException e) {
+            throw new EusException("Exception spooling file " + fileName, e);
+        }
+        return false;
+    }
+
+    /**
+     * Writes the spooled files to Alluxio. It is called periodically (each
+     * alluxio.spool.replay.sec seconds).
+     */
+    public void replaySpool() {
+        File[] spooledFiles = new File(spoolFolder).listFiles(
+                file -> file.isFile() && !file.getName()
+                        .endsWith(SPOOL_TMP_EXTENSION));
+        if (spooledFiles == null) {
+            return;
+        }
+        for (File file : spooledFiles) {
+            try {
+                if (writeFile(file.getName(),
+                        () -> new FileInputStream(file), null)) {
+                    Files.delete(file.toPath());
+                    log.info("Spooled file {} written to Alluxio",
+                            file.getName());
+                }
+            } catch (Exception e) {
+                // A failed file does not prevent replaying the rest
+                log.debug("Exception writing spooled file {} ({}), kept",
+                        file.getName(), e.getMessage());
+            }
+        }
+    }
+
+    private int readChunk(InputStream in, byte[] chunk) throws IOException {
+        int length = 0;
+        while (length < chunk.length) {
+            int read = in.read(chunk, length, chunk.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
     public boolean deleteFile(String file) throws IOException {
         log.debug("Deleting file {}", file);
         Response<ResponseBody> response = alluxio.deleteFile(file).execute();
@@ -150,4 +434,13 @@ public class AlluxioService {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Content to be uploaded, which can be read again if the upload is
+     * restarted.
+     */
+    @FunctionalInterface
+    public interface UploadContent {
+        InputStream open() throws IOException;
+    }
+
 }
@@ -0,0 +1,365 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toSet;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import io.elastest.eus.session.SessionInfo;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Warm pool of pre-started browser containers, keyed by Docker image (i.e.
+ * browser and version). New sessions claim a ready container, and the pool is
+ * refilled in the background.
+ *
+ * @since 0.9.1
+ */
+@Service
+public class BrowserPoolService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    @Value("${browser.pool.enabled}")
+    private boolean browserPoolEnabled;
+
+    @Value("${browser.pool.browsers}")
+    private String browserPoolBrowsers;
+
+    @Value("${browser.pool.min.size}")
+    private int browserPoolMinSize;
+
+    @Value("${browser.pool.max.size}")
+    private int browserPoolMaxSize;
+
+    @Value("${browser.pool.ttl.sec}")
+    private int browserPoolTtlSec;
+
+    @Value("${browser.pool.check.sec}")
+    private int browserPoolCheckSec;
+
+    @Value("${browser.pool.health.timeout.ms}")
+    private int browserPoolHealthTimeoutMs;
+
+    private Map<String, ConcurrentLinkedDeque<PooledBrowser>> pool = new ConcurrentHashMap<>();
+    private Map<String, AtomicInteger> starting = new ConcurrentHashMap<>();
+    private Map<String, Integer> targetSize = new ConcurrentHashMap<>();
+
+    // Docker image id -> browser name
+    private Map<String, String> pooledImages = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService maintenanceExecutor;
+    private ExecutorService refillExecutor;
+
+    private BrowserService browserService;
+    private DockerService dockerService;
+    private DockerHubService dockerHubService;
+    private MeterRegistry meterRegistry;
+
+    private Counter poolHits;
+    private Counter poolMisses;
+    private Timer claimLatency;
+
+    @Autowired
+    public BrowserPoolService(BrowserService browserService,
+            DockerService dockerService, DockerHubService dockerHubService,
+            MeterRegistry meterRegistry) {
+        this.browserService = browserService;
+        this.dockerService = dockerService;
+        this.dockerHubService = dockerHubService;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        poolHits = meterRegistry.counter("eus.browser.pool.claims", "result",
+                "hit");
+        poolMisses = meterRegistry.counter("eus.browser.pool.claims",
+                "result", "miss");
+        claimLatency = Timer.builder("eus.browser.pool.claim.latency")
+                .description("Time to claim a browser from the warm pool")
+                .register(meterRegistry);
+        meterRegistry.gauge("eus.browser.pool.size", pool,
+                p -> p.values().stream().mapToInt(ConcurrentLinkedDeque::size)
+                        .sum());
+
+        if (browserPoolEnabled) {
+            log.info("Browser warm pool enabled (min {}, max {}, TTL {} s)",
+                    browserPoolMinSize, browserPoolMaxSize,
+                    browserPoolTtlSec);
+            refillExecutor = newFixedThreadPool(browserPoolMaxSize);
+            maintenanceExecutor = newSingleThreadScheduledExecutor();
+            maintenanceExecutor.scheduleWithFixedDelay(this::maintainPool, 0,
+                    browserPoolCheckSec, SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        if (browserPoolEnabled) {
+            maintenanceExecutor.shutdownNow();
+            refillExecutor.shutdownNow();
+            pool.values().forEach(browsers -> {
+                PooledBrowser browser;
+                while ((browser = browsers.poll()) != null) {
+                    stopPooledBrowser(browser);
+                }
+            });
+        }
+    }
+
+    /**
+     * Names of the containers currently in the pool.
+     */
+    public Set<String> getPooledContainers() {
+        return pool.values().stream().flatMap(ConcurrentLinkedDeque::stream)
+                .map(browser -> browser.sessionInfo.getHubContainerName())
+                .collect(toSet());
+    }
+
+    public Optional<SessionInfo> claim(String imageId) {
+        if (!browserPoolEnabled) {
+            return Optional.empty();
+        }
+        long start = nanoTime();
+        try {
+            ConcurrentLinkedDeque<PooledBrowser> browsers = pool.get(imageId);
+            PooledBrowser browser;
+            while (browsers != null && (browser = browsers.poll()) != null) {
+                String containerName = browser.sessionInfo
+                        .getHubContainerName();
+                if (isHealthy(browser)) {
+                    log.debug("Claimed browser {} from warm pool ({})",
+                            containerName, imageId);
+                    poolHits.increment();
+                    return Optional.of(browser.sessionInfo);
+                }
+                log.debug("Discarding pooled browser {} (not healthy)",
+                        containerName);
+                // Stopped in background, not to delay the new session
+                PooledBrowser discarded = browser;
+                refillExecutor.execute(() -> stopPooledBrowser(discarded));
+            }
+
+            // On misses, the pool grows (up to the max size)
+            poolMisses.increment();
+            targetSize.computeIfPresent(imageId,
+                    (k, size) -> Math.min(size + 1, browserPoolMaxSize));
+            return Optional.empty();
+
+        } finally {
+            claimLatency.record(nanoTime() - start, NANOSECONDS);
+            String browserName = pooledImages.get(imageId);
+            if (browserName != null) {
+                refillExecutor.execute(() -> refill(imageId, browserName));
+            }
+        }
+    }
+
+    /**
+     * A pooled browser can be handed out if its container is running and its
+     * hub answers the WebDriver status request (i.e. it has not hung while
+     * idle in the pool).
+     */
+    private boolean isHealthy(PooledBrowser browser) {
+        return dockerService
+                .isRunningContainer(browser.sessionInfo.getHubContainerName())
+                && dockerService.isUrlReachable(
+                        browser.sessionInfo.getHubUrl() + "/status",
+                        browserPoolHealthTimeoutMs);
+    }
+
+    private void maintainPool() {
+        try {
+            Map<String, String> resolvedImages = resolvePooledImages();
+            pooledImages.keySet().retainAll(resolvedImages.keySet());
+            pooledImages.putAll(resolvedImages);
+
+            for (Entry<String, ConcurrentLinkedDeque<PooledBrowser>> entry : pool
+                    .entrySet()) {
+                String imageId = entry.getKey();
+                boolean wanted = pooledImages.containsKey(imageId);
+                // Node id -> current digest of the image in that node
+                Map<String, String> currentDigests = new HashMap<>();
+                for (PooledBrowser browser : entry.getValue()) {
+                    boolean expired = browser.isExpired();
+                    String currentDigest = wanted
+                            ? currentDigests.computeIfAbsent(
+                                    browser.sessionInfo.getNode(),
+                                    node -> getImageDigest(imageId, node))
+                            : null;
+                    boolean outdated = currentDigest != null
+                            && !currentDigest.equals(browser.imageDigest);
+                    if ((!wanted || expired || outdated)
+                            && entry.getValue().remove(browser)) {
+                        log.debug(
+                                "Evicting pooled browser {} ({}) wanted={} expired={} outdated={}",
+                                browser.sessionInfo.getHubContainerName(),
+                                imageId, wanted, expired, outdated);
+                        stopPooledBrowser(browser);
+                        if (expired) {
+                            // Containers not claimed: the pool shrinks (down
+                            // to the min size)
+                            targetSize.computeIfPresent(imageId,
+                                    (k, size) -> Math.max(size - 1,
+                                            browserPoolMinSize));
+                        }
+                    }
+                }
+            }
+            pooledImages.forEach((imageId, browserName) -> refillExecutor
+                    .execute(() -> refill(imageId, browserName)));
+
+        } catch (Exception e) {
+            log.warn("Exception maintaining browser warm pool: {}",
+                    e.getMessage());
+        }
+    }
+
+    private Map<String, String> resolvePooledImages() throws IOException {
+        Map<String, String> resolvedImages = new HashMap<>();
+        Map<String, List<String>> browsers = dockerHubService.getBrowsers();
+
+        List<String> keys = new ArrayList<>();
+        if (browserPoolBrowsers.trim().isEmpty()) {
+            // By default, the latest version of each browser is pooled
+            keys.addAll(browsers.keySet());
+        } else {
+            for (String key : browserPoolBrowsers.split(",")) {
+                keys.add(key.trim());
+            }
+        }
+
+        for (String key : keys) {
+            String[] browserVersion = key.split(":");
+            String browser = browserVersion[0];
+            String version = browserVersion.length > 1 ? browserVersion[1]
+                    : null;
+            if (browsers.containsKey(browser)) {
+                resolvedImages.put(dockerHubService
+                        .getBrowserImageFromCapabilities(browser, version,
+                                null),
+                        browser);
+            } else {
+                log.warn("Browser {} not available for warm pool", browser);
+            }
+        }
+        return resolvedImages;
+    }
+
+    private void refill(String imageId, String browserName) {
+        ConcurrentLinkedDeque<PooledBrowser> browsers = pool
+                .computeIfAbsent(imageId, k -> new ConcurrentLinkedDeque<>());
+        AtomicInteger startingCount = starting.computeIfAbsent(imageId,
+                k -> new AtomicInteger());
+        int target = targetSize.computeIfAbsent(imageId,
+                k -> browserPoolMinSize);
+        if (startingCount.incrementAndGet() + browsers.size() > target) {
+            startingCount.decrementAndGet();
+            return;
+        }
+
+        try {
+            log.debug("Starting browser for warm pool ({})", imageId);
+            SessionInfo sessionInfo = browserService
+                    .startBrowserContainer(browserName, imageId);
+            browsers.add(new PooledBrowser(sessionInfo,
+                    getImageDigest(imageId, sessionInfo.getNode())));
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Exception starting browser for warm pool ({}): {}",
+                    imageId, e.getMessage());
+        } finally {
+            startingCount.decrementAndGet();
+        }
+    }
+
+    private String getImageDigest(String imageId, String node) {
+        try {
+            return dockerService.getImageDigest(imageId, node);
+        } catch (Exception e) {
+            log.debug("Exception getting digest of {} in node {}: {}",
+                    imageId, node, e.getMessage());
+            return null;
+        }
+    }
+
+    private void stopPooledBrowser(PooledBrowser browser) {
+        try {
+            browserService.stopBrowserContainer(browser.sessionInfo);
+        } catch (Exception e) {
+            log.warn("Exception stopping pooled browser {}: {}",
+                    browser.sessionInfo.getHubContainerName(),
+                    e.getMessage());
+        }
+    }
+
+    private class PooledBrowser {
+        SessionInfo sessionInfo;
+        String imageDigest;
+        long createdAt = currentTimeMillis();
+
+        PooledBrowser(SessionInfo sessionInfo, String imageDigest) {
+            this.sessionInfo = sessionInfo;
+            this.imageDigest = imageDigest;
+        }
+
+        /**
+         * Whether the browser is older than browser.pool.ttl.sec. Browsers
+         * are not returned to the pool after being claimed, and so this is
+         * also the time it has been waiting in the pool.
+         */
+        boolean isExpired() {
+            return currentTimeMillis() - createdAt > SECONDS
+                    .toMillis(browserPoolTtlSec);
+        }
+    }
+
+}
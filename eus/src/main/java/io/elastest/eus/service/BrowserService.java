@@ -0,0 +1,264 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static com.github.dockerjava.api.model.ExposedPort.tcp;
+import static io.elastest.eus.docker.DockerContainer.dockerBuilder;
+import static java.lang.String.format;
+import static java.lang.System.getenv;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.Arrays.asList;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.github.dockerjava.api.model.Bind;
+import com.github.dockerjava.api.model.ExposedPort;
+import com.github.dockerjava.api.model.PortBinding;
+import com.github.dockerjava.api.model.Ports.Binding;
+import com.github.dockerjava.api.model.Volume;
+
+import io.elastest.eus.docker.DockerContainer.DockerBuilder;
+import io.elastest.eus.session.SessionInfo;
+
+/**
+ * Service for starting browser containers (hub, VNC and noVNC) and waiting
+ * until they are reachable.
+ *
+ * @since 0.9.1
+ */
+@Service
+public class BrowserService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    @Value("${et.host.env}")
+    private String etHostEnv;
+
+    @Value("${eus.container.prefix}")
+    private String eusContainerPrefix;
+
+    @Value("${hub.exposedport}")
+    private int hubExposedPort;
+
+    @Value("${hub.vnc.exposedport}")
+    private int hubVncExposedPort;
+
+    @Value("${hub.novnc.exposedport}")
+    private int noVncExposedPort;
+
+    @Value("${hub.container.sufix}")
+    private String hubContainerSufix;
+
+    @Value("${novnc.html}")
+    private String vncHtml;
+
+    @Value("${hub.vnc.password}")
+    private String hubVncPassword;
+
+    @Value("${browser.shm.size}")
+    private long shmSize;
+
+    @Value("${browser.screen.resolution}")
+    private String browserScreenResolution;
+
+    @Value("${browser.timezone}")
+    private String browserTimezone;
+
+    @Value("${use.torm}")
+    private boolean useTorm;
+
+    @Value("${docker.network}")
+    private String dockerNetwork;
+
+    @Value("${registry.folder}")
+    private String registryFolder;
+
+    @Value("${container.recording.folder}")
+    private String containerRecordingFolder;
+
+    private DockerService dockerService;
+    private DockerHubService dockerHubService;
+
+    @Autowired
+    public BrowserService(DockerService dockerService,
+            DockerHubService dockerHubService) {
+        this.dockerService = dockerService;
+        this.dockerHubService = dockerHubService;
+    }
+
+    public SessionInfo startBrowserContainer(String browserName,
+            String imageId) throws IOException, InterruptedException {
+        log.info("Using {} as Docker image for {}", imageId, browserName);
+        String hubContainerName = dockerService
+                .generateContainerName(eusContainerPrefix + hubContainerSufix);
+
+        // Docker node where the browser is started (with a slot reserved
+        // for its container)
+        String node = dockerService.selectNode(imageId, hubContainerName);
+
+        // Port binding (ports leased from the allocator of the node are
+        // released if the browser cannot be started)
+        int hubPort;
+        int vncPort;
+        int noVncBindedPort;
+        try {
+            hubPort = dockerService.allocatePort(node, hubContainerName);
+            vncPort = dockerService.allocatePort(node, hubContainerName);
+            noVncBindedPort = dockerService.allocatePort(node,
+                    hubContainerName);
+        } catch (RuntimeException e) {
+            dockerService.releaseContainerPorts(node, hubContainerName);
+            dockerService.releaseNode(hubContainerName);
+            throw e;
+        }
+        try {
+            return startBrowserContainer(browserName, imageId,
+                    hubContainerName, node, hubPort, vncPort,
+                    noVncBindedPort);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // The container (if created) is removed before releasing its
+            // ports, not to lease them again while they are still bound
+            try {
+                dockerService.adoptContainer(hubContainerName, node);
+                dockerService.stopAndRemoveContainer(hubContainerName);
+            } catch (RuntimeException removeException) {
+                log.warn("Exception removing container {}: {}",
+                        hubContainerName, removeException.getMessage());
+            }
+            releasePorts(node, hubPort, vncPort, noVncBindedPort);
+            throw e;
+        }
+    }
+
+    private SessionInfo startBrowserContainer(String browserName,
+            String imageId, String hubContainerName, String node, int hubPort,
+            int vncPort, int noVncBindedPort)
+            throws IOException, InterruptedException {
+        // Recording Volume
+        Volume recordings = new Volume(containerRecordingFolder);
+        List<Volume> volumes = asList(recordings);
+
+        List<Bind> volumeBinds = asList(new Bind(registryFolder, recordings));
+
+        Binding bindHubPort = dockerService.bindHostPort(hubPort);
+        ExposedPort exposedHubPort = tcp(hubExposedPort);
+
+        Binding bindVncPort = dockerService.bindHostPort(vncPort);
+        ExposedPort exposedVncPort = tcp(hubVncExposedPort);
+
+        Binding bindNoVncPort = dockerService.bindHostPort(noVncBindedPort);
+        ExposedPort exposedNoVncPort = tcp(noVncExposedPort);
+
+        List<PortBinding> portBindings = asList(
+                new PortBinding(bindHubPort, exposedHubPort),
+                new PortBinding(bindVncPort, exposedVncPort),
+                new PortBinding(bindNoVncPort, exposedNoVncPort));
+        List<ExposedPort> exposedPorts = asList(exposedHubPort, exposedVncPort,
+                exposedNoVncPort);
+
+        // Envs
+        List<String> envs = asList(
+                "SCREEN_RESOLUTION=" + browserScreenResolution,
+                "TZ=" + browserTimezone);
+
+        DockerBuilder dockerBuilder = dockerBuilder(imageId, hubContainerName)
+                .exposedPorts(exposedPorts).portBindings(portBindings)
+                .volumes(volumes).binds(volumeBinds).shmSize(shmSize)
+                .envs(envs).node(node)
+                .labels(dockerService.getInstanceLabels());
+        if (useTorm) {
+            dockerBuilder.network(dockerNetwork);
+        }
+
+        // Start
+        dockerService.startAndWaitContainer(dockerBuilder.build());
+
+        // Ports assigned by Docker (docker.port.mode=docker)
+        hubPort = dockerService.resolveHostPort(hubContainerName, hubPort,
+                hubExposedPort);
+        vncPort = dockerService.resolveHostPort(hubContainerName, vncPort,
+                hubVncExposedPort);
+        noVncBindedPort = dockerService.resolveHostPort(hubContainerName,
+                noVncBindedPort, noVncExposedPort);
+
+        // Wait Reachable
+        String hubPath = "/wd/hub";
+        String hubIp = dockerService.getHostIp(hubContainerName);
+        String hubUrl = "http://" + hubIp + ":" + hubPort + hubPath;
+        dockerService.waitForHostIsReachable(hubUrl);
+        log.debug("Container: {} -- Hub URL: {}", hubContainerName, hubUrl);
+
+        // Save info into SessionInfo
+        SessionInfo sessionInfo = new SessionInfo();
+        sessionInfo.setHubUrl(hubUrl);
+        sessionInfo.setHubContainerName(hubContainerName);
+        sessionInfo.setBrowser(browserName);
+        sessionInfo.setVersion(dockerHubService.getVersionFromImage(imageId));
+        sessionInfo.setImageId(imageId);
+        sessionInfo.setNode(node);
+        sessionInfo.setHubBindPort(hubPort);
+        sessionInfo.setHubVncBindPort(vncPort);
+
+        String vncUrlFormat = "http://%s:%d/" + vncHtml
+                + "?resize=scale&autoconnect=true&password=" + hubVncPassword;
+        String vncUrl = format(vncUrlFormat, hubIp, noVncBindedPort);
+
+        String etHost = getenv(etHostEnv);
+        if (etHost != null) {
+            if (!etHost.equalsIgnoreCase("localhost")) {
+                hubIp = etHost;
+                vncUrl = format(vncUrlFormat, hubIp, noVncBindedPort);
+            }
+        }
+
+        dockerService.waitForHostIsReachable(vncUrl);
+
+        sessionInfo.setVncContainerName(hubContainerName);
+        sessionInfo.setVncUrl(vncUrl);
+        sessionInfo.setNoVncBindPort(noVncBindedPort);
+
+        return sessionInfo;
+    }
+
+    public void stopBrowserContainer(SessionInfo sessionInfo) {
+        String hubContainerName = sessionInfo.getHubContainerName();
+        if (hubContainerName != null) {
+            dockerService.stopAndRemoveContainer(hubContainerName);
+        }
+        releasePorts(sessionInfo);
+    }
+
+    public void releasePorts(SessionInfo sessionInfo) {
+        releasePorts(sessionInfo.getNode(), sessionInfo.getHubBindPort(),
+                sessionInfo.getHubVncBindPort(),
+                sessionInfo.getNoVncBindPort());
+    }
+
+    private void releasePorts(String node, int... ports) {
+        for (int port : ports) {
+            dockerService.releasePort(node, port);
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.github.dockerjava.api.model.Container;
+
+import io.elastest.eus.session.SessionInfo;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Reaper of orphaned containers, i.e. browser containers started by this EUS
+ * instance that do not belong to any session nor to the browser pool (for
+ * instance, after a crash or a failed teardown). Other containers (e.g.
+ * docker-compose-ui) are never reaped. It runs at startup and
+ * then periodically. Containers created before the EUS started are reaped
+ * right away, and the rest once they have been orphaned for the grace
+ * period (so that sessions being started or torn down are not affected).
+ *
+ * @since 0.9.1
+ */
+@Service
+public class ContainerReaperService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    @Value("${reaper.enabled}")
+    private boolean reaperEnabled;
+
+    @Value("${reaper.period.sec}")
+    private int reaperPeriodSec;
+
+    @Value("${reaper.grace.sec}")
+    private int reaperGraceSec;
+
+    @Value("${reaper.concurrency}")
+    private int reaperConcurrency;
+
+    @Value("${reaper.name.prefix}")
+    private String reaperNamePrefix;
+
+    @Value("${eus.container.prefix}")
+    private String eusContainerPrefix;
+
+    @Value("${hub.container.sufix}")
+    private String hubContainerSufix;
+
+    // Container name -> first time seen as orphan
+    private Map<String, Long> orphans = new ConcurrentHashMap<>();
+    private long startTime = currentTimeMillis();
+
+    private ScheduledExecutorService reaperExecutor;
+    private ExecutorService removalExecutor;
+
+    private DockerService dockerService;
+    private SessionService sessionService;
+    private BrowserPoolService browserPoolService;
+    private AdmissionService admissionService;
+    private MeterRegistry meterRegistry;
+    private Counter reapedContainers;
+
+    @Autowired
+    public ContainerReaperService(DockerService dockerService,
+            SessionService sessionService,
+            BrowserPoolService browserPoolService,
+            AdmissionService admissionService, MeterRegistry meterRegistry) {
+        this.dockerService = dockerService;
+        this.sessionService = sessionService;
+        this.browserPoolService = browserPoolService;
+        this.admissionService = admissionService;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        reapedContainers = meterRegistry.counter("eus.container.reaper.reaped");
+        meterRegistry.gauge("eus.container.reaper.orphans", orphans,
+                Map::size);
+
+        removalExecutor = newFixedThreadPool(reaperConcurrency);
+        if (reaperEnabled) {
+            reaperExecutor = newSingleThreadScheduledExecutor();
+            reaperExecutor.scheduleWithFixedDelay(this::reap, 0,
+                    reaperPeriodSec, SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        if (reaperEnabled) {
+            reaperExecutor.shutdownNow();
+        }
+        removalExecutor.shutdownNow();
+    }
+
+    public void reap() {
+        try {
+            Set<String> knownContainers = getKnownContainers();
+            long now = currentTimeMillis();
+            long graceMs = SECONDS.toMillis(reaperGraceSec);
+
+            List<Callable<Void>> removals = new ArrayList<>();
+            Set<String> currentOrphans = new HashSet<>();
+            for (Container container : dockerService
+                    .listEusContainers(reaperNamePrefix)) {
+                String containerName = getName(container);
+                if (containerName == null || !isBrowser(containerName)
+                        || knownContainers.contains(containerName)) {
+                    continue;
+                }
+                currentOrphans.add(containerName);
+                long orphanSince = orphans.computeIfAbsent(containerName,
+                        k -> now);
+                boolean createdBefore = container.getCreated() != null
+                        && SECONDS.toMillis(container.getCreated()) < startTime;
+                if (createdBefore || now - orphanSince >= graceMs) {
+                    removals.add(() -> {
+                        remove(containerName);
+                        return null;
+                    });
+                }
+            }
+            orphans.keySet().retainAll(currentOrphans);
+
+            if (!removals.isEmpty()) {
+                log.info("Reaping {} orphaned containers", removals.size());
+                removalExecutor.invokeAll(removals);
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Exception reaping orphaned containers: {}",
+                    e.getMessage());
+        }
+    }
+
+    private void remove(String containerName) {
+        try {
+            String node = dockerService.getNodeId(containerName);
+            dockerService.stopAndRemoveContainer(containerName);
+            // Host ports still leased by this instance for the container (not
+            // the ones it publishes, which may have been leased again) and
+            // its admission slot (if any) are released too
+            dockerService.releaseContainerPorts(node, containerName);
+            admissionService.release(containerName);
+            orphans.remove(containerName);
+            reapedContainers.increment();
+            log.debug("Orphaned container {} reaped", containerName);
+
+        } catch (Exception e) {
+            log.warn("Exception reaping container {}: {}", containerName,
+                    e.getMessage());
+        }
+    }
+
+    private boolean isBrowser(String containerName) {
+        return containerName.startsWith(eusContainerPrefix + hubContainerSufix)
+                || (!reaperNamePrefix.isEmpty()
+                        && containerName.startsWith(reaperNamePrefix));
+    }
+
+    private Set<String> getKnownContainers() {
+        Set<String> knownContainers = new HashSet<>(
+                browserPoolService.getPooledContainers());
+        for (SessionInfo sessionInfo : sessionService.getSessionRegistry()
+                .values()) {
+            addIfNotNull(knownContainers, sessionInfo.getHubContainerName());
+            addIfNotNull(knownContainers, sessionInfo.getVncContainerName());
+        }
+        return knownContainers;
+    }
+
+    private void addIfNotNull(Set<String> containers, String containerName) {
+        if (containerName != null) {
+            containers.add(containerName);
+        }
+    }
+
+    private String getName(Container container) {
+        String[] names = container.getNames();
+        if (names == null || names.length == 0) {
+            return null;
+        }
+        // Docker names are prefixed by slash
+        return names[0].startsWith("/") ? names[0].substring(1) : names[0];
+    }
+
+}
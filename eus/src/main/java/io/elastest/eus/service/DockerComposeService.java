@@ -17,7 +17,6 @@
 package io.elastest.eus.service;
 
 import static com.github.dockerjava.api.model.ExposedPort.tcp;
-import static com.github.dockerjava.api.model.Ports.Binding.bindPort;
 import static io.elastest.eus.docker.DockerContainer.dockerBuilder;
 import static java.lang.invoke.MethodHandles.lookup;
 import static java.nio.charset.Charset.defaultCharset;
@@ -100,6 +99,7 @@ public class DockerComposeService {
     private String dockerNetwork;
 
     private String dockerComposeUiContainerName;
+    private int dockerComposeBindPort;
     private DockerComposeApi dockerComposeApi;
 
     private DockerService dockerService;
@@ -116,14 +116,11 @@ public class DockerComposeService {
         dockerComposeUiContainerName = dockerService
                 .generateContainerName(dockerComposeUiPrefix);
 
-        int dockerComposeBindPort = dockerService.findRandomOpenPort();
-        Binding bindNoVncPort = bindPort(dockerComposeBindPort);
+        dockerComposeBindPort = dockerService.allocatePort();
+        Binding bindNoVncPort = dockerService
+                .bindHostPort(dockerComposeBindPort);
         ExposedPort exposedNoVncPort = tcp(dockerComposeUiPort);
 
-        String dockerComposeServiceUrl = "http://"
-                + dockerService.getDockerServerIp() + ":"
-                + dockerComposeBindPort;
-
         log.debug("Starting docker-compose-ui container: {}",
                 dockerComposeUiContainerName);
 
@@ -137,6 +134,12 @@ public class DockerComposeService {
                 dockerComposeUiContainerName).portBindings(portBindings)
                         .volumes(volumes).binds(binds);
         dockerService.startAndWaitContainer(dockerBuilder.build());
+        dockerComposeBindPort = dockerService.resolveHostPort(
+                dockerComposeUiContainerName, dockerComposeBindPort,
+                dockerComposeUiPort);
+        String dockerComposeServiceUrl = "http://"
+                + dockerService.getDockerServerIp() + ":"
+                + dockerComposeBindPort;
 
         // 2. Create Retrofit object to call docker-compose-ui REST API
         OkHttpClient okHttpClient = new OkHttpClient.Builder()
@@ -164,6 +167,7 @@ public class DockerComposeService {
             log.debug("Stopping docker-compose-ui container: {}",
                     dockerComposeUiContainerName);
             dockerService.stopAndRemoveContainer(dockerComposeUiContainerName);
+            dockerService.releasePort(dockerComposeBindPort);
         }
     }
 
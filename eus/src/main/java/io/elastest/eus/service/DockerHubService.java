@@ -20,15 +20,24 @@ import static java.lang.Integer.parseInt;
 import static java.lang.Math.max;
 import static java.lang.String.format;
 import static java.lang.invoke.MethodHandles.lookup;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.slf4j.LoggerFactory.getLogger;
-import static java.util.stream.Collectors.toList;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
@@ -47,7 +56,9 @@ import retrofit2.adapter.rxjava.RxJavaCallAdapterFactory;
 import retrofit2.converter.gson.GsonConverterFactory;
 
 /**
- * Docker Hub service.
+ * Docker Hub service. The browser catalog (browsers and versions) is kept in
+ * memory and refreshed in the background, so that session creation does not
+ * depend on Docker Hub.
  *
  * @author Boni Garcia (boni.gg@gmail.com)
  * @since 2.0.0
@@ -75,11 +86,47 @@ public class DockerHubService {
     @Value("${browser.image.latest.version}")
     String browserImageLatestVersion;
 
+    @Value("${browser.catalog.refresh.sec}")
+    int browserCatalogRefreshSec;
+
     @Value("${et.internet.disabled}")
     boolean etInternetDisabled;
 
     DockerHubApi dockerHubApi;
 
+    // Last good snapshot of the catalog
+    private volatile BrowserCatalog catalog;
+
+    // Conditional requests: URL path -> ETag and last response
+    private Map<String, String> etags = new ConcurrentHashMap<>();
+    private Map<String, List<DockerHubNameSpaceImage>> cachedImages = new ConcurrentHashMap<>();
+    private Map<String, List<DockerHubTag>> cachedTags = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService refreshExecutor;
+
+    @PostConstruct
+    public void init() {
+        if (etInternetDisabled) {
+            // If there is not internet connection
+            log.info("Internet is disabled, getting default images list");
+            catalog = new BrowserCatalog(getDefaultBrowsers());
+            return;
+        }
+
+        // Loaded in the background (not to delay the startup when Docker Hub
+        // is slow), using the default list until then
+        refreshExecutor = newSingleThreadScheduledExecutor();
+        refreshExecutor.scheduleWithFixedDelay(this::refreshCatalog, 0,
+                browserCatalogRefreshSec, SECONDS);
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+    }
+
     private void initDockerHubApi() {
         OkHttpClient okHttpClient = new OkHttpClient.Builder()
                 .connectTimeout(browserDockerHubTimeout, SECONDS)
@@ -98,13 +145,22 @@ public class DockerHubService {
 
         log.debug("Getting browser image list from Docker Hub: {}",
                 dockerHubUrl);
+        String key = browserImageNamespace;
         Response<DockerHubNameSpaceImages> listImagesResponse = dockerHubApi
-                .listImages(browserImageNamespace).execute();
+                .listImages(browserImageNamespace, etags.get(key)).execute();
 
+        if (listImagesResponse.code() == HTTP_NOT_MODIFIED
+                && cachedImages.containsKey(key)) {
+            log.trace("Browser image list not modified");
+            return cachedImages.get(key);
+        }
         if (!listImagesResponse.isSuccessful()) {
             throw new EusException(listImagesResponse.errorBody().string());
         }
-        return listImagesResponse.body().getResults();
+        List<DockerHubNameSpaceImage> images = listImagesResponse.body()
+                .getResults();
+        cacheResponse(key, listImagesResponse, images, cachedImages);
+        return images;
     }
 
     private List<DockerHubTag> listTags(String browserImage)
@@ -116,11 +172,31 @@ public class DockerHubService {
         log.debug("Getting browser {} version list from Docker Hub: {}",
                 browserImage, dockerHubUrl);
         Response<DockerHubTags> listTagsResponse = dockerHubApi
-                .listTags(browserImage).execute();
+                .listTags(browserImage, etags.get(browserImage)).execute();
+
+        if (listTagsResponse.code() == HTTP_NOT_MODIFIED
+                && cachedTags.containsKey(browserImage)) {
+            log.trace("Browser {} version list not modified", browserImage);
+            return cachedTags.get(browserImage);
+        }
         if (!listTagsResponse.isSuccessful()) {
             throw new EusException(listTagsResponse.errorBody().string());
         }
-        return listTagsResponse.body().getResults();
+        List<DockerHubTag> tags = listTagsResponse.body().getResults();
+        cacheResponse(browserImage, listTagsResponse, tags, cachedTags);
+        return tags;
+    }
+
+    private <T> void cacheResponse(String key, Response<?> response, T body,
+            Map<String, T> cache) {
+        String etag = response.headers().get("ETag");
+        if (etag != null) {
+            etags.put(key, etag);
+            cache.put(key, body);
+        } else {
+            etags.remove(key);
+            cache.remove(key);
+        }
     }
 
     private int compareVersions(String v1, String v2) {
@@ -164,85 +240,73 @@ public class DockerHubService {
         return version.matches("-?\\d+(\\.\\d+(\\.\\d+)?)?");
     }
 
-    private String getVersionFromList(List<String> browserList,
-            String version) {
-        if (version == null || version.isEmpty()) {
-            return browserList.get(0);
-        }
-
-        if (browserList.contains(version)) {
-            return version;
-        }
-
-        for (String v : browserList) {
-            if (v.startsWith(version)) {
-                return v;
-            }
-        }
-
-        throw new EusException(
-                "Version " + version + " is not valid for browser");
-    }
-
     public String getBrowserImageFromCapabilities(String browser,
             String version, String platform) throws IOException {
         log.debug(
                 "Getting browser image from capabilities: browser={} version={} platform={}",
                 browser, version, platform);
 
-        Map<String, List<String>> browsers = this.getBrowsers();
-
         return format(browserImageFormat, browser,
-                getVersionFromList(browsers.get(browser), version));
+                getCatalog().resolveVersion(browser, version));
     }
 
     public Map<String, List<String>> getBrowsers() throws IOException {
-        Map<String, List<String>> result = new TreeMap<>();
+        return getCatalog().browsers;
+    }
+
+    private BrowserCatalog getCatalog() {
+        BrowserCatalog currentCatalog = catalog;
+        if (currentCatalog == null) {
+            // Docker Hub has not been reachable so far
+            log.debug("Browser catalog not loaded yet, using default list");
+            currentCatalog = new BrowserCatalog(getDefaultBrowsers());
+        }
+        return currentCatalog;
+    }
+
+    public void refreshCatalog() {
+        try {
+            catalog = new BrowserCatalog(loadBrowsers());
+            log.debug("Browser catalog refreshed: {}", catalog.browsers);
 
-        if (!etInternetDisabled) {
-            List<DockerHubNameSpaceImage> imagesList = listImages();
-
-            // [chrome, firefox, utils-get_browsers_version, utils-x11-base]
-            log.trace("{} browser image list: {}", browserImageNamespace,
-                    imagesList);
-
-            for (DockerHubNameSpaceImage currentBrowserImage : imagesList) {
-                String browser = currentBrowserImage.getName();
-                if (!browser.toLowerCase()
-                        .startsWith(browserImageSkipPrefix.toLowerCase())) {
-                    List<DockerHubTag> tagList = listTags(
-                            browserImageNamespace + "/" + browser);
-                    log.trace("{} browser tag list: {}", browser, tagList);
-
-                    for (DockerHubTag dockerHubTag : tagList) {
-                        String tagName = dockerHubTag.getName();
-                        String version = tagName;
-
-                        if (browser.equalsIgnoreCase("opera")
-                                && version.equalsIgnoreCase("12.16")) {
-                            continue;
-                        }
-
-                        if (result.containsKey(browser)) {
-                            List<String> list = result.get(browser);
-                            list.add(version);
-
-                            list = list.stream().sorted(this::compareVersions)
-                                    .collect(toList());
-                            result.put(browser, list);
-                        } else {
-                            List<String> entry = new ArrayList<>();
-                            entry.add(version);
-
-                            result.put(browser, entry);
-                        }
+        } catch (Exception e) {
+            log.warn(
+                    "Exception refreshing browser catalog from Docker Hub, keeping last snapshot: {}",
+                    e.getMessage());
+        }
+    }
+
+    private Map<String, List<String>> loadBrowsers() throws IOException {
+        Map<String, List<String>> result = new TreeMap<>();
+        List<DockerHubNameSpaceImage> imagesList = listImages();
+
+        // [chrome, firefox, utils-get_browsers_version, utils-x11-base]
+        log.trace("{} browser image list: {}", browserImageNamespace,
+                imagesList);
+
+        for (DockerHubNameSpaceImage currentBrowserImage : imagesList) {
+            String browser = currentBrowserImage.getName();
+            if (!browser.toLowerCase()
+                    .startsWith(browserImageSkipPrefix.toLowerCase())) {
+                List<DockerHubTag> tagList = listTags(
+                        browserImageNamespace + "/" + browser);
+                log.trace("{} browser tag list: {}", browser, tagList);
+
+                List<String> versions = new ArrayList<>();
+                for (DockerHubTag dockerHubTag : tagList) {
+                    String version = dockerHubTag.getName();
+
+                    if (browser.equalsIgnoreCase("opera")
+                            && version.equalsIgnoreCase("12.16")) {
+                        continue;
                     }
+                    versions.add(version);
                 }
+
+                // Sorted once per browser (newest first)
+                versions.sort(this::compareVersions);
+                result.put(browser, versions);
             }
-        } else {
-            // If there is not internet connection
-            log.info("Internet is disabled, getting default images list");
-            result = this.getDefaultBrowsers();
         }
         return result;
     }
@@ -282,4 +346,51 @@ public class DockerHubService {
 
         return browsers;
     }
+
+    /**
+     * Immutable snapshot of the browser catalog, with an index to resolve
+     * versions (exact or by prefix) without scanning the version lists.
+     */
+    private class BrowserCatalog {
+        Map<String, List<String>> browsers;
+
+        // Browser -> (version or version prefix -> newest matching version)
+        Map<String, Map<String, String>> versionIndex = new HashMap<>();
+
+        BrowserCatalog(Map<String, List<String>> browserMap) {
+            Map<String, List<String>> sortedBrowsers = new TreeMap<>();
+            browserMap.forEach((browser, versions) -> {
+                sortedBrowsers.put(browser,
+                        unmodifiableList(new ArrayList<>(versions)));
+
+                Map<String, String> index = new HashMap<>();
+                for (String version : versions) {
+                    for (int i = 1; i <= version.length(); i++) {
+                        index.putIfAbsent(version.substring(0, i), version);
+                    }
+                }
+                // Exact matches take precedence over prefixes
+                versions.forEach(version -> index.put(version, version));
+                versionIndex.put(browser, index);
+            });
+            browsers = unmodifiableMap(sortedBrowsers);
+        }
+
+        String resolveVersion(String browser, String version) {
+            List<String> versions = browsers.get(browser);
+            if (versions == null || versions.isEmpty()) {
+                throw new EusException(
+                        "Browser " + browser + " is not available");
+            }
+            if (version == null || version.isEmpty()) {
+                return versions.get(0);
+            }
+            String resolvedVersion = versionIndex.get(browser).get(version);
+            if (resolvedVersion == null) {
+                throw new EusException(
+                        "Version " + version + " is not valid for browser");
+            }
+            return resolvedVersion;
+        }
+    }
 }
@@ -17,15 +17,25 @@
 package io.elastest.eus.service;
 
 import static com.github.dockerjava.api.model.Capability.SYS_ADMIN;
+import static com.github.dockerjava.api.model.ExposedPort.tcp;
+import static com.github.dockerjava.api.model.Ports.Binding.bindPort;
+import static io.elastest.eus.docker.DockerNode.LOCAL;
+import static java.lang.Boolean.FALSE;
+import static java.lang.Boolean.TRUE;
 import static java.lang.System.currentTimeMillis;
 import static java.lang.Thread.sleep;
 import static java.lang.invoke.MethodHandles.lookup;
 import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
 import static java.net.HttpURLConnection.HTTP_OK;
+import static java.util.Arrays.stream;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
 import static java.util.UUID.randomUUID;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 import static org.apache.commons.lang.SystemUtils.IS_OS_WINDOWS;
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -38,12 +48,25 @@ import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.SocketException;
+import java.net.URI;
 import java.net.URL;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -65,20 +88,33 @@ import com.github.dockerjava.api.DockerClient;
 import com.github.dockerjava.api.command.CreateContainerCmd;
 import com.github.dockerjava.api.command.DockerCmdExecFactory;
 import com.github.dockerjava.api.command.ExecCreateCmdResponse;
+import com.github.dockerjava.api.exception.ConflictException;
 import com.github.dockerjava.api.exception.NotFoundException;
+import com.github.dockerjava.api.exception.NotModifiedException;
 import com.github.dockerjava.api.model.Bind;
+import com.github.dockerjava.api.model.Container;
 import com.github.dockerjava.api.model.ContainerNetwork;
 import com.github.dockerjava.api.model.ExposedPort;
 import com.github.dockerjava.api.model.HostConfig;
+import com.github.dockerjava.api.model.Info;
 import com.github.dockerjava.api.model.PortBinding;
+import com.github.dockerjava.api.model.Ports.Binding;
 import com.github.dockerjava.api.model.Volume;
 import com.github.dockerjava.core.DockerClientBuilder;
 import com.github.dockerjava.core.command.ExecStartResultCallback;
-import com.github.dockerjava.core.command.PullImageResultCallback;
 import com.github.dockerjava.jaxrs.JerseyDockerCmdExecFactory;
 
 import io.elastest.eus.docker.DockerContainer;
+import io.elastest.eus.docker.DockerEventsWatcher;
 import io.elastest.eus.docker.DockerException;
+import io.elastest.eus.docker.DockerImagePuller;
+import io.elastest.eus.docker.DockerImagePuller.PullPolicy;
+import io.elastest.eus.docker.DockerNode;
+import io.elastest.eus.docker.NodePlacement;
+import io.elastest.eus.docker.PortAllocator;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
 
 /**
  * Service implementation simulating EPM (ElasTest Platform Manager) with
@@ -98,6 +134,12 @@ public class DockerService {
     @Value("${docker.poll.time.ms}")
     private int dockerPollTimeMs;
 
+    @Value("${docker.poll.initial.time.ms}")
+    private int dockerPollInitialTimeMs;
+
+    @Value("${docker.events.reconnect.ms}")
+    private int dockerEventsReconnectMs;
+
     @Value("${docker.server.url:#{null}}")
     private String dockerServerUrl;
 
@@ -107,39 +149,290 @@ public class DockerService {
     @Value("${docker.max.route.connections}")
     private int dockerMaxRouteConnections;
 
+    @Value("${docker.pull.policy}")
+    private String dockerPullPolicy;
+
+    @Value("${docker.pull.period.sec}")
+    private int dockerPullPeriodSec;
+
+    @Value("${docker.pull.prefetch.count}")
+    private int dockerPullPrefetchCount;
+
+    @Value("${docker.port.mode}")
+    private String dockerPortMode;
+
+    @Value("${docker.port.range}")
+    private String dockerPortRange;
+
+    @Value("${eus.instance.id}")
+    private String eusInstanceId;
+
+    @Value("${docker.nodes}")
+    private String dockerNodes;
+
+    @Value("${docker.node.max.containers}")
+    private int dockerNodeMaxContainers;
+
+    @Value("${docker.node.placement}")
+    private String dockerNodePlacement;
+
+    @Value("${docker.node.health.sec}")
+    private int dockerNodeHealthSec;
+
     @Value("${et.internet.disabled}")
     boolean etInternetDisabled;
 
+    static final String PORT_MODE_DOCKER = "docker";
+
+    // Label of the browsers started by an EUS instance (value: instance id)
+    public static final String EUS_INSTANCE_LABEL = "io.elastest.eus.instance";
+
     private ShellService shellService;
+    private MeterRegistry meterRegistry;
 
+    // Client of the local Docker node (images, info)
     private DockerClient dockerClient;
+
+    // Node id -> Docker node (the local one, and the ones in docker.nodes)
+    private Map<String, DockerNode> nodes = new LinkedHashMap<>();
+    private DockerNode localNode;
+    private NodePlacement nodePlacement;
+    private ScheduledExecutorService healthExecutor;
+    private Consumer<DockerNode> healthListener = node -> {
+    };
+
+    // Container name -> Docker node where it runs
+    private Map<String, DockerNode> containerNodes = new ConcurrentHashMap<>();
+
+    // Container name -> Docker API calls (from creation to removal)
+    private Map<String, AtomicInteger> apiCalls = new ConcurrentHashMap<>();
+    private DistributionSummary apiCallsPerContainer;
     private String dockerServerIp;
     private boolean isRunningInContainer = false;
     private boolean containerCheked = false;
 
-    public DockerService(ShellService shellService) {
+    public DockerService(ShellService shellService,
+            MeterRegistry meterRegistry) {
         this.shellService = shellService;
+        this.meterRegistry = meterRegistry;
     }
 
     @PostConstruct
-    @SuppressWarnings("resource")
     private void postConstruct() {
+        apiCallsPerContainer = DistributionSummary
+                .builder("eus.docker.api.calls.container")
+                .description("Docker API calls per container lifecycle")
+                .register(meterRegistry);
+
+        localNode = createNode(LOCAL, dockerServerUrl, null,
+                dockerNodeMaxContainers);
+        dockerClient = localNode.getDockerClient();
+        nodes.put(LOCAL, localNode);
+
+        // Remote nodes: comma separated list of id@url (or id@url#max)
+        for (String node : dockerNodes.split(",")) {
+            if (node.trim().isEmpty()) {
+                continue;
+            }
+            String[] idUrl = node.trim().split("@", 2);
+            if (idUrl.length != 2 || nodes.containsKey(idUrl[0])) {
+                throw new DockerException("Invalid Docker node " + node);
+            }
+            String[] urlMax = idUrl[1].split("#", 2);
+            int maxContainers = dockerNodeMaxContainers;
+            if (urlMax.length == 2) {
+                try {
+                    maxContainers = Integer.parseInt(urlMax[1]);
+                } catch (NumberFormatException e) {
+                    throw new DockerException("Invalid Docker node " + node,
+                            e);
+                }
+            }
+            nodes.put(idUrl[0], createNode(idUrl[0], urlMax[0],
+                    URI.create(urlMax[0]).getHost(), maxContainers));
+        }
+        nodePlacement = NodePlacement.fromString(dockerNodePlacement);
+
+        if (nodes.size() > 1) {
+            log.info("Docker nodes: {} (placement {})", nodes.values(),
+                    nodePlacement);
+            healthExecutor = newSingleThreadScheduledExecutor();
+            healthExecutor.scheduleWithFixedDelay(this::checkNodesHealth, 0,
+                    dockerNodeHealthSec, SECONDS);
+        }
+    }
+
+    private void checkNodesHealth() {
+        for (DockerNode node : nodes.values()) {
+            node.checkHealth();
+            try {
+                healthListener.accept(node);
+            } catch (RuntimeException e) {
+                log.warn("Exception after health check of node {}: {}",
+                        node.getId(), e.getMessage());
+            }
+        }
+    }
+
+    @SuppressWarnings("resource")
+    private DockerNode createNode(String id, String url, String hostIp,
+            int maxContainers) {
         DockerCmdExecFactory dockerCmdExecFactory = new JerseyDockerCmdExecFactory()
                 .withMaxPerRouteConnections(dockerMaxRouteConnections);
 
         DockerClientBuilder dockerClientBuilder = DockerClientBuilder
                 .getInstance();
-        if (dockerServerUrl != null && !dockerServerUrl.isEmpty()) {
-            dockerClientBuilder = DockerClientBuilder
-                    .getInstance(dockerServerUrl);
+        if (url != null && !url.isEmpty()) {
+            dockerClientBuilder = DockerClientBuilder.getInstance(url);
         }
-        dockerClient = dockerClientBuilder
+        DockerClient nodeClient = dockerClientBuilder
                 .withDockerCmdExecFactory(dockerCmdExecFactory).build();
+
+        DockerEventsWatcher eventsWatcher = new DockerEventsWatcher(
+                nodeClient, dockerEventsReconnectMs);
+        // Containers can also be removed outside EUS (or by auto-removal)
+        eventsWatcher.setDestroyListener(this::recordApiCalls);
+        eventsWatcher.start();
+
+        DockerImagePuller imagePuller = new DockerImagePuller(nodeClient,
+                meterRegistry, PullPolicy.fromString(dockerPullPolicy),
+                dockerPullPeriodSec, dockerPullPrefetchCount);
+        if (!etInternetDisabled) {
+            imagePuller.start();
+        }
+
+        PortAllocator portAllocator = null;
+        if (!PORT_MODE_DOCKER.equalsIgnoreCase(dockerPortMode)) {
+            portAllocator = PortAllocator.fromRange(dockerPortRange);
+            meterRegistry.gauge("eus.docker.ports.leased",
+                    singletonList(Tag.of("node", id)), portAllocator,
+                    PortAllocator::getLeased);
+        }
+
+        DockerNode node = new DockerNode(id, url, hostIp, maxContainers,
+                nodeClient, eventsWatcher, imagePuller, portAllocator);
+        meterRegistry.gauge("eus.docker.node.containers",
+                singletonList(Tag.of("node", id)), node.getContainers());
+        return node;
     }
 
     @PreDestroy
-    private void teardown() throws IOException {
-        dockerClient.close();
+    private void teardown() {
+        if (healthExecutor != null) {
+            healthExecutor.shutdownNow();
+        }
+        nodes.values().forEach(DockerNode::close);
+    }
+
+    public Collection<DockerNode> getNodes() {
+        return nodes.values();
+    }
+
+    /**
+     * Sets the handler called after each health check of a node (only done
+     * if there are several nodes, every docker.node.health.sec).
+     */
+    public void setHealthListener(Consumer<DockerNode> healthListener) {
+        this.healthListener = healthListener;
+    }
+
+    /**
+     * Chooses the node for a new container (with docker.node.placement),
+     * among the healthy nodes below their capacity, and reserves a slot for
+     * the container in it. The slot is released when the container is
+     * removed, or with {@link #releaseNode(String)} if it is not created.
+     */
+    public String selectNode(String imageId, String containerName) {
+        if (nodes.size() == 1) {
+            registerContainer(containerName, localNode);
+            return LOCAL;
+        }
+        while (true) {
+            DockerNode node = nodePlacement.select(nodes.values(), imageId)
+                    .orElseThrow(() -> new DockerException(
+                            "No Docker node available for " + imageId));
+            // Another container may have taken the last slot meanwhile
+            if (node.tryReserve()) {
+                if (containerNodes.putIfAbsent(containerName, node) != null) {
+                    node.getContainers().decrementAndGet();
+                }
+                return node.getId();
+            }
+        }
+    }
+
+    /**
+     * Releases the slot reserved by {@link #selectNode(String, String)} for a
+     * container which has not been created.
+     */
+    public void releaseNode(String containerName) {
+        unregisterContainer(containerName);
+    }
+
+    private DockerNode getNode(String nodeId) {
+        if (nodeId == null) {
+            return localNode;
+        }
+        DockerNode node = nodes.get(nodeId);
+        if (node == null) {
+            throw new DockerException("Unknown Docker node " + nodeId);
+        }
+        return node;
+    }
+
+    private DockerNode nodeOf(String containerName) {
+        return containerNodes.getOrDefault(containerName, localNode);
+    }
+
+    private DockerClient client(String containerName) {
+        return nodeOf(containerName).getDockerClient();
+    }
+
+    private DockerEventsWatcher watcher(String containerName) {
+        return nodeOf(containerName).getEventsWatcher();
+    }
+
+    /**
+     * Labels of the containers owned by this EUS instance (i.e. browsers),
+     * so that they can be listed (and reaped if orphaned) filtering in the
+     * Docker daemon.
+     */
+    public Map<String, String> getInstanceLabels() {
+        return singletonMap(EUS_INSTANCE_LABEL, eusInstanceId);
+    }
+
+    public String getNodeId(String containerName) {
+        return nodeOf(containerName).getId();
+    }
+
+    /**
+     * Routes a container to its node, when it has not been started by this
+     * EUS instance (i.e. by another instance, or before a restart). Otherwise
+     * it would be routed to the local node.
+     */
+    public void adoptContainer(String containerName, String nodeId) {
+        registerContainer(containerName, getNode(nodeId));
+    }
+
+    private void registerContainer(String containerName, DockerNode node) {
+        if (containerNodes.putIfAbsent(containerName, node) == null) {
+            node.getContainers().incrementAndGet();
+        }
+    }
+
+    private void unregisterContainer(String containerName) {
+        DockerNode node = containerNodes.remove(containerName);
+        if (node != null) {
+            node.getContainers().decrementAndGet();
+        }
+    }
+
+    /**
+     * IP address to reach the ports published by a container.
+     */
+    public String getHostIp(String containerName) throws IOException {
+        DockerNode node = nodeOf(containerName);
+        return node == localNode ? getDockerServerIp() : node.getHostIp();
     }
 
     public String getDockerServerUrl() {
@@ -183,29 +476,80 @@ public class DockerService {
             throws InterruptedException {
         String containerName = dockerContainer.getContainerName();
         String imageId = dockerContainer.getImageId();
+        DockerNode node = getNode(dockerContainer.getNode().orElse(null));
 
-        if (!isRunningContainer(containerName)) {
-            pullImage(imageId);
-
-            try (CreateContainerCmd createContainer = dockerClient
-                    .createContainerCmd(imageId).withName(containerName)) {
-                handleNetwork(dockerContainer, createContainer);
-                handlePorts(dockerContainer, createContainer);
-                handleVolumes(dockerContainer, createContainer);
-                handleEnvs(dockerContainer, createContainer);
-                handleCmd(dockerContainer, createContainer);
-                handleShm(dockerContainer, createContainer);
+        if (TRUE.equals(node.getEventsWatcher().isRunning(containerName))) {
+            log.warn("Container {} already running", containerName);
+            return;
+        }
+        pullImage(node, imageId);
+        registerContainer(containerName, node);
+        try {
+            createAndStartContainer(dockerContainer, node);
+        } catch (InterruptedException | RuntimeException e) {
+            // Not to count (nor route) a container which is not running
+            unregisterContainer(containerName);
+            throw e;
+        }
+    }
 
-                createContainer.withCapAdd(SYS_ADMIN);
+    private void createAndStartContainer(DockerContainer dockerContainer,
+            DockerNode node) throws InterruptedException {
+        String containerName = dockerContainer.getContainerName();
+        String imageId = dockerContainer.getImageId();
+        DockerClient nodeClient = node.getDockerClient();
+        DockerEventsWatcher eventsWatcher = node.getEventsWatcher();
+
+        try (CreateContainerCmd createContainer = nodeClient
+                .createContainerCmd(imageId).withName(containerName)) {
+            handleNetwork(dockerContainer, createContainer);
+            handlePorts(dockerContainer, createContainer);
+            handleVolumes(dockerContainer, createContainer);
+            handleEnvs(dockerContainer, createContainer);
+            handleCmd(dockerContainer, createContainer);
+            handleShm(dockerContainer, createContainer);
+            handleLabels(dockerContainer, createContainer);
+
+            createContainer.withCapAdd(SYS_ADMIN);
+            try {
+                countApiCall("create", containerName);
                 createContainer.exec();
-                dockerClient.startContainerCmd(containerName).exec();
-                waitForContainer(containerName);
+            } catch (NotFoundException e) {
+                // Image removed since it was seen locally
+                log.debug("Image {} not found, pulling again", imageId);
+                node.getImagePuller().invalidate(imageId);
+                pullImage(node, imageId);
+                countApiCall("create", containerName);
+                createContainer.exec();
+            } catch (ConflictException e) {
+                // The name is in use: the container was already created
+                if (isRunningContainer(containerName)) {
+                    log.warn("Container {} already running", containerName);
+                    return;
+                }
+            }
+
+            // Registered before starting, not to miss the start event
+            CompletableFuture<Boolean> ready = eventsWatcher
+                    .expect(containerName);
+            try {
+                countApiCall("start", containerName);
+                nodeClient.startContainerCmd(containerName).exec();
+                waitForContainer(containerName, ready);
+            } finally {
+                eventsWatcher.forget(containerName);
             }
-        } else {
-            log.warn("Container {} already running", containerName);
         }
     }
 
+    private void handleLabels(DockerContainer dockerContainer,
+            CreateContainerCmd createContainer) {
+        Map<String, String> labels = new HashMap<>();
+        dockerContainer.getLabels().ifPresent(labels::putAll);
+        log.trace("Using labels {}", labels);
+        createContainer.withLabels(labels);
+    }
+
     private void handleShm(DockerContainer dockerContainer,
             CreateContainerCmd createContainer) {
         Optional<Long> shmSize = dockerContainer.getShmSize();
@@ -279,12 +623,15 @@ public class DockerService {
         }
     }
 
-    public void pullImage(String imageId) {
+    public void pullImage(String imageId) throws InterruptedException {
+        pullImage(localNode, imageId);
+    }
+
+    private void pullImage(DockerNode node, String imageId)
+            throws InterruptedException {
         if (!etInternetDisabled) {
-            log.info("Pulling Docker image {} ... please wait", imageId);
-            dockerClient.pullImageCmd(imageId)
-                    .exec(new PullImageResultCallback()).awaitSuccess();
-            log.debug("Docker image {} downloaded", imageId);
+            // Depending on the pull policy, local images are reused
+            node.getImagePuller().pull(imageId);
         }
     }
 
@@ -301,28 +648,67 @@ public class DockerService {
         return exists;
     }
 
+    /**
+     * Id (digest) of an image in a Docker node, or null if the image is not
+     * there.
+     */
+    public String getImageDigest(String imageId, String nodeId) {
+        try {
+            return getNode(nodeId).getDockerClient().inspectImageCmd(imageId)
+                    .exec().getId();
+        } catch (NotFoundException e) {
+            log.trace("Image {} does not exist", imageId);
+            return null;
+        }
+    }
+
+    /**
+     * Stops and removes a container without inspecting it first (a container
+     * already stopped or removed is not an error).
+     */
     public void stopAndRemoveContainer(String containerName) {
         log.debug("Stop and remove container {}", containerName);
-        stopContainer(containerName);
-        removeContainer(containerName);
+        if (stopContainer(containerName)) {
+            removeContainer(containerName);
+        }
+        unregisterContainer(containerName);
+        recordApiCalls(containerName);
     }
 
-    public void stopContainer(String containerName) {
-        if (isRunningContainer(containerName)) {
+    /**
+     * Stops a container. It returns false if the container does not exist.
+     */
+    public boolean stopContainer(String containerName) {
+        if (FALSE.equals(watcher(containerName).isRunning(containerName))) {
+            log.debug("Container {} is not running", containerName);
+            return true;
+        }
+        try {
             log.trace("Stopping container {}", containerName);
-            dockerClient.stopContainerCmd(containerName).exec();
-
-        } else {
+            countApiCall("stop", containerName);
+            client(containerName).stopContainerCmd(containerName).exec();
+        } catch (NotModifiedException e) {
             log.debug("Container {} is not running", containerName);
+        } catch (NotFoundException e) {
+            log.debug("Container {} does not exist", containerName);
+            watcher(containerName).evictState(containerName);
+            return false;
         }
+        return true;
     }
 
     public void removeContainer(String containerName) {
-        if (existsContainer(containerName)) {
+        try {
             log.trace("Removing container {}", containerName);
-            dockerClient.removeContainerCmd(containerName).withForce(true)
+            countApiCall("remove", containerName);
+            client(containerName).removeContainerCmd(containerName)
+                    .withForce(true)
                     .withRemoveVolumes(true).exec();
+        } catch (NotFoundException e) {
+            log.trace("Container {} already removed", containerName);
         }
+        watcher(containerName).evictState(containerName);
+        recordApiCalls(containerName);
     }
 
     public String execCommand(String containerName, boolean awaitCompletion,
@@ -335,45 +721,53 @@ public class DockerService {
         log.trace("Executing command {} in container {} (await completion {})",
                 commandStr, containerName, awaitCompletion);
 
-        if (existsContainer(containerName)) {
-            ExecCreateCmdResponse exec = dockerClient
-                    .execCreateCmd(containerName).withCmd(command).withTty(true)
-                    .withAttachStdin(true).withAttachStdout(true)
+        ExecCreateCmdResponse exec;
+        try {
+            countApiCall("exec", containerName);
+            exec = client(containerName).execCreateCmd(containerName)
+                    .withCmd(command)
+                    .withTty(true).withAttachStdin(true).withAttachStdout(true)
                     .withAttachStderr(true).exec();
+        } catch (NotFoundException e) {
+            log.debug("Container {} does not exist", containerName);
+            return output;
+        }
 
-            log.trace("Command executed. Exec id: {}", exec.getId());
-            OutputStream outputStream = new ByteArrayOutputStream();
-            try (ExecStartResultCallback startResultCallback = dockerClient
-                    .execStartCmd(exec.getId()).withDetach(false).withTty(true)
-                    .exec(new ExecStartResultCallback(outputStream,
-                            outputStream))) {
-
-                if (awaitCompletion) {
-                    startResultCallback.awaitCompletion();
-                }
-                output = outputStream.toString();
-
-            } finally {
-                log.trace("Callback terminated. Result: {}", output);
+        log.trace("Command executed. Exec id: {}", exec.getId());
+        OutputStream outputStream = new ByteArrayOutputStream();
+        countApiCall("exec", containerName);
+        try (ExecStartResultCallback startResultCallback = client(
+                containerName).execStartCmd(exec.getId()).withDetach(false)
+                        .withTty(true)
+                        .exec(new ExecStartResultCallback(outputStream,
+                                outputStream))) {
+
+            if (awaitCompletion) {
+                startResultCallback.awaitCompletion();
             }
+            output = outputStream.toString();
+
+        } finally {
+            log.trace("Callback terminated. Result: {}", output);
         }
         return output;
     }
 
     public void copyFileFromContainer(String containerName,
             String containerFile, String hostFolder) throws IOException {
-        if (existsContainer(containerName)) {
-            log.trace("Copying {} from container {} to host folder {}",
-                    containerFile, containerName, hostFolder);
-
-            try (TarArchiveInputStream tarStream = new TarArchiveInputStream(
-                    dockerClient.copyArchiveFromContainerCmd(containerName,
-                            containerFile).exec())) {
-                unTar(tarStream, new File(hostFolder));
-            } catch (Exception e) {
-                log.warn("Exception getting tar file from container {}",
-                        e.getMessage());
-            }
+        log.trace("Copying {} from container {} to host folder {}",
+                containerFile, containerName, hostFolder);
+        countApiCall("copy", containerName);
+        try (TarArchiveInputStream tarStream = new TarArchiveInputStream(
+                client(containerName).copyArchiveFromContainerCmd(containerName,
+                        containerFile).exec())) {
+            unTar(tarStream, new File(hostFolder));
+        } catch (NotFoundException e) {
+            log.debug("Container {} or file {} does not exist", containerName,
+                    containerFile);
+        } catch (Exception e) {
+            log.warn("Exception getting tar file from container {}",
+                    e.getMessage());
         }
     }
 
@@ -412,54 +806,171 @@ public class DockerService {
 
     public void waitForContainer(String containerName)
             throws InterruptedException {
-        boolean isRunning = false;
+        DockerEventsWatcher eventsWatcher = watcher(containerName);
+        CompletableFuture<Boolean> ready = eventsWatcher.expect(containerName);
+        try {
+            waitForContainer(containerName, ready);
+        } finally {
+            eventsWatcher.forget(containerName);
+        }
+    }
+
+    private void waitForContainer(String containerName,
+            CompletableFuture<Boolean> ready) throws InterruptedException {
         long timeoutMs = currentTimeMillis()
                 + SECONDS.toMillis(dockerWaitTimeoutSec);
-        do {
-            isRunning = isRunningContainer(containerName);
-            if (!isRunning) {
-                // Check timeout
+        long backoffMs = dockerPollInitialTimeMs;
+        while (true) {
+            try {
+                // Completed by the Docker events stream (start, die)
+                ready.get(backoffMs, MILLISECONDS);
+                log.trace("Container {} is running", containerName);
+                return;
+
+            } catch (ExecutionException e) {
+                throw new DockerException(e.getCause().getMessage(),
+                        e.getCause());
+
+            } catch (TimeoutException e) {
+                // Events can be missed (e.g. the container was already
+                // running, or the events stream is reconnecting), and so
+                // the state is checked with an increasing backoff
+                if (isRunningContainer(containerName)) {
+                    return;
+                }
                 if (currentTimeMillis() > timeoutMs) {
                     throw new DockerException(
                             "Timeout of " + dockerWaitTimeoutSec
                                     + " seconds waiting for container "
                                     + containerName);
                 }
-
-                // Wait poll time
                 log.trace("Container {} is not still running ... waiting {} ms",
-                        containerName, dockerPollTimeMs);
-                sleep(dockerPollTimeMs);
-
+                        containerName, backoffMs);
+                backoffMs = Math.min(backoffMs * 2, dockerPollTimeMs);
             }
-        } while (!isRunning);
+        }
     }
 
     public boolean isRunningContainer(String containerName) {
+        DockerEventsWatcher eventsWatcher = watcher(containerName);
+        Boolean cachedRunning = eventsWatcher.isRunning(containerName);
+        if (cachedRunning != null) {
+            return cachedRunning;
+        }
+
         boolean isRunning = false;
-        if (existsContainer(containerName)) {
-            isRunning = dockerClient.inspectContainerCmd(containerName).exec()
-                    .getState().getRunning();
+        try {
+            countApiCall("inspect", containerName);
+            isRunning = TRUE.equals(client(containerName)
+                    .inspectContainerCmd(containerName).exec().getState()
+                    .getRunning());
             log.trace("Container {} is running: {}", containerName, isRunning);
-        }
+            eventsWatcher.cacheState(containerName, isRunning);
 
+        } catch (NotFoundException e) {
+            log.trace("Container {} does not exist", containerName);
+            apiCalls.remove(containerName);
+        }
         return isRunning;
     }
 
     public boolean existsContainer(String containerName) {
+        DockerEventsWatcher eventsWatcher = watcher(containerName);
+        if (eventsWatcher.isRunning(containerName) != null) {
+            return true;
+        }
+
         boolean exists = true;
         try {
             log.trace("Checking if container {} exists", containerName);
-            dockerClient.inspectContainerCmd(containerName).exec();
+            countApiCall("inspect", containerName);
+            Boolean running = client(containerName)
+                    .inspectContainerCmd(containerName)
+                    .exec().getState().getRunning();
             log.trace("Container {} already exist", containerName);
+            eventsWatcher.cacheState(containerName, TRUE.equals(running));
 
         } catch (NotFoundException e) {
             log.trace("Container {} does not exist", containerName);
+            apiCalls.remove(containerName);
             exists = false;
         }
         return exists;
     }
 
+    public Info getDockerInfo(String nodeId) {
+        meterRegistry.counter("eus.docker.api.calls", "operation", "info")
+                .increment();
+        return getNode(nodeId).getDockerClient().infoCmd().exec();
+    }
+
+    /**
+     * Containers (running or not) started by this EUS instance, or whose name
+     * starts with the given prefix (if not empty).
+     */
+    public List<Container> listEusContainers(String namePrefix) {
+        List<Container> containers = new ArrayList<>();
+        for (DockerNode node : nodes.values()) {
+            if (node.isHealthy()) {
+                for (Container container : listEusContainers(node,
+                        namePrefix)) {
+                    // Removals are routed to the node of the container
+                    stream(container.getNames()).findFirst()
+                            .ifPresent(name -> registerContainer(
+                                    name.substring(1), node));
+                    containers.add(container);
+                }
+            }
+        }
+        return containers;
+    }
+
+    private List<Container> listEusContainers(DockerNode node,
+            String namePrefix) {
+        DockerClient nodeClient = node.getDockerClient();
+        meterRegistry.counter("eus.docker.api.calls", "operation", "list")
+                .increment();
+        List<Container> containers = new ArrayList<>(
+                nodeClient.listContainersCmd().withShowAll(true)
+                        .withLabelFilter(getInstanceLabels())
+                        .exec());
+
+        if (namePrefix != null && !namePrefix.isEmpty()) {
+            meterRegistry.counter("eus.docker.api.calls", "operation", "list")
+                    .increment();
+            Set<String> ids = containers.stream().map(Container::getId)
+                    .collect(toSet());
+            nodeClient.listContainersCmd().withShowAll(true)
+                    .withNameFilter(singletonList(namePrefix)).exec().stream()
+                    .filter(container -> !ids.contains(container.getId())
+                            && stream(container.getNames()).anyMatch(
+                                    name -> name.startsWith("/" + namePrefix)))
+                    .forEach(containers::add);
+        }
+        return containers;
+    }
+
+    private void countApiCall(String operation, String containerName) {
+        meterRegistry.counter("eus.docker.api.calls", "operation", operation)
+                .increment();
+        apiCalls.computeIfAbsent(containerName, k -> new AtomicInteger())
+                .incrementAndGet();
+    }
+
+    /**
+     * Records the API calls of a container once it is removed. It is called
+     * by EUS removals and by destroy events, so that the calls of containers
+     * removed otherwise are not kept forever.
+     */
+    private void recordApiCalls(String containerName) {
+        AtomicInteger calls = apiCalls.remove(containerName);
+        if (calls != null) {
+            apiCallsPerContainer.record(calls.get());
+            log.trace("Docker API calls for container {}: {}", containerName,
+                    calls.get());
+        }
+    }
+
     public void waitForHostIsReachable(String url) {
         long timeoutMillis = MILLISECONDS.convert(dockerWaitTimeoutSec,
                 SECONDS);
@@ -509,13 +1020,36 @@ public class DockerService {
 
     }
 
+    /**
+     * Single probe of a URL, which is reachable if it responds 200 OK within
+     * the given timeout.
+     */
+    public boolean isUrlReachable(String url, int timeoutMs) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(timeoutMs);
+            connection.setReadTimeout(timeoutMs);
+            connection.setRequestMethod("GET");
+            return connection.getResponseCode() == HTTP_OK;
+        } catch (IOException e) {
+            log.trace("URL {} not reachable: {}", url, e.getMessage());
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
     private void waitUrl(String url, long timeoutMillis, long endTimeMillis,
             String errorMessage) throws IOException, InterruptedException {
         int responseCode = 0;
+        long backoffMs = dockerPollInitialTimeMs;
         while (true) {
+            HttpURLConnection connection = null;
             try {
-                HttpURLConnection connection = (HttpURLConnection) new URL(url)
-                        .openConnection();
+                connection = (HttpURLConnection) new URL(url).openConnection();
                 connection.setConnectTimeout((int) timeoutMillis);
                 connection.setReadTimeout((int) timeoutMillis);
                 connection.setRequestMethod("GET");
@@ -527,21 +1061,26 @@ public class DockerService {
                 } else {
                     log.trace(
                             "URL {} not reachable (response {}). Trying again in {} ms",
-                            url, responseCode, dockerPollTimeMs);
+                            url, responseCode, backoffMs);
                 }
 
             } catch (SSLHandshakeException | SocketException e) {
                 log.trace("Error {} waiting URL {}, trying again in {} ms",
-                        e.getMessage(), url, dockerPollTimeMs);
+                        e.getMessage(), url, backoffMs);
 
             } finally {
-                // Polling to wait a consistent state
-                sleep(dockerPollTimeMs);
+                if (connection != null) {
+                    connection.disconnect();
+                }
             }
 
             if (currentTimeMillis() > endTimeMillis) {
                 throw new DockerException(errorMessage);
             }
+
+            // Only wait (with increasing backoff) between failed probes
+            sleep(backoffMs);
+            backoffMs = Math.min(backoffMs * 2, dockerPollTimeMs);
         }
     }
 
@@ -549,6 +1088,72 @@ public class DockerService {
         return prefix + randomUUID().toString();
     }
 
+    /**
+     * Leases a host port from docker.port.range. In docker port mode, it
+     * returns 0, i.e. the host port is assigned by Docker when the container
+     * starts (see {@link #resolveHostPort(String, int, int)}).
+     */
+    public int allocatePort() {
+        return allocatePort(LOCAL);
+    }
+
+    public int allocatePort(String nodeId) {
+        return allocatePort(nodeId, null);
+    }
+
+    /**
+     * Leases a host port for a container, so that the ports it still holds
+     * can be released with {@link #releaseContainerPorts(String, String)}.
+     */
+    public int allocatePort(String nodeId, String containerName) {
+        PortAllocator portAllocator = getNode(nodeId).getPortAllocator();
+        return portAllocator != null ? portAllocator.allocate(containerName)
+                : 0;
+    }
+
+    public void releasePort(int port) {
+        releasePort(LOCAL, port);
+    }
+
+    public void releasePort(String nodeId, int port) {
+        PortAllocator portAllocator = getNode(nodeId).getPortAllocator();
+        if (portAllocator != null && port > 0) {
+            portAllocator.release(port);
+        }
+    }
+
+    public void releaseContainerPorts(String nodeId, String containerName) {
+        PortAllocator portAllocator = getNode(nodeId).getPortAllocator();
+        if (portAllocator != null) {
+            portAllocator.releaseAll(containerName);
+        }
+    }
+
+    public Binding bindHostPort(int port) {
+        return port > 0 ? bindPort(port) : Binding.empty();
+    }
+
+    /**
+     * Host port bound to an exposed port of a container: the allocated one,
+     * or the one assigned by Docker (read from inspect).
+     */
+    public int resolveHostPort(String containerName, int port,
+            int exposedPort) {
+        if (port > 0) {
+            return port;
+        }
+        countApiCall("inspect", containerName);
+        Binding[] bindings = client(containerName)
+                .inspectContainerCmd(containerName)
+                .exec().getNetworkSettings().getPorts().getBindings()
+                .get(tcp(exposedPort));
+        if (bindings == null || bindings.length == 0) {
+            throw new DockerException("Port " + exposedPort
+                    + " not bound in container " + containerName);
+        }
+        return Integer.parseInt(bindings[0].getHostPortSpec());
+    }
+
     public int findRandomOpenPort() throws IOException {
         try (ServerSocket socket = new ServerSocket(0)) {
             return socket.getLocalPort();
@@ -561,7 +1166,7 @@ public class DockerService {
         if (IS_OS_WINDOWS) {
             ipAddress = getDockerServerIp();
         } else {
-            Map<String, ContainerNetwork> networks = dockerClient
+            Map<String, ContainerNetwork> networks = client(containerName)
                     .inspectContainerCmd(containerName).exec()
                     .getNetworkSettings().getNetworks();
             ipAddress = networks.values().iterator().next().getIpAddress();
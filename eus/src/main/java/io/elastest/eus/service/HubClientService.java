@@ -0,0 +1,336 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static java.lang.System.nanoTime;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestTemplate;
+
+import io.elastest.eus.EusException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Pooled HTTP clients used to proxy WebDriver commands to browser hubs. A
+ * connection pool (with keep-alive) is kept per hub URL and released when the
+ * session is deleted. Requests to a released hub fail (instead of creating
+ * its pool again) until a new session is created on it. Idle and expired
+ * connections of every pool are evicted by a single background task.
+ *
+ * @since 0.9.1
+ */
+@Service
+public class HubClientService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    @Value("${hub.client.max.per.route}")
+    private int hubClientMaxPerRoute;
+
+    @Value("${hub.client.idle.timeout.sec}")
+    private int hubClientIdleTimeoutSec;
+
+    @Value("${create.session.timeout.sec}")
+    private int createSessionTimeoutSec;
+
+    private Map<String, HubClient> hubClients = new ConcurrentHashMap<>();
+    // Hub URLs whose client has been released (a hub URL can be used again
+    // by a new browser, since its host port is leased again)
+    private Set<String> releasedHubs = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService evictionExecutor;
+
+    private MeterRegistry meterRegistry;
+    private Counter connectionHits;
+    private Counter connectionMisses;
+    private Timer leaseWait;
+
+    @Autowired
+    public HubClientService(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        connectionHits = meterRegistry.counter("eus.hub.client.connections",
+                "result", "hit");
+        connectionMisses = meterRegistry
+                .counter("eus.hub.client.connections", "result", "miss");
+        leaseWait = Timer.builder("eus.hub.client.lease.wait")
+                .description("Time waiting to lease a connection to a hub")
+                .register(meterRegistry);
+        meterRegistry.gauge("eus.hub.client.pools", hubClients, Map::size);
+        if (hubClientIdleTimeoutSec > 0) {
+            evictionExecutor = newSingleThreadScheduledExecutor();
+            evictionExecutor.scheduleWithFixedDelay(this::evictConnections,
+                    hubClientIdleTimeoutSec, hubClientIdleTimeoutSec, SECONDS);
+        }
+        meterRegistry.gauge("eus.hub.client.leased", hubClients,
+                clients -> clients.values().stream()
+                        .mapToInt(c -> c.connectionManager.getTotalStats()
+                                .getLeased())
+                        .sum());
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        if (evictionExecutor != null) {
+            evictionExecutor.shutdownNow();
+        }
+        hubClients.keySet().forEach(this::releaseHubClient);
+    }
+
+    private void evictConnections() {
+        for (HubClient hubClient : hubClients.values()) {
+            try {
+                hubClient.connectionManager.closeExpiredConnections();
+                hubClient.connectionManager.closeIdleConnections(
+                        hubClientIdleTimeoutSec, SECONDS);
+            } catch (Exception e) {
+                log.debug("Exception evicting idle connections: {}",
+                        e.getMessage());
+            }
+        }
+    }
+
+    public ResponseEntity<String> exchange(String hubUrl, String url,
+            HttpMethod method, HttpEntity<?> httpEntity,
+            boolean isCreateSession) {
+        return getRestTemplate(hubUrl, isCreateSession).exchange(url, method,
+                httpEntity, String.class);
+    }
+
+    /**
+     * Sends a request to the hub without reading the response body. The
+     * returned response must be closed to release the connection.
+     */
+    public ClientHttpResponse executeStreaming(String hubUrl, String url,
+            HttpMethod method, HttpEntity<String> httpEntity)
+            throws IOException {
+        ClientHttpRequest request = getHubClient(hubUrl, false).requestFactory
+                .createRequest(URI.create(url), method);
+        request.getHeaders().putAll(httpEntity.getHeaders());
+        if (httpEntity.getBody() != null) {
+            request.getBody().write(httpEntity.getBody().getBytes(UTF_8));
+        }
+        return request.execute();
+    }
+
+    public RestTemplate getRestTemplate(String hubUrl,
+            boolean isCreateSession) {
+        HubClient hubClient = getHubClient(hubUrl, isCreateSession);
+        return isCreateSession ? hubClient.createSessionRestTemplate
+                : hubClient.restTemplate;
+    }
+
+    /**
+     * Rest template of a hub, only if its client has not been released (i.e.
+     * it is not created again for background tasks of deleted sessions).
+     */
+    public Optional<RestTemplate> findRestTemplate(String hubUrl) {
+        return Optional.ofNullable(hubClients.get(hubUrl))
+                .map(hubClient -> hubClient.restTemplate);
+    }
+
+    private HubClient getHubClient(String hubUrl, boolean isCreateSession) {
+        if (isCreateSession) {
+            releasedHubs.remove(hubUrl);
+        }
+        return hubClients.computeIfAbsent(hubUrl, url -> {
+            // Checked within the computation, which is atomic with respect to
+            // the removal of the client when it is released
+            if (releasedHubs.contains(url)) {
+                throw new EusException("Client of hub " + url
+                        + " already released (session deleted)");
+            }
+            return new HubClient(url);
+        });
+    }
+
+    public void releaseHubClient(String hubUrl) {
+        if (hubUrl == null) {
+            return;
+        }
+        releasedHubs.add(hubUrl);
+        HubClient hubClient = hubClients.remove(hubUrl);
+        if (hubClient != null) {
+            log.debug("Releasing connection pool for hub {}", hubUrl);
+            try {
+                hubClient.httpClient.close();
+            } catch (IOException e) {
+                log.warn("Exception closing connection pool of hub {}",
+                        hubUrl, e);
+            }
+        }
+    }
+
+    private class HubClient {
+        PoolingHttpClientConnectionManager connectionManager;
+        CloseableHttpClient httpClient;
+        HttpComponentsClientHttpRequestFactory requestFactory;
+        RestTemplate restTemplate;
+        RestTemplate createSessionRestTemplate;
+
+        HubClient(String hubUrl) {
+            log.debug("Creating connection pool for hub {}", hubUrl);
+            connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setDefaultMaxPerRoute(hubClientMaxPerRoute);
+            connectionManager.setMaxTotal(hubClientMaxPerRoute);
+
+            httpClient = HttpClients.custom()
+                    .setConnectionManager(
+                            new InstrumentedConnectionManager(
+                                    connectionManager))
+                    .build();
+
+            // Both templates share the same pool, timeouts are applied per
+            // request (by means of the request config of each factory)
+            requestFactory = new HttpComponentsClientHttpRequestFactory(
+                    httpClient);
+            restTemplate = new RestTemplate(requestFactory);
+
+            HttpComponentsClientHttpRequestFactory createSessionFactory = new HttpComponentsClientHttpRequestFactory(
+                    httpClient);
+            int timeoutMillis = (int) SECONDS.toMillis(createSessionTimeoutSec);
+            createSessionFactory.setConnectTimeout(timeoutMillis);
+            createSessionFactory.setConnectionRequestTimeout(timeoutMillis);
+            createSessionFactory.setReadTimeout(timeoutMillis);
+            createSessionRestTemplate = new RestTemplate(createSessionFactory);
+        }
+    }
+
+    private class InstrumentedConnectionManager
+            implements HttpClientConnectionManager {
+
+        private HttpClientConnectionManager delegate;
+
+        InstrumentedConnectionManager(HttpClientConnectionManager delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route,
+                Object state) {
+            ConnectionRequest connectionRequest = delegate
+                    .requestConnection(route, state);
+            return new ConnectionRequest() {
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit tunit)
+                        throws InterruptedException, ExecutionException,
+                        ConnectionPoolTimeoutException {
+                    long start = nanoTime();
+                    try {
+                        HttpClientConnection connection = connectionRequest
+                                .get(timeout, tunit);
+                        if (connection.isOpen()) {
+                            connectionHits.increment();
+                        } else {
+                            connectionMisses.increment();
+                        }
+                        return connection;
+                    } finally {
+                        leaseWait.record(nanoTime() - start, NANOSECONDS);
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    return connectionRequest.cancel();
+                }
+            };
+        }
+
+        @Override
+        public void releaseConnection(HttpClientConnection conn,
+                Object newState, long validDuration, TimeUnit timeUnit) {
+            delegate.releaseConnection(conn, newState, validDuration,
+                    timeUnit);
+        }
+
+        @Override
+        public void connect(HttpClientConnection conn, HttpRoute route,
+                int connectTimeout, HttpContext context) throws IOException {
+            delegate.connect(conn, route, connectTimeout, context);
+        }
+
+        @Override
+        public void upgrade(HttpClientConnection conn, HttpRoute route,
+                HttpContext context) throws IOException {
+            delegate.upgrade(conn, route, context);
+        }
+
+        @Override
+        public void routeComplete(HttpClientConnection conn, HttpRoute route,
+                HttpContext context) throws IOException {
+            delegate.routeComplete(conn, route, context);
+        }
+
+        @Override
+        public void closeIdleConnections(long idletime, TimeUnit tunit) {
+            delegate.closeIdleConnections(idletime, tunit);
+        }
+
+        @Override
+        public void closeExpiredConnections() {
+            delegate.closeExpiredConnections();
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+    }
+
+}
@@ -16,19 +16,39 @@
  */
 package io.elastest.eus.service;
 
+import static com.fasterxml.jackson.core.JsonGenerator.Feature.AUTO_CLOSE_TARGET;
+import static com.fasterxml.jackson.core.JsonToken.END_OBJECT;
+import static com.fasterxml.jackson.core.JsonToken.FIELD_NAME;
+import static com.fasterxml.jackson.core.JsonToken.START_OBJECT;
 import static java.lang.invoke.MethodHandles.lookup;
 import static net.thisptr.jackson.jq.JsonQuery.compile;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.springframework.stereotype.Service;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.CountingOutputStream;
 
+import io.elastest.eus.json.SessionCapabilities;
 import net.thisptr.jackson.jq.JsonQuery;
 
 /**
@@ -42,15 +62,48 @@ public class JsonService {
 
     final Logger log = getLogger(lookup().lookupClass());
 
+    // Mapper, readers and writer are thread-safe once configured, and so
+    // they are shared instead of being created per call
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private ObjectWriter objectWriter = objectMapper.writer();
+    private Map<Class<?>, ObjectReader> objectReaders = new ConcurrentHashMap<>();
+
+    // jq expression -> compiled query (JsonQuery is immutable)
+    private Map<String, JsonQuery> compiledQueries = new ConcurrentHashMap<>();
+
     public String objectToJson(Object object) throws JsonProcessingException {
-        ObjectMapper mapper = new ObjectMapper();
-        return mapper.writeValueAsString(object);
+        return objectWriter.writeValueAsString(object);
+    }
+
+    /**
+     * Adds a numeric field at the beginning of a serialized JSON object,
+     * without parsing it again.
+     */
+    public String prependField(String jsonObject, String field, long value)
+            throws JsonProcessingException {
+        String prefix = "{" + objectWriter.writeValueAsString(field) + ":"
+                + value;
+        String members = jsonObject.substring(1).trim();
+        return members.startsWith("}") ? prefix + members
+                : prefix + "," + members;
     }
 
     public <T> T jsonToObject(String json, Class<T> valueType)
             throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        return mapper.readValue(json, valueType);
+        return objectReaders
+                .computeIfAbsent(valueType, objectMapper::readerFor)
+                .readValue(json);
+    }
+
+    public JsonNode readTree(String json) throws IOException {
+        return objectMapper.readTree(json);
+    }
+
+    public SessionCapabilities parseCapabilities(JsonNode request) {
+        SessionCapabilities capabilities = SessionCapabilities
+                .fromJson(request);
+        log.trace("Session capabilities: {}", capabilities);
+        return capabilities;
     }
 
     public String sanitizeMessage(String message) {
@@ -70,14 +123,127 @@ public class JsonService {
     }
 
     public String processJsonWithJq(String json, String jq) throws IOException {
+        return pipeline(json).jq(jq).toJson();
+    }
+
+    /**
+     * Parses the JSON document once, so that several transformations can be
+     * applied to the same tree before serializing it again.
+     */
+    public JsonPipeline pipeline(String json) throws IOException {
         log.debug("JSON message before processing: {}", json);
-        log.debug("jq command: {}", jq);
-        ObjectMapper objectMapper = new ObjectMapper();
-        JsonNode input = objectMapper.readTree(json);
-        JsonQuery jsonQuery = compile(jq);
-        String result = jsonQuery.apply(input).iterator().next().toString();
-        log.debug("JSON message after processing: {}", result);
-        return result;
+        return pipeline(readTree(json));
+    }
+
+    public JsonPipeline pipeline(JsonNode tree) {
+        // jq does not modify its input, so the tree can be shared
+        return new JsonPipeline(tree);
+    }
+
+    /**
+     * Adds a field to every object of the JSON document (the root and the
+     * nested ones, also within arrays), as the jq walk it replaces. The
+     * value of an existing field is replaced.
+     */
+    public String addField(String json, String field, String value)
+            throws IOException {
+        if (json == null || json.trim().isEmpty()) {
+            return json;
+        }
+        JsonNode root = objectMapper.readTree(json);
+        addField(root, field, value);
+        return objectWriter.writeValueAsString(root);
+    }
+
+    private void addField(JsonNode node, String field, String value) {
+        if (node.isContainerNode()) {
+            for (JsonNode child : node) {
+                addField(child, field, value);
+            }
+        }
+        if (node.isObject()) {
+            ((ObjectNode) node).put(field, value);
+        }
+    }
+
+    /**
+     * Copies a JSON document adding a field to every object, token by token
+     * instead of reading the whole document in memory. The output is the same
+     * as the one of {@link #addField(String, String, String)}.
+     *
+     * @return number of bytes written to the output
+     */
+    public long copyAddingField(InputStream in, OutputStream out,
+            String field, String value) throws IOException {
+        CountingOutputStream output = new CountingOutputStream(out);
+        JsonFactory factory = objectMapper.getFactory();
+        try (JsonParser parser = factory.createParser(in);
+                JsonGenerator generator = factory.createGenerator(output)
+                        .disable(AUTO_CLOSE_TARGET)) {
+            // Objects being copied: whether the field is already written
+            Deque<Boolean> written = new ArrayDeque<>();
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == START_OBJECT) {
+                    written.push(false);
+                    generator.writeStartObject();
+                } else if (token == END_OBJECT) {
+                    if (!written.pop()) {
+                        generator.writeStringField(field, value);
+                    }
+                    generator.writeEndObject();
+                } else if (token == FIELD_NAME
+                        && field.equals(parser.getCurrentName())) {
+                    // Existing value replaced in place
+                    parser.nextToken();
+                    parser.skipChildren();
+                    generator.writeStringField(field, value);
+                    written.pop();
+                    written.push(true);
+                } else {
+                    generator.copyCurrentEvent(parser);
+                }
+            }
+        }
+        return output.getCount();
+    }
+
+    private JsonQuery getQuery(String jq) throws IOException {
+        try {
+            return compiledQueries.computeIfAbsent(jq, key -> {
+                try {
+                    return compile(key);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public class JsonPipeline {
+        private JsonNode tree;
+
+        JsonPipeline(JsonNode tree) {
+            this.tree = tree;
+        }
+
+        public JsonPipeline jq(String jq) throws IOException {
+            log.debug("jq command: {}", jq);
+            tree = getQuery(jq).apply(tree).iterator().next();
+            return this;
+        }
+
+        public JsonNode getTree() {
+            return tree;
+        }
+
+        public String toJson() throws JsonProcessingException {
+            String result = objectWriter.writeValueAsString(tree);
+            log.debug("JSON message after processing: {}", result);
+            return result;
+        }
     }
 
 }
@@ -16,27 +16,56 @@
  */
 package io.elastest.eus.service;
 
+import static java.lang.System.nanoTime;
 import static java.lang.invoke.MethodHandles.lookup;
-import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.slf4j.LoggerFactory.getLogger;
 
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import com.fasterxml.jackson.core.JsonFactory;
+
+import io.elastest.eus.json.ConsoleLogWriter;
+import io.elastest.eus.json.WebDriverLog;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
 /**
- * Logstash service.
+ * Logstash service. Browser console entries are enqueued in a bounded queue
+ * and shipped in batches (one request per component) by a sender thread,
+ * using a keep-alive connection.
  *
  * @since 0.5.0-alpha2
  */
 @Service
 public class LogstashService {
 
+    static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+
     @Value("${et.mon.lshttps.api:#{null}}")
     private String lsSSLHttpApi;
 
@@ -49,8 +78,112 @@ public class LogstashService {
     @Value("${et.browser.component.prefix}")
     private String etBrowserComponentPrefix;
 
+    @Value("${logstash.queue.size}")
+    private int logstashQueueSize;
+
+    @Value("${logstash.batch.size}")
+    private int logstashBatchSize;
+
+    @Value("${logstash.batch.max.delay.ms}")
+    private int logstashBatchMaxDelayMs;
+
+    @Value("${logstash.overflow.policy}")
+    private String logstashOverflowPolicy;
+
+    @Value("${logstash.gzip}")
+    private boolean logstashGzip;
+
+    @Value("${logstash.structured}")
+    private boolean logstashStructured;
+
     final Logger log = getLogger(lookup().lookupClass());
 
+    private BlockingQueue<LogEntry> queue;
+    private ExecutorService senderExecutor;
+    private CloseableHttpClient httpClient;
+    private JsonFactory jsonFactory = new JsonFactory();
+    private ConsoleLogWriter batchWriter;
+    private volatile boolean running;
+
+    private MeterRegistry meterRegistry;
+    private Counter queuedEntries;
+    private Counter droppedEntries;
+    private Counter sentEntries;
+    private Counter failedEntries;
+
+    @Autowired
+    public LogstashService(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        queuedEntries = meterRegistry.counter("eus.logstash.entries",
+                "result", "queued");
+        droppedEntries = meterRegistry.counter("eus.logstash.entries",
+                "result", "dropped");
+        sentEntries = meterRegistry.counter("eus.logstash.entries", "result",
+                "sent");
+        failedEntries = meterRegistry.counter("eus.logstash.entries",
+                "result", "failed");
+
+        queue = new ArrayBlockingQueue<>(logstashQueueSize);
+        meterRegistry.gauge("eus.logstash.queue.size", queue,
+                BlockingQueue::size);
+
+        // Single route (Logstash), connections are kept alive and reused
+        httpClient = HttpClients.custom().setMaxConnPerRoute(1)
+                .setMaxConnTotal(1).build();
+
+        batchWriter = new ConsoleLogWriter(jsonFactory, logstashStructured);
+        running = true;
+        senderExecutor = newSingleThreadExecutor();
+        senderExecutor.execute(this::sendBatches);
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        running = false;
+        senderExecutor.shutdownNow();
+        try {
+            httpClient.close();
+        } catch (Exception e) {
+            log.trace("Exception closing Logstash client", e);
+        }
+    }
+
+    /**
+     * Enqueues browser console entries to be shipped asynchronously. When the
+     * queue is full, depending on logstash.overflow.policy, the oldest entry
+     * is discarded (drop-oldest) or the caller waits (block).
+     */
+    public void enqueueBrowserConsole(List<WebDriverLog.Value> values,
+            String sessionId) {
+        if (lsSSLHttpApi == null || etMonExec == null) {
+            return;
+        }
+        boolean block = logstashOverflowPolicy.equalsIgnoreCase("block");
+        for (WebDriverLog.Value value : values) {
+            LogEntry entry = new LogEntry(sessionId, value);
+            if (block) {
+                try {
+                    queue.put(entry);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    droppedEntries.increment();
+                    return;
+                }
+            } else {
+                while (!queue.offer(entry)) {
+                    if (queue.poll() != null) {
+                        droppedEntries.increment();
+                    }
+                }
+            }
+            queuedEntries.increment();
+        }
+    }
+
     public void sendBrowserConsoleToLogstash(String jsonMessages,
             String sessionId) {
         log.trace("lsSSLHttpApi: {} etMonExec: {}", lsSSLHttpApi, etMonExec);
@@ -59,60 +192,104 @@ public class LogstashService {
         }
 
         try {
-            URL url = new URL(lsSSLHttpApi);
-
-            URLConnection con = url.openConnection();
-            HttpURLConnection http = (HttpURLConnection) con;
-            http.setRequestMethod("POST");
-            http.setDoOutput(true);
-
-            String component = etBrowserComponentPrefix + sessionId;
-            String body = "{" + "\"component\":\"" + component + "\""
-                    + ",\"exec\":\"" + etMonExec + "\""
-                    + ",\"stream\":\"console\"" + ",\"messages\":"
-                    + jsonMessages + "}";
-            byte[] out = body.getBytes(UTF_8);
+            ConsoleLogWriter writer = new ConsoleLogWriter(jsonFactory,
+                    logstashStructured);
+            int length = writer.writeRaw(etBrowserComponentPrefix + sessionId,
+                    etMonExec, jsonMessages);
             log.debug("Sending browser log to logstash ({}): {}", lsSSLHttpApi,
-                    body);
-            int length = out.length;
-
-            http.setFixedLengthStreamingMode(length);
-            http.setRequestProperty("Content-Type",
-                    "application/json; charset=UTF-8");
-            http.connect();
-            try (OutputStream os = http.getOutputStream()) {
-                os.write(out);
-            }
+                    jsonMessages);
+            post(writer.getBuffer(), length);
         } catch (Exception e) {
             log.error("Exception in send browser console log trace", e);
         }
 
     }
 
-    public String getJsonMessageFromValueList(
-            List<io.elastest.eus.json.WebDriverLog.Value> values) {
-        StringBuilder stringBuilder = new StringBuilder("[");
+    private void post(byte[] body, int length) throws Exception {
+        HttpPost post = new HttpPost(lsSSLHttpApi);
+        post.setHeader("Content-Type", CONTENT_TYPE);
+        HttpEntity entity = new ByteArrayEntity(body, 0, length);
+        post.setEntity(
+                logstashGzip ? new GzipCompressingEntity(entity) : entity);
 
-        int counter = 0;
-        for (io.elastest.eus.json.WebDriverLog.Value value : values) {
-            stringBuilder.append(formatJsonMessage(value.toString()));
-            if (counter < values.size() - 1) {
-                stringBuilder.append(",");
-            } else {
-                stringBuilder.append("]");
+        try (CloseableHttpResponse response = httpClient.execute(post)) {
+            // Consuming the response allows to reuse the connection
+            EntityUtils.consume(response.getEntity());
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode >= 300) {
+                throw new IllegalStateException(
+                        "Logstash responded with status " + statusCode);
             }
-            counter++;
         }
-        return stringBuilder.toString();
     }
 
-    public static String formatJsonMessage(String msg) {
-        return "\"" + parseMsg(msg) + "\"";
+    private void sendBatches() {
+        List<LogEntry> batch = new ArrayList<>(logstashBatchSize);
+        while (running) {
+            try {
+                LogEntry first = queue.poll(logstashBatchMaxDelayMs,
+                        MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = nanoTime()
+                        + MILLISECONDS.toNanos(logstashBatchMaxDelayMs);
+                while (batch.size() < logstashBatchSize) {
+                    queue.drainTo(batch, logstashBatchSize - batch.size());
+                    long remaining = deadline - nanoTime();
+                    if (batch.size() >= logstashBatchSize || remaining <= 0) {
+                        break;
+                    }
+                    LogEntry next = queue.poll(remaining, NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                sendBatch(batch);
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
     }
 
-    public static String parseMsg(String msg) {
-        // replace " to \" only if " is not preceded by \
-        return msg.replaceAll("(?<!\\\\)\\\"", "\\\\\"");
+    private void sendBatch(List<LogEntry> batch) {
+        // Entries are grouped by session, keeping their order
+        Map<String, List<WebDriverLog.Value>> messagesPerSession = new LinkedHashMap<>();
+        for (LogEntry entry : batch) {
+            messagesPerSession
+                    .computeIfAbsent(entry.sessionId, k -> new ArrayList<>())
+                    .add(entry.value);
+        }
+
+        messagesPerSession.forEach((sessionId, messages) -> {
+            try {
+                int length = batchWriter.write(
+                        etBrowserComponentPrefix + sessionId, etMonExec,
+                        messages);
+                post(batchWriter.getBuffer(), length);
+                sentEntries.increment(messages.size());
+            } catch (Exception e) {
+                log.warn("Exception sending {} browser log entries to {}: {}",
+                        messages.size(), lsSSLHttpApi, e.getMessage());
+                failedEntries.increment(messages.size());
+            }
+        });
+    }
+
+    static class LogEntry {
+        final String sessionId;
+        final WebDriverLog.Value value;
+
+        LogEntry(String sessionId, WebDriverLog.Value value) {
+            this.sessionId = sessionId;
+            this.value = value;
+        }
     }
 
 }
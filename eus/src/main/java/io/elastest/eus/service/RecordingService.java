@@ -16,36 +16,73 @@
  */
 package io.elastest.eus.service;
 
+import static io.elastest.eus.docker.DockerNode.LOCAL;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
 import static java.lang.invoke.MethodHandles.lookup;
 import static java.nio.charset.Charset.defaultCharset;
 import static java.nio.file.Files.readAllBytes;
 import static java.nio.file.Paths.get;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Arrays.asList;
 import static java.util.Arrays.stream;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.stream.Collectors.toList;
-import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
 import static org.slf4j.LoggerFactory.getLogger;
+import static org.springframework.http.HttpHeaders.ACCEPT_RANGES;
+import static org.springframework.http.HttpHeaders.CONTENT_RANGE;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
 import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.PARTIAL_CONTENT;
+import static org.springframework.http.HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import io.elastest.eus.EusException;
 import io.elastest.eus.json.WebSocketRecordedSession;
+import io.elastest.eus.json.WebSocketRecordings;
+import io.elastest.eus.json.WebSocketRecordingsQuery;
+import io.elastest.eus.json.WebSocketSessionInfoEntry;
 import io.elastest.eus.session.SessionInfo;
 
 /**
@@ -59,6 +96,12 @@ public class RecordingService {
 
     final Logger log = getLogger(lookup().lookupClass());
 
+    static final MediaType VIDEO_MP4 = MediaType.valueOf("video/mp4");
+    static final String PART_EXTENSION = ".part";
+    static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    static final int PLAYLIST_RETRIES = 3;
+    static final int PLAYLIST_FILES_AWAITED = 2;
+
     @Value("${registry.folder}")
     private String registryFolder;
 
@@ -86,6 +129,42 @@ public class RecordingService {
     @Value("${container.recording.folder}")
     private String containerRecordingFolder;
 
+    @Value("${recording.segmented}")
+    private boolean recordingSegmented;
+
+    @Value("${recording.segment.sec}")
+    private int recordingSegmentSec;
+
+    @Value("${registry.playlist.extension}")
+    private String registryPlaylistExtension;
+
+    @Value("${ws.dateformat}")
+    private String wsDateFormat;
+
+    @Value("${ws.recordings.page.size}")
+    private int wsRecordingsPageSize;
+
+    @Value("${recording.download.pool.size}")
+    private int recordingDownloadPoolSize;
+
+    @Value("${recording.index.ttl.sec}")
+    private int recordingIndexTtlSec;
+
+    // Recording id -> metadata. It is loaded from the registry (or Alluxio)
+    // on first use, kept up to date when storing or deleting, and reloaded
+    // when older than its TTL (to see the changes of other instances)
+    private volatile Map<String, IndexedRecording> recordingIndex = new ConcurrentHashMap<>();
+    private volatile long indexLoadTime = 0;
+    private final Object indexLock = new Object();
+
+    // Recording file name -> download from Alluxio in progress
+    private Map<String, RecordingDownload> downloads = new ConcurrentHashMap<>();
+    private ExecutorService downloadExecutor;
+
+    // Container name -> segmented recording being uploaded to Alluxio
+    private Map<String, SegmentedRecording> segmentedRecordings = new ConcurrentHashMap<>();
+    private ScheduledExecutorService segmentExecutor = newSingleThreadScheduledExecutor();
+
     private DockerService dockerService;
     private JsonService jsonService;
     private AlluxioService alluxioService;
@@ -99,6 +178,13 @@ public class RecordingService {
         if (!registryFolder.isEmpty() && !registryFolder.endsWith("/")) {
             registryFolder += "/";
         }
+        downloadExecutor = newFixedThreadPool(recordingDownloadPoolSize);
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        downloadExecutor.shutdownNow();
+        segmentExecutor.shutdownNow();
     }
 
     @Autowired
@@ -114,8 +200,25 @@ public class RecordingService {
         log.debug("Recording session {} in container {} with file name {}",
                 sessionId, hubContainerName, recordingFileName);
 
+        if (!recordingSegmented) {
+            dockerService.execCommand(hubContainerName, false,
+                    startRecordingScript, "-n", recordingFileName);
+            return;
+        }
+
+        // Segmented recording: HLS playlist and segments
         dockerService.execCommand(hubContainerName, false, startRecordingScript,
-                "-n", recordingFileName);
+                "-n", recordingFileName, "-s",
+                String.valueOf(recordingSegmentSec));
+        if (!edmAlluxioUrl.isEmpty()) {
+            // Segments are uploaded to Alluxio as soon as they are complete
+            SegmentedRecording recording = new SegmentedRecording(
+                    recordingFileName);
+            recording.future = segmentExecutor.scheduleWithFixedDelay(
+                    recording::sync, recordingSegmentSec, recordingSegmentSec,
+                    SECONDS);
+            segmentedRecordings.put(hubContainerName, recording);
+        }
     }
 
     public void startRecording(SessionInfo sessionInfo)
@@ -124,19 +227,38 @@ public class RecordingService {
         String noVncContainerName = sessionInfo.getVncContainerName();
         String recordingFileName = sessionInfo.getIdForFiles();
 
+        dockerService.adoptContainer(noVncContainerName, sessionInfo.getNode());
         this.startRecording(sessionId, noVncContainerName, recordingFileName);
     }
 
     public void stopRecording(SessionInfo sessionInfo)
             throws IOException, InterruptedException {
         String noNvcContainerName = sessionInfo.getVncContainerName();
+        dockerService.adoptContainer(noNvcContainerName, sessionInfo.getNode());
         this.stopRecording(noNvcContainerName);
+
+        String node = sessionInfo.getNode();
+        if (!recordingSegmented && node != null && !LOCAL.equals(node)) {
+            // The recordings folder is not shared with remote Docker nodes
+            dockerService.copyFileFromContainer(noNvcContainerName,
+                    containerRecordingFolder + "/" + sessionInfo.getIdForFiles()
+                            + registryRecordingExtension,
+                    registryFolder);
+        }
     }
 
     public void stopRecording(String hubContainerName)
             throws IOException, InterruptedException {
         log.debug("Stopping recording of container {}", hubContainerName);
         dockerService.execCommand(hubContainerName, true, stopRecordingScript);
+
+        SegmentedRecording recording = segmentedRecordings
+                .remove(hubContainerName);
+        if (recording != null) {
+            // Last segment and final playlist are uploaded in background
+            recording.future.cancel(false);
+            segmentExecutor.execute(recording::finish);
+        }
     }
 
     public void storeMetadata(SessionInfo sessionInfo) throws IOException {
@@ -164,15 +286,25 @@ public class RecordingService {
 
         } else {
             // If EDM Alluxio is available, recording is stored in Alluxio
-            alluxioService.writeFile(metadataFileName,
+            // (or spooled locally until Alluxio is reachable)
+            alluxioService.writeFileOrSpool(metadataFileName,
                     sessionInfoToJson.getBytes());
         }
+        synchronized (indexLock) {
+            indexRecording(recordingIndex, sessionInfoToJson);
+        }
     }
 
     public ResponseEntity<String> getRecording(String sessionId)
             throws IOException {
         HttpStatus status = OK;
         String recordingFileName = sessionId + registryRecordingExtension;
+        String playlistFileName = sessionId + registryPlaylistExtension;
+        if (recordingSegmented
+                && !new File(registryFolder + recordingFileName).exists()
+                && isPlaylistAvailable(playlistFileName)) {
+            return getSegmentedRecording(playlistFileName);
+        }
 
         // By default the response is the local path for the recording (this
         // applies to the case of locally stored, and also to the case that the
@@ -183,15 +315,203 @@ public class RecordingService {
         if (!edmAlluxioUrl.isEmpty()) {
             // If EDM Alluxio is available, recording is store in Alluxio
             File targetFile = new File(registryFolder + recordingFileName);
-            if (!targetFile.exists()) {
-                byte[] file = alluxioService.getFile(recordingFileName);
-                writeByteArrayToFile(targetFile, file);
+            RecordingDownload download = targetFile.exists() ? null
+                    : startDownload(recordingFileName, targetFile);
+            if (download != null) {
+                download.await();
             }
         }
 
         return new ResponseEntity<>(urlResponse, status);
     }
 
+    private boolean isPlaylistAvailable(String playlistFileName) {
+        return new File(registryFolder + playlistFileName).exists()
+                || (!edmAlluxioUrl.isEmpty() && alluxioService
+                        .getFileLength(playlistFileName) >= 0);
+    }
+
+    private ResponseEntity<String> getSegmentedRecording(
+            String playlistFileName) throws IOException {
+        if (!edmAlluxioUrl.isEmpty()) {
+            // The playlist (and then its segments) are downloaded from
+            // Alluxio if they are not available locally. Only the first
+            // files (initialization section and first segment) are awaited:
+            // the rest are downloaded in background, in playback order
+            List<String> files = getFilesToDownload(playlistFileName);
+            List<RecordingDownload> awaited = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                File targetFile = new File(registryFolder + files.get(i));
+                RecordingDownload download = targetFile.exists() ? null
+                        : startDownload(files.get(i), targetFile);
+                if (download != null && i < PLAYLIST_FILES_AWAITED) {
+                    awaited.add(download);
+                }
+            }
+            for (RecordingDownload download : awaited) {
+                download.await();
+            }
+        }
+        return new ResponseEntity<>(contextPath + registryContextPath + "/"
+                + playlistFileName, OK);
+    }
+
+    private List<String> getFilesToDownload(String playlistFileName)
+            throws IOException {
+        File playlist = new File(registryFolder + playlistFileName);
+        RecordingDownload download = playlist.exists() ? null
+                : startDownload(playlistFileName, playlist);
+        if (download != null) {
+            download.await();
+        }
+        return getPlaylistFiles(Files.readAllLines(playlist.toPath()));
+    }
+
+    /**
+     * Files referenced by a HLS playlist (segments and initialization
+     * section).
+     */
+    public static List<String> getPlaylistFiles(List<String> playlistLines) {
+        List<String> files = new ArrayList<>();
+        for (String line : playlistLines) {
+            String trimmedLine = line.trim();
+            if (trimmedLine.startsWith("#EXT-X-MAP:")) {
+                int uriStart = trimmedLine.indexOf("URI=\"");
+                int uriEnd = trimmedLine.indexOf('"', uriStart + 5);
+                if (uriStart != -1 && uriEnd != -1) {
+                    files.add(trimmedLine.substring(uriStart + 5, uriEnd));
+                }
+            } else if (!trimmedLine.isEmpty() && !trimmedLine.startsWith("#")) {
+                files.add(trimmedLine);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Streams a recording, supporting (single) HTTP range requests. When the
+     * recording is in Alluxio, it is served while it is being downloaded to
+     * the local registry, and concurrent requests share the same download.
+     */
+    public ResponseEntity<StreamingResponseBody> streamRecording(
+            String sessionId, String range) throws IOException {
+        String recordingFileName = sessionId + registryRecordingExtension;
+        File file = new File(registryFolder + recordingFileName);
+        RecordingDownload download = null;
+        if (!file.exists() && !edmAlluxioUrl.isEmpty()) {
+            download = startDownload(recordingFileName, file);
+        }
+        long length;
+        if (download != null) {
+            length = download.length;
+        } else if (file.exists()) {
+            length = file.length();
+        } else {
+            return new ResponseEntity<>(NOT_FOUND);
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(VIDEO_MP4);
+        headers.set(ACCEPT_RANGES, "bytes");
+        HttpStatus status = OK;
+        long start = 0;
+        long end = length - 1;
+
+        List<HttpRange> ranges = parseRanges(range);
+        if (ranges.size() == 1) {
+            start = ranges.get(0).getRangeStart(length);
+            end = ranges.get(0).getRangeEnd(length);
+            if (start >= length) {
+                headers.set(CONTENT_RANGE, "bytes */" + length);
+                return new ResponseEntity<>(headers,
+                        REQUESTED_RANGE_NOT_SATISFIABLE);
+            }
+            headers.set(CONTENT_RANGE,
+                    "bytes " + start + "-" + end + "/" + length);
+            status = PARTIAL_CONTENT;
+        }
+        headers.setContentLength(end - start + 1);
+
+        long from = start;
+        long to = end;
+        RecordingDownload source = download;
+        log.debug("Streaming recording {} (bytes {}-{})", recordingFileName,
+                from, to);
+        StreamingResponseBody body = out -> copyRange(file, source, from, to,
+                out);
+        return new ResponseEntity<>(body, headers, status);
+    }
+
+    private List<HttpRange> parseRanges(String range) {
+        try {
+            return HttpRange.parseRanges(range);
+        } catch (IllegalArgumentException e) {
+            log.debug("Wrong range {}, sending whole recording", range);
+            return new ArrayList<>();
+        }
+    }
+
+    private void copyRange(File file, RecordingDownload download, long from,
+            long to, OutputStream out) throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long position = from;
+        try (RandomAccessFile input = openRecording(file, download)) {
+            input.seek(from);
+            while (position <= to) {
+                long available = download != null
+                        ? download.awaitBytes(position + 1)
+                        : Long.MAX_VALUE;
+                if (available <= position) {
+                    break;
+                }
+                int read = input.read(buffer, 0, (int) min(buffer.length,
+                        min(to, available - 1) - position + 1));
+                if (read == -1) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                position += read;
+            }
+        }
+    }
+
+    private RandomAccessFile openRecording(File file,
+            RecordingDownload download) throws FileNotFoundException {
+        if (download != null) {
+            // While downloading, data is read from the partial file
+            try {
+                return new RandomAccessFile(download.partFile, "r");
+            } catch (FileNotFoundException e) {
+                log.trace("Download of {} already finished", file);
+            }
+        }
+        return new RandomAccessFile(file, "r");
+    }
+
+    /**
+     * Starts (or joins) the download of a recording from Alluxio.
+     *
+     * @return the download, or null if the recording is already local (or it
+     *         is not in Alluxio)
+     */
+    private synchronized RecordingDownload startDownload(
+            String recordingFileName, File targetFile) throws IOException {
+        RecordingDownload download = downloads.get(recordingFileName);
+        if (download == null && !targetFile.exists()) {
+            long length = alluxioService.getFileLength(recordingFileName);
+            if (length < 0) {
+                log.debug("Recording {} not found in Alluxio",
+                        recordingFileName);
+                return null;
+            }
+            download = new RecordingDownload(recordingFileName, targetFile,
+                    length);
+            downloads.put(recordingFileName, download);
+            downloadExecutor.execute(download);
+        }
+        return download;
+    }
+
     public ResponseEntity<String> deleteRecording(String sessionId)
             throws IOException {
         log.debug("Deleting recording of session {}", sessionId);
@@ -213,13 +533,134 @@ public class RecordingService {
             deleteMetadata = alluxioService.deleteFile(metadataFileName);
 
         }
+        if (recordingSegmented) {
+            boolean deletePlaylist = deleteSegmentedRecording(
+                    sessionId + registryPlaylistExtension);
+            deleteRecording = deleteRecording || deletePlaylist;
+        }
+        synchronized (indexLock) {
+            // Waits for a loading in progress, which may have read the
+            // metadata before it was deleted
+            recordingIndex.remove(sessionId);
+        }
+
         HttpStatus status = deleteRecording && deleteMetadata ? OK
                 : INTERNAL_SERVER_ERROR;
         log.debug("... response {}", status);
         return new ResponseEntity<>(status);
     }
 
+    private boolean deleteSegmentedRecording(String playlistFileName)
+            throws IOException {
+        Path playlist = Paths.get(registryFolder + playlistFileName);
+        List<String> playlistLines = new ArrayList<>();
+        if (playlist.toFile().exists()) {
+            playlistLines = Files.readAllLines(playlist);
+        } else if (!edmAlluxioUrl.isEmpty() && alluxioService
+                .getFileLength(playlistFileName) >= 0) {
+            playlistLines = asList(alluxioService
+                    .getFileAsString(playlistFileName).split("\n"));
+        }
+
+        boolean deletePlaylist = Files.deleteIfExists(playlist);
+        for (String fileName : getPlaylistFiles(playlistLines)) {
+            Files.deleteIfExists(Paths.get(registryFolder + fileName));
+            if (!edmAlluxioUrl.isEmpty()) {
+                alluxioService.deleteFile(fileName);
+            }
+        }
+        if (!edmAlluxioUrl.isEmpty()) {
+            deletePlaylist = alluxioService.deleteFile(playlistFileName);
+        }
+        return deletePlaylist;
+    }
+
+    /**
+     * Metadata of all the recordings (newest first), read from the index.
+     */
     public List<String> getStoredMetadataContent() throws IOException {
+        return getIndexedRecordings().stream()
+                .map(recording -> recording.content).collect(toList());
+    }
+
+    public WebSocketRecordings findRecordings(WebSocketRecordingsQuery query)
+            throws IOException {
+        int size = query.getSize() > 0 ? query.getSize()
+                : wsRecordingsPageSize;
+        int page = max(query.getPage(), 0);
+        List<IndexedRecording> matching = getIndexedRecordings().stream()
+                .filter(recording -> recording.matches(query))
+                .collect(toList());
+        List<WebSocketSessionInfoEntry> entries = matching.stream()
+                .skip((long) page * size).limit(size)
+                .map(recording -> recording.entry).collect(toList());
+        log.debug("Recordings query {}: {} of {} recordings", query,
+                entries.size(), matching.size());
+        return new WebSocketRecordings(entries, page, size, matching.size());
+    }
+
+    private List<IndexedRecording> getIndexedRecordings() throws IOException {
+        if (isIndexExpired()) {
+            loadIndex();
+        }
+        return recordingIndex.values().stream()
+                .sorted(IndexedRecording.NEWEST_FIRST).collect(toList());
+    }
+
+    private boolean isIndexExpired() {
+        return indexLoadTime == 0 || currentTimeMillis()
+                - indexLoadTime > SECONDS.toMillis(recordingIndexTtlSec);
+    }
+
+    private void loadIndex() throws IOException {
+        synchronized (indexLock) {
+            if (!isIndexExpired()) {
+                return;
+            }
+            // Storing and deleting wait for the loading, and queries use the
+            // previous index until it is replaced
+            Map<String, IndexedRecording> loaded = new ConcurrentHashMap<>();
+            readStoredMetadataContent()
+                    .forEach(content -> indexRecording(loaded, content));
+            recordingIndex = loaded;
+            indexLoadTime = currentTimeMillis();
+            log.debug("Recording index loaded ({} recordings)",
+                    loaded.size());
+        }
+    }
+
+    private void indexRecording(Map<String, IndexedRecording> index,
+            String content) {
+        try {
+            WebSocketSessionInfoEntry entry = jsonService
+                    .jsonToObject(content, WebSocketRecordedSession.class)
+                    .getRecordedSession();
+            if (entry == null || entry.getId() == null) {
+                return;
+            }
+            IndexedRecording recording = new IndexedRecording(entry, content,
+                    parseCreationTime(entry.getCreationTime()));
+            index.put(entry.getId(), recording);
+        } catch (IOException e) {
+            log.warn("Exception indexing recording metadata {}: {}", content,
+                    e.getMessage());
+        }
+    }
+
+    private Long parseCreationTime(String creationTime) {
+        if (creationTime == null) {
+            return null;
+        }
+        try {
+            return new SimpleDateFormat(wsDateFormat).parse(creationTime)
+                    .getTime();
+        } catch (ParseException e) {
+            log.trace("Wrong creation time {}", creationTime);
+            return null;
+        }
+    }
+
+    private List<String> readStoredMetadataContent() throws IOException {
         List<String> metadataContent = new ArrayList<>();
 
         if (edmAlluxioUrl.isEmpty()) {
@@ -259,4 +700,207 @@ public class RecordingService {
         return content;
     }
 
+    static class IndexedRecording {
+        static final Comparator<IndexedRecording> NEWEST_FIRST = Comparator
+                .comparing(IndexedRecording::getCreationTime,
+                        Comparator.nullsLast(Comparator.reverseOrder()))
+                .thenComparing(IndexedRecording::getId);
+
+        final WebSocketSessionInfoEntry entry;
+        final String content;
+        final Long creationTime;
+
+        IndexedRecording(WebSocketSessionInfoEntry entry, String content,
+                Long creationTime) {
+            this.entry = entry;
+            this.content = content;
+            this.creationTime = creationTime;
+        }
+
+        Long getCreationTime() {
+            return creationTime;
+        }
+
+        String getId() {
+            return entry.getId();
+        }
+
+        boolean matches(WebSocketRecordingsQuery query) {
+            if (query.getBrowser() != null && !query.getBrowser()
+                    .equalsIgnoreCase(entry.getBrowser())) {
+                return false;
+            }
+            if (query.getBrowserId() != null
+                    && !entry.getId().startsWith(query.getBrowserId() + "_")) {
+                return false;
+            }
+            if (query.getFrom() != null && (creationTime == null
+                    || creationTime < query.getFrom())) {
+                return false;
+            }
+            return query.getTo() == null
+                    || (creationTime != null && creationTime <= query.getTo());
+        }
+    }
+
+    /**
+     * Download of a recording from Alluxio to a partial file of the local
+     * registry, which is renamed when complete. Readers can wait for a given
+     * number of bytes to be downloaded.
+     */
+    class RecordingDownload implements Runnable {
+        final String fileName;
+        final File file;
+        final File partFile;
+        final long length;
+        final OutputStream output;
+
+        // Guarded by this
+        long downloaded = 0;
+        boolean finished = false;
+        IOException error;
+
+        RecordingDownload(String fileName, File file, long length)
+                throws IOException {
+            this.fileName = fileName;
+            this.file = file;
+            this.partFile = new File(file.getPath() + PART_EXTENSION);
+            this.length = length;
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException(
+                        "The " + parent + " directory could not be created");
+            }
+            this.output = new FileOutputStream(partFile);
+        }
+
+        @Override
+        public void run() {
+            log.debug("Downloading recording {} from Alluxio ({} bytes)",
+                    fileName, length);
+            try {
+                try (OutputStream out = new FilterOutputStream(output) {
+                    @Override
+                    public void write(byte[] b, int off, int len)
+                            throws IOException {
+                        out.write(b, off, len);
+                        progress(len);
+                    }
+                }) {
+                    alluxioService.copyFile(fileName, out);
+                }
+                Files.move(partFile.toPath(), file.toPath(), REPLACE_EXISTING,
+                        ATOMIC_MOVE);
+                finish(null);
+                log.debug("Recording {} downloaded", fileName);
+
+            } catch (IOException e) {
+                log.warn("Exception downloading recording {}: {}", fileName,
+                        e.getMessage());
+                partFile.delete();
+                finish(e);
+            } finally {
+                downloads.remove(fileName, this);
+            }
+        }
+
+        synchronized void progress(long bytes) {
+            downloaded += bytes;
+            notifyAll();
+        }
+
+        synchronized void finish(IOException exception) {
+            error = exception;
+            finished = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the given number of bytes is available (or the
+         * download is finished).
+         *
+         * @return number of bytes available
+         */
+        synchronized long awaitBytes(long bytes) throws IOException {
+            try {
+                while (downloaded < bytes && !finished) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for " + fileName);
+            }
+            if (error != null) {
+                throw error;
+            }
+            return downloaded;
+        }
+
+        void await() throws IOException {
+            awaitBytes(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Segmented recording in progress, whose complete segments (i.e. those
+     * already listed in the playlist) are uploaded to Alluxio.
+     */
+    class SegmentedRecording {
+        final String recordingFileName;
+        final Set<String> uploadedFiles = ConcurrentHashMap.newKeySet();
+        volatile Future<?> future;
+
+        // Playlist changed but not replaced in Alluxio yet
+        volatile boolean playlistPending = false;
+        int finishRetries = PLAYLIST_RETRIES;
+
+        SegmentedRecording(String recordingFileName) {
+            this.recordingFileName = recordingFileName;
+        }
+
+        void sync() {
+            String playlistFileName = recordingFileName
+                    + registryPlaylistExtension;
+            Path playlist = Paths.get(registryFolder + playlistFileName);
+            if (!playlist.toFile().exists()) {
+                return;
+            }
+            try {
+                byte[] playlistContent = readAllBytes(playlist);
+                List<String> playlistLines = Files.readAllLines(playlist);
+                for (String fileName : getPlaylistFiles(playlistLines)) {
+                    if (!uploadedFiles.contains(fileName)) {
+                        alluxioService.writeFileOrSpool(fileName,
+                                Paths.get(registryFolder + fileName));
+                        uploadedFiles.add(fileName);
+                        playlistPending = true;
+                    }
+                }
+                if (playlistPending) {
+                    // The playlist grows with each segment, and it is
+                    // replaced so that players never read a partial one
+                    playlistPending = !alluxioService
+                            .replaceFile(playlistFileName, playlistContent);
+                    log.debug("Recording {}: {} files uploaded",
+                            recordingFileName, uploadedFiles.size());
+                }
+            } catch (Exception e) {
+                log.warn("Exception uploading segments of recording {}: {}",
+                        recordingFileName, e.getMessage());
+            }
+        }
+
+        /**
+         * Last synchronization, retried while the final playlist has not been
+         * replaced in Alluxio.
+         */
+        void finish() {
+            sync();
+            if (playlistPending && finishRetries-- > 0) {
+                segmentExecutor.schedule(this::finish, recordingSegmentSec,
+                        SECONDS);
+            }
+        }
+    }
+
 }
@@ -16,13 +16,30 @@
  */
 package io.elastest.eus.service;
 
+import static java.lang.Long.parseLong;
+import static java.lang.System.currentTimeMillis;
 import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.concurrent.Executors.newFixedThreadPool;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
@@ -33,11 +50,23 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import io.elastest.eus.json.WebSocketNewSession;
 import io.elastest.eus.json.WebSocketRecordedSession;
+import io.elastest.eus.json.WebSocketRecordingsQuery;
 import io.elastest.eus.json.WebSocketRemoveSession;
+import io.elastest.eus.json.WebSocketSnapshot;
 import io.elastest.eus.session.SessionInfo;
+import io.elastest.eus.session.SessionRegistry;
+import io.elastest.eus.session.SessionRegistryListener;
 
 /**
- * Session service (WebSocket and session registry).
+ * Session service (WebSocket and session registry). The registry can be
+ * shared among several EUS instances, in which case the session events are
+ * also received from (and sent to) the other instances. Session events are
+ * serialized once, numbered with a sequence number, and sent to each
+ * WebSocket client through its own bounded queue. Clients get a snapshot of
+ * the sessions with getSessions, can resume the feed with
+ * getSessions:{epoch}:{lastSeq} (a snapshot is sent if it cannot be resumed,
+ * e.g. if the epoch is not the one of this instance since its last start),
+ * and query a page of recordings with getRecordings:{query}.
  *
  * @author Boni Garcia (boni.garcia@urjc.es)
  * @since 0.0.1
@@ -46,12 +75,26 @@ public class SessionService extends TextWebSocketHandler {
 
     final Logger log = getLogger(lookup().lookupClass());
 
+    static final String RESUME_SEPARATOR = ":";
+
     @Value("${ws.protocol.getSessions}")
     private String wsProtocolGetSessions;
 
     @Value("${ws.protocol.getRecordings}")
     private String wsProtocolGetRecordings;
 
+    @Value("${ws.protocol.seq}")
+    private String wsProtocolSeq;
+
+    @Value("${ws.client.queue.size}")
+    private int wsClientQueueSize;
+
+    @Value("${ws.sender.pool.size}")
+    private int wsSenderPoolSize;
+
+    @Value("${ws.history.size}")
+    private int wsHistorySize;
+
     @Value("${hub.timeout}")
     private String hubTimeout;
 
@@ -61,18 +104,52 @@ public class SessionService extends TextWebSocketHandler {
     @Value("${registry.metadata.extension}")
     private String registryMetadataExtension;
 
-    private Map<String, WebSocketSession> activeSessions = new ConcurrentHashMap<>();
-    private Map<String, SessionInfo> sessionRegistry = new ConcurrentHashMap<>();
+    @Value("${eus.instance.id}")
+    private String eusInstanceId;
+
+    private Map<String, ClientQueue> activeSessions = new ConcurrentHashMap<>();
+    private SessionRegistry sessionRegistry;
+
+    // Releases the resources of this instance (e.g. ports) of the sessions
+    // removed by other instances
+    private Consumer<SessionInfo> remoteRemovalHandler = sessionInfo -> {
+    };
+
+    // Last session events, used to resume clients. Sequence numbers are
+    // assigned (and events are enqueued) holding the lock of the history,
+    // but events are serialized before taking it
+    private Deque<SessionEvent> history = new ArrayDeque<>();
+    private long lastSeq = 0;
+
+    // Sequence numbers are only meaningful within the instance (and run) that
+    // assigned them
+    private String epoch;
+
+    private ExecutorService senderExecutor;
 
     private DockerService dockerService;
     private JsonService jsonService;
     private RecordingService recordingService;
 
     public SessionService(DockerService dockerService, JsonService jsonService,
-            RecordingService recordingService) {
+            RecordingService recordingService,
+            SessionRegistry sessionRegistry) {
         this.dockerService = dockerService;
         this.jsonService = jsonService;
         this.recordingService = recordingService;
+        this.sessionRegistry = sessionRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        senderExecutor = newFixedThreadPool(wsSenderPoolSize);
+        epoch = eusInstanceId + "-" + currentTimeMillis();
+        sessionRegistry.setListener(new RemoteSessionsListener());
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        senderExecutor.shutdownNow();
     }
 
     @Override
@@ -82,12 +159,29 @@ public class SessionService extends TextWebSocketHandler {
         String payload = message.getPayload();
         log.debug("Incoming message {} from session {}", payload, sessionId);
 
+        ClientQueue client = activeSessions.get(sessionId);
+        if (client == null) {
+            log.warn("Message {} from unknown session {}", payload, sessionId);
+            return;
+        }
+
+        String resumePrefix = wsProtocolGetSessions + RESUME_SEPARATOR;
         if (payload.equalsIgnoreCase(wsProtocolGetSessions)) {
             log.trace("{} received", payload);
-            sendAllSessionsInfoToAllClients();
+            sendSnapshot(client);
+        } else if (payload.regionMatches(true, 0, resumePrefix, 0,
+                resumePrefix.length())) {
+            log.trace("{} received", payload);
+            resume(client, payload.substring(resumePrefix.length()));
         } else if (payload.equalsIgnoreCase(wsProtocolGetRecordings)) {
             log.trace("{} received", payload);
-            sendAllRecordingsToAllClients();
+            sendRecordings(client);
+        } else if (payload.regionMatches(true, 0,
+                wsProtocolGetRecordings + RESUME_SEPARATOR, 0,
+                wsProtocolGetRecordings.length() + 1)) {
+            log.trace("{} received", payload);
+            sendRecordings(client, payload.substring(
+                    wsProtocolGetRecordings.length() + 1));
         } else {
             log.warn("Non recognized message {}", payload);
         }
@@ -100,7 +194,7 @@ public class SessionService extends TextWebSocketHandler {
         String sessionId = session.getId();
         log.debug("WebSocket connection {} established", sessionId);
 
-        activeSessions.put(sessionId, session);
+        activeSessions.put(sessionId, new ClientQueue(session));
     }
 
     @Override
@@ -116,51 +210,56 @@ public class SessionService extends TextWebSocketHandler {
     public void sendTextMessage(WebSocketSession session, String message)
             throws IOException {
         TextMessage textMessage = new TextMessage(message);
-        log.trace("Sending {} to session {}", message, session.getId());
-        session.sendMessage(textMessage);
+        ClientQueue client = activeSessions.get(session.getId());
+        if (client != null) {
+            client.send(textMessage);
+        } else {
+            log.trace("Sending {} to session {}", message, session.getId());
+            session.sendMessage(textMessage);
+        }
     }
 
     public void sendAllSessionsInfoToAllClients() throws IOException {
-        for (WebSocketSession session : activeSessions.values()) {
-            for (SessionInfo sessionInfo : sessionRegistry.values()) {
-                WebSocketNewSession newSession = new WebSocketNewSession(
-                        sessionInfo);
-                log.debug("Sending newSession message {} to session {} [all]",
-                        newSession, session);
-                sendTextMessage(session, jsonService.objectToJson(newSession));
-            }
+        for (ClientQueue client : activeSessions.values()) {
+            sendSnapshot(client);
         }
     }
 
-    public void sendAllRecordingsToAllClients() throws IOException {
-        for (WebSocketSession session : activeSessions.values()) {
-            for (String fileContent : recordingService
-                    .getStoredMetadataContent()) {
-                sendTextMessage(session, fileContent);
-            }
+    private void sendRecordings(ClientQueue client) throws IOException {
+        for (String fileContent : recordingService
+                .getStoredMetadataContent()) {
+            client.send(new TextMessage(fileContent));
         }
     }
 
-    public void sendRecordingToAllClients(SessionInfo sessionInfo)
+    private void sendRecordings(ClientQueue client, String jsonQuery)
             throws IOException {
-        for (WebSocketSession session : activeSessions.values()) {
-            WebSocketRecordedSession recordedSession = new WebSocketRecordedSession(
-                    sessionInfo);
-            log.debug("Sending recording {} to session {}", recordedSession,
-                    session);
-            sendTextMessage(session, jsonService.objectToJson(recordedSession));
+        WebSocketRecordingsQuery query;
+        try {
+            query = jsonService.jsonToObject(jsonQuery,
+                    WebSocketRecordingsQuery.class);
+        } catch (IOException e) {
+            log.warn("Non recognized recordings query {}", jsonQuery);
+            return;
         }
+        client.send(new TextMessage(jsonService
+                .objectToJson(recordingService.findRecordings(query))));
+    }
+
+    public void sendRecordingToAllClients(SessionInfo sessionInfo)
+            throws IOException {
+        WebSocketRecordedSession recordedSession = new WebSocketRecordedSession(
+                sessionInfo);
+        log.debug("Sending recording {} to all sessions", recordedSession);
+        publish(recordedSession);
     }
 
     public void sendNewSessionToAllClients(SessionInfo sessionInfo)
             throws IOException {
-        for (WebSocketSession session : activeSessions.values()) {
-            WebSocketNewSession newSession = new WebSocketNewSession(
-                    sessionInfo);
-            log.debug("Sending newSession message {} to session {}", newSession,
-                    session);
-            sendTextMessage(session, jsonService.objectToJson(newSession));
-        }
+        WebSocketNewSession newSession = new WebSocketNewSession(sessionInfo);
+        log.debug("Sending newSession message {} to all sessions",
+                newSession);
+        publish(newSession);
     }
 
     public boolean activeWebSocketSessions() {
@@ -169,15 +268,96 @@ public class SessionService extends TextWebSocketHandler {
 
     public void sendRemoveSessionToAllClients(SessionInfo sessionInfo)
             throws IOException {
-        for (WebSocketSession session : activeSessions.values()) {
-            WebSocketRemoveSession removeSession = new WebSocketRemoveSession(
-                    sessionInfo);
-            log.debug("Sending remove session message {} to session {}",
-                    removeSession, session);
-            sendTextMessage(session, jsonService.objectToJson(removeSession));
+        WebSocketRemoveSession removeSession = new WebSocketRemoveSession(
+                sessionInfo);
+        log.debug("Sending remove session message {} to all sessions",
+                removeSession);
+        publish(removeSession);
+    }
+
+    private void publish(Object event) throws IOException {
+        String json = jsonService.objectToJson(event);
+        publishLocally(json);
+        // Dashboards connected to other instances receive it too
+        sessionRegistry.publish(json);
+    }
+
+    private void publishLocally(String json) throws IOException {
+        synchronized (history) {
+            long seq = lastSeq + 1;
+            TextMessage textMessage = new TextMessage(
+                    jsonService.prependField(json, wsProtocolSeq, seq));
+            lastSeq = seq;
+            history.addLast(new SessionEvent(seq, textMessage));
+            if (history.size() > wsHistorySize) {
+                history.removeFirst();
+            }
+            activeSessions.values().forEach(client -> client.send(textMessage));
         }
     }
 
+    /**
+     * Sends the sessions of the registry in a single message, along with the
+     * sequence number of the last event it includes and the epoch of this
+     * instance (so that the client can replace its state, even if there are
+     * no sessions, and resume from it).
+     */
+    private void sendSnapshot(ClientQueue client) throws IOException {
+        while (true) {
+            long seq;
+            synchronized (history) {
+                seq = lastSeq;
+            }
+            List<WebSocketNewSession> sessions = new ArrayList<>();
+            for (SessionInfo sessionInfo : sessionRegistry.getSessions()
+                    .values()) {
+                sessions.add(new WebSocketNewSession(sessionInfo));
+            }
+            TextMessage snapshot = new TextMessage(jsonService.objectToJson(
+                    new WebSocketSnapshot(sessions, seq, epoch)));
+            synchronized (history) {
+                // Taken again if an event was published meanwhile, so that
+                // the snapshot matches its sequence number
+                if (seq != lastSeq) {
+                    continue;
+                }
+                client.send(snapshot);
+                return;
+            }
+        }
+    }
+
+    private void resume(ClientQueue client, String token) throws IOException {
+        int separator = token.lastIndexOf(RESUME_SEPARATOR);
+        if (separator < 0 || !token.substring(0, separator).equals(epoch)) {
+            log.debug("Epoch of {} is not {}, sending snapshot", token, epoch);
+            sendSnapshot(client);
+            return;
+        }
+        long fromSeq;
+        try {
+            fromSeq = parseLong(token.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            sendSnapshot(client);
+            return;
+        }
+        synchronized (history) {
+            SessionEvent oldest = history.peekFirst();
+            boolean inHistory = fromSeq == lastSeq || (oldest != null
+                    && oldest.seq <= fromSeq + 1 && fromSeq < lastSeq);
+            if (inHistory) {
+                for (SessionEvent event : history) {
+                    if (event.seq > fromSeq) {
+                        client.send(event.message);
+                    }
+                }
+                return;
+            }
+        }
+        log.debug("Sequence {} not available, sending snapshot", fromSeq);
+        sendSnapshot(client);
+    }
+
     public void removeSession(String sessionId) {
         if (sessionId != null) {
             log.debug("Remove session {}", sessionId);
@@ -190,27 +370,182 @@ public class SessionService extends TextWebSocketHandler {
     }
 
     public Optional<SessionInfo> getSession(String sessionId) {
-        if (sessionRegistry.containsKey(sessionId)) {
-            return Optional.of(sessionRegistry.get(sessionId));
-        } else {
-            return Optional.empty();
-        }
+        return sessionRegistry.get(sessionId);
     }
 
+    /**
+     * Sessions created by this instance.
+     */
     public Map<String, SessionInfo> getSessionRegistry() {
-        return sessionRegistry;
+        Map<String, SessionInfo> localSessions = new HashMap<>();
+        sessionRegistry.getSessions().forEach((sessionId, sessionInfo) -> {
+            if (isLocalSession(sessionInfo)) {
+                localSessions.put(sessionId, sessionInfo);
+            }
+        });
+        return localSessions;
+    }
+
+    public boolean isLocalSession(SessionInfo sessionInfo) {
+        return sessionInfo.getOwner() == null
+                || sessionInfo.getOwner().equals(eusInstanceId);
+    }
+
+    /**
+     * Records a command in a session created by another instance.
+     */
+    public void touchSession(SessionInfo sessionInfo) {
+        sessionInfo.touch();
+        sessionRegistry.touch(sessionInfo.getSessionId());
+    }
+
+    public void setRemoteRemovalHandler(
+            Consumer<SessionInfo> remoteRemovalHandler) {
+        this.remoteRemovalHandler = remoteRemovalHandler;
+    }
+
+    /**
+     * Routes the containers of a session to its Docker node, so that they can
+     * be handled from this instance even if it has not started them (i.e.
+     * created by another instance, or before a restart).
+     */
+    public void adoptSession(SessionInfo sessionInfo) {
+        String hubContainerName = sessionInfo.getHubContainerName();
+        if (hubContainerName != null) {
+            dockerService.adoptContainer(hubContainerName,
+                    sessionInfo.getNode());
+        }
+        String vncContainerName = sessionInfo.getVncContainerName();
+        if (vncContainerName != null
+                && !vncContainerName.equals(hubContainerName)) {
+            dockerService.adoptContainer(vncContainerName,
+                    sessionInfo.getNode());
+        }
     }
 
     public void stopAllContainerOfSession(SessionInfo sessionInfo) {
+        adoptSession(sessionInfo);
         String hubContainerName = sessionInfo.getHubContainerName();
         if (hubContainerName != null) {
             dockerService.stopAndRemoveContainer(hubContainerName);
         }
 
+        // The VNC server usually runs in the hub container
         String vncContainerName = sessionInfo.getVncContainerName();
-        if (vncContainerName != null) {
+        if (vncContainerName != null
+                && !vncContainerName.equals(hubContainerName)) {
             dockerService.stopAndRemoveContainer(vncContainerName);
         }
+
+        // Host ports can be leased again once the containers are removed
+        // (ports of other instances are released by their owner)
+        if (!isLocalSession(sessionInfo)) {
+            return;
+        }
+        String node = sessionInfo.getNode();
+        dockerService.releasePort(node, sessionInfo.getHubBindPort());
+        dockerService.releasePort(node, sessionInfo.getHubVncBindPort());
+        dockerService.releasePort(node, sessionInfo.getNoVncBindPort());
+    }
+
+    private class RemoteSessionsListener implements SessionRegistryListener {
+
+        @Override
+        public void onEvent(String event) {
+            try {
+                log.trace("Event {} from another instance", event);
+                // Validated (and normalized) before publishing it
+                publishLocally(
+                        jsonService.objectToJson(jsonService.readTree(event)));
+            } catch (IOException e) {
+                log.warn("Exception processing event {}: {}", event,
+                        e.getMessage());
+            }
+        }
+
+        @Override
+        public void onSessionRemoved(SessionInfo sessionInfo) {
+            remoteRemovalHandler.accept(sessionInfo);
+        }
+    }
+
+    static class SessionEvent {
+        final long seq;
+        final TextMessage message;
+
+        SessionEvent(long seq, TextMessage message) {
+            this.seq = seq;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Bounded send queue of a WebSocket client. Messages are sent by the
+     * pool of senders (one at a time per client), and clients that do not
+     * keep up are disconnected.
+     */
+    private class ClientQueue {
+        final WebSocketSession session;
+        final BlockingQueue<TextMessage> queue;
+        final AtomicBoolean draining = new AtomicBoolean(false);
+
+        ClientQueue(WebSocketSession session) {
+            this.session = session;
+            this.queue = new LinkedBlockingQueue<>(wsClientQueueSize);
+        }
+
+        void send(TextMessage message) {
+            if (!queue.offer(message)) {
+                evict();
+                return;
+            }
+            if (draining.compareAndSet(false, true)) {
+                try {
+                    senderExecutor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    draining.set(false);
+                }
+            }
+        }
+
+        void drain() {
+            do {
+                TextMessage message;
+                while ((message = queue.poll()) != null) {
+                    try {
+                        log.trace("Sending {} to session {}",
+                                message.getPayload(), session.getId());
+                        session.sendMessage(message);
+                    } catch (Exception e) {
+                        log.debug("Exception sending to session {}: {}",
+                                session.getId(), e.getMessage());
+                        evict();
+                        return;
+                    }
+                }
+                draining.set(false);
+            } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+        }
+
+        void evict() {
+            if (activeSessions.remove(session.getId()) == null) {
+                return;
+            }
+            log.warn("Closing slow WebSocket session {}", session.getId());
+            queue.clear();
+            try {
+                senderExecutor.execute(() -> {
+                    try {
+                        session.close(CloseStatus.SESSION_NOT_RELIABLE);
+                    } catch (IOException e) {
+                        log.trace("Exception closing session {}",
+                                session.getId(), e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.trace("Session {} not closed", session.getId());
+            }
+        }
     }
 
 }
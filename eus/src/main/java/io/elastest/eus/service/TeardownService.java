@@ -0,0 +1,200 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static java.lang.System.nanoTime;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Asynchronous teardown of sessions. The stages of each teardown (e.g. stop
+ * recording, store metadata, remove containers) run in order on a bounded
+ * pool of workers, and each stage is retried with exponential backoff. A
+ * stage that keeps failing does not prevent the next ones from running.
+ * The services used by the stages are destroyed after this one, so that
+ * the pending teardowns can be drained on shutdown.
+ *
+ * @since 0.9.1
+ */
+@Service
+@DependsOn({ "dockerService", "recordingService", "sessionService",
+        "sessionRegistry" })
+public class TeardownService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    @Value("${teardown.pool.size}")
+    private int teardownPoolSize;
+
+    @Value("${teardown.queue.size}")
+    private int teardownQueueSize;
+
+    @Value("${teardown.retries}")
+    private int teardownRetries;
+
+    @Value("${teardown.retry.delay.ms}")
+    private long teardownRetryDelayMs;
+
+    @Value("${teardown.shutdown.timeout.sec}")
+    private long teardownShutdownTimeoutSec;
+
+    private ThreadPoolExecutor teardownExecutor;
+
+    private MeterRegistry meterRegistry;
+    private Timer teardownTimer;
+
+    @Autowired
+    public TeardownService(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        // When the queue is full (back pressure) or the pool is shut down
+        // (sessions deleted while stopping), the teardown runs in the calling
+        // thread instead of losing containers
+        teardownExecutor = new ThreadPoolExecutor(teardownPoolSize,
+                teardownPoolSize, 0L, MILLISECONDS,
+                new ArrayBlockingQueue<>(teardownQueueSize),
+                (teardown, executor) -> teardown.run());
+
+        teardownTimer = Timer.builder("eus.session.teardown.duration")
+                .description("Time tearing down sessions")
+                .register(meterRegistry);
+        meterRegistry.gauge("eus.session.teardown.pending", teardownExecutor,
+                executor -> executor.getQueue().size()
+                        + executor.getActiveCount());
+    }
+
+    /**
+     * Drains the pending teardowns (in parallel, using all the workers) for
+     * teardown.shutdown.timeout.sec at most.
+     */
+    @PreDestroy
+    public void cleanUp() {
+        teardownExecutor.shutdown();
+        try {
+            if (!teardownExecutor.awaitTermination(teardownShutdownTimeoutSec,
+                    SECONDS)) {
+                List<Runnable> pending = teardownExecutor.shutdownNow();
+                log.warn("Teardown of {} sessions not finished in {} seconds",
+                        pending.size() + teardownExecutor.getActiveCount(),
+                        teardownShutdownTimeoutSec);
+            }
+        } catch (InterruptedException e) {
+            teardownExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Teardown teardown(String sessionId) {
+        return new Teardown(sessionId);
+    }
+
+    private boolean runStage(String sessionId, String name, Stage stage) {
+        long delayMs = teardownRetryDelayMs;
+        for (int attempt = 0;; attempt++) {
+            try {
+                stage.run();
+                return true;
+            } catch (Exception e) {
+                if (attempt >= teardownRetries) {
+                    log.error("Teardown of session {} failed in stage '{}'",
+                            sessionId, name, e);
+                    meterRegistry.counter("eus.session.teardown.failures",
+                            "stage", name).increment();
+                    return false;
+                }
+                log.debug("Exception in stage '{}' of session {} teardown"
+                        + " (retry {}/{} in {} ms): {}", name, sessionId,
+                        attempt + 1, teardownRetries, delayMs,
+                        e.getMessage());
+            }
+            try {
+                MILLISECONDS.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            delayMs *= 2;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Stage {
+        void run() throws Exception;
+    }
+
+    /**
+     * Stages of the teardown of a session, submitted at once.
+     */
+    public class Teardown implements Runnable {
+        private final String sessionId;
+        private final List<String> names = new ArrayList<>();
+        private final List<Stage> stages = new ArrayList<>();
+
+        Teardown(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        public Teardown then(String name, Stage stage) {
+            names.add(name);
+            stages.add(stage);
+            return this;
+        }
+
+        public void submit() {
+            log.trace("Submitting teardown of session {}: {}", sessionId,
+                    names);
+            teardownExecutor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            long start = nanoTime();
+            for (int i = 0; i < stages.size(); i++) {
+                if (!runStage(sessionId, names.get(i), stages.get(i))
+                        && Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+            }
+            teardownTimer.record(nanoTime() - start, NANOSECONDS);
+            log.debug("Session {} torn down", sessionId);
+        }
+    }
+
+}
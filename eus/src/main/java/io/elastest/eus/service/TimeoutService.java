@@ -16,18 +16,23 @@
  */
 package io.elastest.eus.service;
 
-import static java.lang.Thread.sleep;
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
 import static java.lang.invoke.MethodHandles.lookup;
 import static java.util.concurrent.Executors.newScheduledThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.slf4j.LoggerFactory.getLogger;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -36,8 +41,8 @@ import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
 
+import io.elastest.eus.EusException;
 import io.elastest.eus.json.WebDriverLog;
 import io.elastest.eus.session.SessionInfo;
 
@@ -58,80 +63,218 @@ public class TimeoutService {
     @Value("${log.poll.ms}")
     private int logPollMs;
 
-    private Map<String, Future<?>> logFutureMap;
-    private ExecutorService logExecutor;
-    private ScheduledExecutorService timeoutExecutor = newScheduledThreadPool(
-            1);
+    @Value("${log.poll.max.ms}")
+    private int logPollMaxMs;
+
+    @Value("${log.poll.max.errors}")
+    private int logPollMaxErrors;
+
+    @Value("${session.timeout.sweep.ms}")
+    private int timeoutSweepMs;
+
+    @Value("${session.timeout.executor.size}")
+    private int timeoutExecutorSize;
+
+    @Value("${session.timeout.queue.size}")
+    private int timeoutQueueSize;
+
+    static final String BROWSER_LOG_REQUEST = "{\"type\":\"browser\"} ";
+
+    // Session id -> browser console log monitor
+    private Map<String, LogMonitor> logMonitors = new ConcurrentHashMap<>();
+    private ScheduledExecutorService logExecutor;
+
+    // Session id -> idle session watched by the sweeper
+    private Map<String, IdleSession> idleSessions = new ConcurrentHashMap<>();
+    private ScheduledExecutorService sweepExecutor;
+    private ExecutorService expirationExecutor;
 
     private LogstashService logstashService;
+    private HubClientService hubClientService;
 
     @Autowired
-    public TimeoutService(LogstashService logstashService) {
+    public TimeoutService(LogstashService logstashService,
+            HubClientService hubClientService) {
         this.logstashService = logstashService;
+        this.hubClientService = hubClientService;
     }
 
     @PostConstruct
     public void init() {
-        logExecutor = Executors.newFixedThreadPool(logExecutorSize);
-        logFutureMap = new HashMap<>(logExecutorSize);
+        logExecutor = newScheduledThreadPool(logExecutorSize);
+
+        expirationExecutor = new ThreadPoolExecutor(timeoutExecutorSize,
+                timeoutExecutorSize, 0L, MILLISECONDS,
+                new ArrayBlockingQueue<>(timeoutQueueSize));
+        sweepExecutor = newSingleThreadScheduledExecutor();
+        sweepExecutor.scheduleWithFixedDelay(this::sweep, timeoutSweepMs,
+                timeoutSweepMs, MILLISECONDS);
     }
 
     @PreDestroy
     public void cleanUp() {
-        logExecutor.shutdown();
+        logExecutor.shutdownNow();
+        sweepExecutor.shutdownNow();
+        expirationExecutor.shutdown();
     }
 
-    public void launchLogMonitor(String postUrl, String sessionId) {
-        if (!logFutureMap.containsKey(sessionId)) {
+    /**
+     * Starts polling the browser console log of a session. All the sessions
+     * share the same scheduler (of log.executor.size threads) and the pooled
+     * client of the hub. The poll interval is doubled (up to log.poll.max.ms)
+     * while no logs are received.
+     */
+    public void launchLogMonitor(String hubUrl, String postUrl,
+            String sessionId) {
+        LogMonitor logMonitor = new LogMonitor(hubUrl, postUrl, sessionId);
+        if (logMonitors.putIfAbsent(sessionId, logMonitor) == null) {
             log.info("Launching log monitor using URL {}", postUrl);
-            logFutureMap.put(sessionId, logExecutor.submit(() -> {
-                RestTemplate restTemplate = new RestTemplate();
-                while (true) {
-                    try {
-                        WebDriverLog response = restTemplate.postForEntity(
-                                postUrl, "{\"type\":\"browser\"} ",
-                                WebDriverLog.class).getBody();
-                        if (!response.getValue().isEmpty()) {
-                            String jsonMessages = logstashService
-                                    .getJsonMessageFromValueList(
-                                            response.getValue());
-                            logstashService.sendBrowserConsoleToLogstash(
-                                    jsonMessages, sessionId);
-                        }
-                        sleep(logPollMs);
+            logMonitor.schedule(logPollMs);
+        }
+    }
 
-                    } catch (Exception e) {
-                        log.trace("Termimating log monitor due to {}",
-                                e.getMessage());
-                        break;
-                    }
-                }
-            }));
+    public void stopLogMonitor(String sessionId) {
+        LogMonitor logMonitor = logMonitors.remove(sessionId);
+        if (logMonitor != null) {
+            log.trace("Stopping log monitor of session {}", sessionId);
+            logMonitor.cancel();
         }
     }
 
+    /**
+     * Registers a session in the idle sweeper (first call) or records its
+     * activity (next calls). The cost per command is constant: it only
+     * updates a timestamp.
+     */
     public void startSessionTimer(SessionInfo sessionInfo, int timeout,
             Runnable deleteSession) {
         if (sessionInfo != null) {
-            Future<?> timeoutFuture = timeoutExecutor.schedule(deleteSession,
-                    timeout, SECONDS);
-            sessionInfo.addTimeoutFuture(timeoutFuture);
+            sessionInfo.touch();
             sessionInfo.setTimeout(timeout);
-            log.trace("Starting timer in session {} (future {}) ({} seconds)",
-                    sessionInfo.getSessionId(), timeoutFuture, timeout);
+            if (!idleSessions.containsKey(sessionInfo.getSessionId())) {
+                idleSessions.putIfAbsent(sessionInfo.getSessionId(),
+                        new IdleSession(sessionInfo, deleteSession));
+                log.trace("Starting timer in session {} ({} seconds)",
+                        sessionInfo.getSessionId(), timeout);
+            }
         }
     }
 
     public void shutdownSessionTimer(SessionInfo sessionInfo) {
-        if (sessionInfo != null) {
-            sessionInfo.getTimeoutFutures().forEach(timeoutFuture -> {
-                if (timeoutFuture != null) {
-                    timeoutFuture.cancel(true);
-                    log.trace("Canceling timer in session {} (future {}) ",
-                            sessionInfo.getSessionId(), timeoutFuture);
+        if (sessionInfo != null && idleSessions
+                .remove(sessionInfo.getSessionId()) != null) {
+            log.trace("Canceling timer in session {}",
+                    sessionInfo.getSessionId());
+        }
+    }
+
+    private void sweep() {
+        long now = currentTimeMillis();
+        idleSessions.forEach((sessionId, idleSession) -> {
+            SessionInfo sessionInfo = idleSession.sessionInfo;
+            long idleMs = now - sessionInfo.getLastActivity();
+            if (idleMs < SECONDS.toMillis(sessionInfo.getTimeout())) {
+                return;
+            }
+            if (!idleSessions.remove(sessionId, idleSession)) {
+                return;
+            }
+            log.debug("Session {} idle for {} ms, expiring it", sessionId,
+                    idleMs);
+            try {
+                // Deletion (i.e. stopping containers) is done out of the
+                // sweeper, so a slow stop does not delay other expirations
+                expirationExecutor.execute(() -> {
+                    try {
+                        idleSession.deleteSession.run();
+                    } catch (Exception e) {
+                        log.debug("Session {} expired: {}", sessionId,
+                                e.getMessage());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.warn("Expiration queue full, retrying session {} later",
+                        sessionId);
+                idleSessions.putIfAbsent(sessionId, idleSession);
+            }
+        });
+    }
+
+    static class IdleSession {
+        final SessionInfo sessionInfo;
+        final Runnable deleteSession;
+
+        IdleSession(SessionInfo sessionInfo, Runnable deleteSession) {
+            this.sessionInfo = sessionInfo;
+            this.deleteSession = deleteSession;
+        }
+    }
+
+    private class LogMonitor implements Runnable {
+        final String hubUrl;
+        final String postUrl;
+        final String sessionId;
+
+        // Only accessed from the (single) scheduled run of this monitor
+        long delayMs = logPollMs;
+        int errors = 0;
+        volatile Future<?> future;
+
+        LogMonitor(String hubUrl, String postUrl, String sessionId) {
+            this.hubUrl = hubUrl;
+            this.postUrl = postUrl;
+            this.sessionId = sessionId;
+        }
+
+        void schedule(long delay) {
+            if (logMonitors.get(sessionId) == this) {
+                future = logExecutor.schedule(this, delay, MILLISECONDS);
+            }
+        }
+
+        void cancel() {
+            Future<?> scheduled = future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (logMonitors.get(sessionId) != this) {
+                return;
+            }
+            try {
+                // The tick is skipped (as an error) if the hub client has
+                // been released, not to create a new pool for the hub
+                WebDriverLog response = hubClientService
+                        .findRestTemplate(hubUrl)
+                        .orElseThrow(() -> new EusException(
+                                "Hub client of session " + sessionId
+                                        + " released"))
+                        .postForEntity(postUrl, BROWSER_LOG_REQUEST,
+                                WebDriverLog.class)
+                        .getBody();
+                errors = 0;
+                if (response != null && response.getValue() != null
+                        && !response.getValue().isEmpty()) {
+                    logstashService.enqueueBrowserConsole(response.getValue(),
+                            sessionId);
+                    delayMs = logPollMs;
+                } else {
+                    delayMs = min(delayMs * 2, logPollMaxMs);
+                }
+
+            } catch (Exception e) {
+                if (++errors >= logPollMaxErrors) {
+                    log.trace("Termimating log monitor due to {}",
+                            e.getMessage());
+                    logMonitors.remove(sessionId, this);
+                    return;
                 }
-            });
-            sessionInfo.getTimeoutFutures().clear();
+                delayMs = logPollMaxMs;
+            }
+            schedule(delayMs);
         }
     }
 
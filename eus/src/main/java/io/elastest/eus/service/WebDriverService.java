@@ -16,15 +16,12 @@
  */
 package io.elastest.eus.service;
 
-import static com.github.dockerjava.api.model.ExposedPort.tcp;
-import static com.github.dockerjava.api.model.Ports.Binding.bindPort;
-import static io.elastest.eus.docker.DockerContainer.dockerBuilder;
 import static java.lang.Integer.parseInt;
-import static java.lang.String.format;
 import static java.lang.invoke.MethodHandles.lookup;
-import static java.util.Arrays.asList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.stream;
 import static java.util.Optional.empty;
-import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
 import static org.slf4j.LoggerFactory.getLogger;
 import static org.springframework.http.HttpMethod.DELETE;
 import static org.springframework.http.HttpMethod.POST;
@@ -32,7 +29,7 @@ import static org.springframework.http.HttpStatus.FOUND;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
 import static org.springframework.http.HttpStatus.OK;
-import static java.lang.System.getenv;
+import static org.springframework.http.MediaType.APPLICATION_JSON_UTF8;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
@@ -41,6 +38,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
 
@@ -55,27 +53,26 @@ import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.ResponseErrorHandler;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.github.dockerjava.api.model.Bind;
-import com.github.dockerjava.api.model.ExposedPort;
-import com.github.dockerjava.api.model.PortBinding;
-import com.github.dockerjava.api.model.Ports.Binding;
-import com.github.dockerjava.api.model.Volume;
+import com.fasterxml.jackson.databind.JsonNode;
 
 import io.elastest.eus.EusException;
-import io.elastest.eus.docker.DockerContainer.DockerBuilder;
-import io.elastest.eus.json.WebDriverCapabilities;
-import io.elastest.eus.json.WebDriverCapabilities.DesiredCapabilities;
+import io.elastest.eus.json.DockerNodeStatus;
+import io.elastest.eus.json.SessionCapabilities;
 import io.elastest.eus.json.WebDriverError;
 import io.elastest.eus.json.WebDriverSessionResponse;
 import io.elastest.eus.json.WebDriverSessionValue;
 import io.elastest.eus.json.WebDriverStatus;
+import io.elastest.eus.service.JsonService.JsonPipeline;
 import io.elastest.eus.session.SessionInfo;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 
 /**
  * Service implementation for W3C WebDriver/JSON Wire Protocol.
@@ -88,47 +85,14 @@ public class WebDriverService {
 
     final Logger log = getLogger(lookup().lookupClass());
 
-    @Value("${et.host.env}")
-    private String etHostEnv;
-
     @Value("${server.servlet.context-path}")
     private String contextPath;
 
-    @Value("${eus.container.prefix}")
-    private String eusContainerPrefix;
-
-    @Value("${hub.exposedport}")
-    private int hubExposedPort;
-
-    @Value("${hub.vnc.exposedport}")
-    private int hubVncExposedPort;
-
-    @Value("${hub.novnc.exposedport}")
-    private int noVncExposedPort;
-
-    @Value("${hub.container.sufix}")
-    private String hubContainerSufix;
-
-    @Value("${novnc.html}")
-    private String vncHtml;
-
-    @Value("${hub.vnc.password}")
-    private String hubVncPassword;
-
     // Defined as String instead of integer for testing purposes (inject with
     // @TestPropertySource)
     @Value("${hub.timeout}")
     private String hubTimeout;
 
-    @Value("${browser.shm.size}")
-    private long shmSize;
-
-    @Value("${browser.screen.resolution}")
-    private String browserScreenResolution;
-
-    @Value("${browser.timezone}")
-    private String browserTimezone;
-
     @Value("${ws.dateformat}")
     private String wsDateFormat;
 
@@ -138,15 +102,6 @@ public class WebDriverService {
     @Value("${webdriver.navigation.get.message}")
     private String webdriverNavigationGetMessage;
 
-    @Value("${use.torm}")
-    private boolean useTorm;
-
-    @Value("${docker.network}")
-    private String dockerNetwork;
-
-    @Value("${create.session.timeout.sec}")
-    private int createSessionTimeoutSec;
-
     @Value("${create.session.retries}")
     private int createSessionRetries;
 
@@ -165,38 +120,62 @@ public class WebDriverService {
     @Value("${et.browser.component.prefix}")
     private String etBrowserComponentPrefix;
 
-    @Value("${registry.folder}")
-    private String registryFolder;
-
-    @Value("${container.recording.folder}")
-    private String containerRecordingFolder;
+    @Value("${proxy.streaming.enabled}")
+    private boolean proxyStreamingEnabled;
 
     String etInstrumentationKey = "elastest-instrumentation";
 
-    private DockerService dockerService;
     private DockerHubService dockerHubService;
+    private DockerService dockerService;
     private JsonService jsonService;
     private SessionService sessionService;
     private RecordingService recordingService;
     private TimeoutService timeoutService;
+    private HubClientService hubClientService;
+    private BrowserService browserService;
+    private BrowserPoolService browserPoolService;
+    private TeardownService teardownService;
+    private AdmissionService admissionService;
+    private MeterRegistry meterRegistry;
+    private ResponseErrorHandler responseErrorHandler = new DefaultResponseErrorHandler();
 
     @Autowired
-    public WebDriverService(DockerService dockerService,
-            DockerHubService dockerHubService, JsonService jsonService,
-            SessionService sessionService, RecordingService recordingService,
-            TimeoutService timeoutService) {
-        this.dockerService = dockerService;
+    public WebDriverService(DockerHubService dockerHubService,
+            DockerService dockerService, JsonService jsonService,
+            SessionService sessionService,
+            RecordingService recordingService, TimeoutService timeoutService,
+            HubClientService hubClientService, BrowserService browserService,
+            BrowserPoolService browserPoolService,
+            TeardownService teardownService,
+            AdmissionService admissionService, MeterRegistry meterRegistry) {
         this.dockerHubService = dockerHubService;
+        this.dockerService = dockerService;
         this.jsonService = jsonService;
         this.sessionService = sessionService;
         this.recordingService = recordingService;
         this.timeoutService = timeoutService;
+        this.hubClientService = hubClientService;
+        this.browserService = browserService;
+        this.browserPoolService = browserPoolService;
+        this.teardownService = teardownService;
+        this.admissionService = admissionService;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        // Sessions of this instance deleted through other instances
+        sessionService.setRemoteRemovalHandler(sessionInfo -> {
+            releaseSession(sessionInfo);
+            browserService.releasePorts(sessionInfo);
+        });
     }
 
     @PreDestroy
     public void cleanUp() {
         // Before shutting down the EUS, all recording files must have been
-        // processed
+        // processed (the teardown service drains these teardowns when it is
+        // destroyed, i.e. after this service)
         sessionService.getSessionRegistry()
                 .forEach((sessionId, sessionInfo) -> stopBrowser(sessionInfo));
     }
@@ -209,13 +188,23 @@ public class WebDriverService {
         return new ResponseEntity<>(statusBody, OK);
     }
 
+    public ResponseEntity<String> getNodes() throws IOException {
+        List<DockerNodeStatus> nodes = dockerService.getNodes().stream()
+                .map(DockerNodeStatus::new).collect(toList());
+        return new ResponseEntity<>(jsonService.objectToJson(nodes), OK);
+    }
+
     public ResponseEntity<String> session(HttpEntity<String> httpEntity,
             HttpServletRequest request)
             throws IOException, InterruptedException {
-        StringBuffer requestUrl = request.getRequestURL();
-        String requestContext = requestUrl.substring(
-                requestUrl.lastIndexOf(contextPath) + contextPath.length());
-        HttpMethod method = HttpMethod.resolve(request.getMethod());
+        return session(httpEntity, request.getRequestURL().toString(),
+                HttpMethod.resolve(request.getMethod()));
+    }
+
+    public ResponseEntity<String> session(HttpEntity<String> httpEntity,
+            String requestUrl, HttpMethod method)
+            throws IOException, InterruptedException {
+        String requestContext = getRequestContext(requestUrl);
         String requestBody = jsonService.sanitizeMessage(httpEntity.getBody());
 
         log.debug(">> Request: {} {} -- body: {}", method, requestContext,
@@ -228,38 +217,30 @@ public class WebDriverService {
         // Intercept create session
         boolean isCreateSession = isPostSessionRequest(method, requestContext);
         String newRequestBody = requestBody;
+        SessionCapabilities capabilities = null;
         if (isCreateSession) {
+            // The request is decoded once (JSON Wire and W3C capabilities)
+            JsonNode requestTree = jsonService.readTree(requestBody);
+            capabilities = jsonService.parseCapabilities(requestTree);
 
-            String browserName = jsonService
-                    .jsonToObject(requestBody, WebDriverCapabilities.class)
-                    .getDesiredCapabilities().getBrowserName();
+            String browserName = capabilities.getBrowserName();
             if (browserName == null) {
-
-                try {
-                    ObjectMapper objectMapper = new ObjectMapper();
-                    browserName = objectMapper.readTree(requestBody)
-                            .get("capabilities").get("alwaysMatch")
-                            .get("browserName").textValue();
-                } catch (Exception e) {
-                    return new ResponseEntity<String>(
-                            "Browser name not recognized in request",
-                            HttpStatus.BAD_REQUEST);
-                }
+                return new ResponseEntity<String>(
+                        "Browser name not recognized in request",
+                        HttpStatus.BAD_REQUEST);
             }
+            String version = capabilities.getVersion();
 
-            String version = jsonService
-                    .jsonToObject(requestBody, WebDriverCapabilities.class)
-                    .getDesiredCapabilities().getVersion();
-
-            newRequestBody = processStartSessionRequest(requestBody,
+            JsonNode newRequestTree = processStartSessionRequest(requestTree,
                     browserName);
+            newRequestBody = jsonService.pipeline(newRequestTree).toJson();
             httpEntity = new HttpEntity<>(newRequestBody);
 
             // If live, no timeout
-            liveSession = isLive(requestBody);
-            sessionInfo = startBrowser(newRequestBody, requestBody);
-            optionalHttpEntity = optionalHttpEntity(newRequestBody, browserName,
-                    version);
+            liveSession = capabilities.isLive();
+            sessionInfo = startBrowser(capabilities);
+            optionalHttpEntity = optionalHttpEntity(newRequestTree,
+                    browserName, version);
 
         } else {
             Optional<String> sessionIdFromPath = getSessionIdFromPath(
@@ -280,75 +261,167 @@ public class WebDriverService {
             }
         }
 
-        // Proxy request to browser
-        String responseBody = null;
-        boolean exchangeAgain = false;
-        int numRetries = 0;
-        do {
-            responseBody = exchange(httpEntity, requestContext, method,
-                    sessionInfo, optionalHttpEntity, isCreateSession);
-            exchangeAgain = responseBody == null;
-            if (this.isPostUrlRequest(method, requestContext)) {
-                this.manageWebRtcMonitoring(sessionInfo);
-            }
-            if (exchangeAgain) {
-                if (numRetries < createSessionRetries) {
-                    log.debug("Stopping browser and starting new one {}",
-                            sessionInfo);
-                    stopBrowser(sessionInfo);
-                    sessionInfo = startBrowser(newRequestBody, requestBody);
-                    numRetries++;
-                    log.debug(
-                            "Problem in POST /session request ... retrying {}/{}",
-                            numRetries, createSessionRetries);
-                    continue;
+        try {
+            // Proxy request to browser
+            String responseBody = null;
+            boolean exchangeAgain = false;
+            int numRetries = 0;
+            do {
+                responseBody = exchange(httpEntity, requestContext, method,
+                        sessionInfo, optionalHttpEntity, isCreateSession);
+                exchangeAgain = responseBody == null;
+                if (this.isPostUrlRequest(method, requestContext)) {
+                    this.manageWebRtcMonitoring(sessionInfo);
                 }
-                throw new EusException(
-                        "Exception creating session in remote browser (num retries "
-                                + createSessionRetries + ")");
-            }
-        } while (exchangeAgain);
+                if (exchangeAgain) {
+                    if (numRetries < createSessionRetries) {
+                        log.debug("Stopping browser and starting new one {}",
+                                sessionInfo);
+                        stopBrowser(sessionInfo);
+                        // Not stopped again if the new one cannot be started
+                        sessionInfo = null;
+                        sessionInfo = startBrowser(capabilities);
+                        numRetries++;
+                        log.debug(
+                                "Problem in POST /session request ... retrying {}/{}",
+                                numRetries, createSessionRetries);
+                        continue;
+                    }
+                    throw new EusException(
+                            "Exception creating session in remote browser (num retries "
+                                    + createSessionRetries + ")");
+                }
+            } while (exchangeAgain);
 
-        // Handle response
-        HttpStatus responseStatus = sessionResponse(requestContext, method,
-                sessionInfo, liveSession, responseBody);
+            // Handle response
+            HttpStatus responseStatus = sessionResponse(requestContext,
+                    method, sessionInfo, liveSession, responseBody);
 
-        if (isCreateSession) {
-            // Maximize Browser Window
-            String maximizeChrome = "/window/:windowHandle/maximize";
-            String maximizeOther = "/window/maximize";
-            try {
-                exchange(httpEntity,
-                        requestContext + "/" + sessionInfo.getSessionId()
-                                + maximizeChrome,
-                        method, sessionInfo, optionalHttpEntity, false);
-            } catch (Exception e) {
-                exchange(httpEntity,
-                        requestContext + "/" + sessionInfo.getSessionId()
-                                + maximizeOther,
-                        method, sessionInfo, optionalHttpEntity, false);
+            if (isCreateSession) {
+                // Maximize Browser Window
+                String maximizeChrome = "/window/:windowHandle/maximize";
+                String maximizeOther = "/window/maximize";
+                try {
+                    exchange(httpEntity,
+                            requestContext + "/" + sessionInfo.getSessionId()
+                                    + maximizeChrome,
+                            method, sessionInfo, optionalHttpEntity, false);
+                } catch (Exception e) {
+                    exchange(httpEntity,
+                            requestContext + "/" + sessionInfo.getSessionId()
+                                    + maximizeOther,
+                            method, sessionInfo, optionalHttpEntity, false);
+                }
+                // Start Recording if not is manual recording
+                if (!sessionInfo.isManualRecording()) {
+                    // Start Recording
+                    log.debug("Session with automatic recording");
+                    recordingService.startRecording(sessionInfo);
+                }
             }
-            // Start Recording if not is manual recording
-            if (!sessionInfo.isManualRecording()) {
-                // Start Recording
-                log.debug("Session with automatic recording");
-                recordingService.startRecording(sessionInfo);
+
+            // Handle timeout
+            handleTimeout(requestContext, method, sessionInfo,
+                    liveSession, isCreateSession);
+
+            // Send Hub Container name too
+            responseBody = jsonService.addField(responseBody,
+                    "hubContainerName", sessionInfo.getHubContainerName());
+
+            recordPayloadSize(method, requestContext, responseBody != null
+                    ? responseBody.getBytes(UTF_8).length : 0);
+            return new ResponseEntity<>(responseBody, responseStatus);
+
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            if (isCreateSession && sessionInfo != null) {
+                // The browser (container, ports and admission slot) is
+                // released if the session cannot be created
+                stopBrowser(sessionInfo);
             }
+            throw e;
         }
+    }
 
-        // Handle timeout
-        handleTimeout(requestContext, method, sessionInfo, liveSession,
-                isCreateSession);
+    /**
+     * Commands that are not intercepted (i.e. all but session creation and
+     * deletion, and navigation) can be streamed from the browser.
+     */
+    public boolean isStreamingRequest(String requestUrl, HttpMethod method) {
+        String requestContext = getRequestContext(requestUrl);
+        return proxyStreamingEnabled
+                && !isPostSessionRequest(method, requestContext)
+                && !isDeleteSessionRequest(method, requestContext)
+                && !isPostUrlRequest(method, requestContext);
+    }
+
+    public ResponseEntity<StreamingResponseBody> streamSession(
+            HttpEntity<String> httpEntity, String requestUrl,
+            HttpMethod method) throws IOException {
+        String requestContext = getRequestContext(requestUrl);
+        log.debug(">> Request: {} {} -- body: {}", method, requestContext,
+                jsonService.sanitizeMessage(httpEntity.getBody()));
+        Optional<SessionInfo> optionalSession = getSessionIdFromPath(
+                requestContext).flatMap(sessionService::getSession);
+        if (!optionalSession.isPresent()) {
+            log.debug("<< Response: {} ", NOT_FOUND);
+            return new ResponseEntity<>(NOT_FOUND);
+        }
+        SessionInfo sessionInfo = optionalSession.get();
+        String hubUrl = sessionInfo.getHubUrl();
+        log.debug("-> Streaming request to browser: {} {}{}", method, hubUrl,
+                requestContext);
+
+        ClientHttpResponse response = hubClientService.executeStreaming(
+                hubUrl, hubUrl + requestContext, method, httpEntity);
+        log.debug("<- Streaming response from browser: {}",
+                response.getStatusCode());
+        if (responseErrorHandler.hasError(response)) {
+            // The same exception as the one of the rest template used for the
+            // requests read in memory
+            try (ClientHttpResponse browserResponse = response) {
+                responseErrorHandler.handleError(browserResponse);
+            }
+        }
 
-        // Send Hub Container name too
+        handleTimeout(requestContext, method, sessionInfo,
+                sessionInfo.isLiveSession(), false);
 
-        String jqSetHubContainerName = "walk(if type == \"object\" then .hubContainerName += \""
-                + sessionInfo.getHubContainerName() + "\"  else . end)";
+        // Same status and headers as the responses read in memory
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(APPLICATION_JSON_UTF8);
+
+        StreamingResponseBody body = outputStream -> {
+            try (ClientHttpResponse browserResponse = response) {
+                // Hub Container name is added without reading the whole body
+                long size = jsonService.copyAddingField(
+                        browserResponse.getBody(), outputStream,
+                        "hubContainerName", sessionInfo.getHubContainerName());
+                recordPayloadSize(method, requestContext, size);
+            }
+        };
+        return new ResponseEntity<>(body, headers, OK);
+    }
 
-        responseBody = jsonService.processJsonWithJq(responseBody,
-                jqSetHubContainerName);
+    private void recordPayloadSize(HttpMethod method, String requestContext,
+            long size) {
+        DistributionSummary.builder("eus.webdriver.payload.size")
+                .description("Size of the responses of WebDriver commands")
+                .baseUnit("bytes").tag("method", method.name())
+                .tag("command", getCommand(requestContext))
+                .register(meterRegistry).record(size);
+    }
 
-        return new ResponseEntity<>(responseBody, responseStatus);
+    /**
+     * Command name: first path segment after the session id (e.g. element
+     * for /session/{sessionId}/element/{elementId}/click), or session.
+     */
+    private String getCommand(String requestContext) {
+        List<String> segments = stream(requestContext.split("/"))
+                .filter(segment -> !segment.isEmpty()).collect(toList());
+        int session = segments.indexOf("session");
+        return session >= 0 && session + 2 < segments.size()
+                ? segments.get(session + 2)
+                : "session";
     }
 
     public boolean manageWebRtcMonitoring(SessionInfo sessionInfo) {
@@ -431,6 +504,11 @@ public class WebDriverService {
 
     public ResponseEntity<String> getErrorResponse(String message,
             Exception exception) {
+        return getErrorResponse(message, exception, INTERNAL_SERVER_ERROR);
+    }
+
+    public ResponseEntity<String> getErrorResponse(String message,
+            Exception exception, HttpStatus status) {
         WebDriverError webDriverError = new WebDriverError("EUS internal error",
                 message, exception);
         log.error("{}", webDriverError);
@@ -441,7 +519,7 @@ public class WebDriverService {
             log.warn("Exception parsing error message: {} {}", message,
                     exception, e);
         }
-        return new ResponseEntity<>(errorMessage, INTERNAL_SERVER_ERROR);
+        return new ResponseEntity<>(errorMessage, status);
     }
 
     private void handleTimeout(String requestContext, HttpMethod method,
@@ -452,52 +530,53 @@ public class WebDriverService {
             String sessionId = sessionInfo.getSessionId();
             String postUrl = sessionInfo.getHubUrl() + "/session/" + sessionId
                     + "/log";
-            timeoutService.launchLogMonitor(postUrl, sessionId);
+            timeoutService.launchLogMonitor(sessionInfo.getHubUrl(),
+                    postUrl, sessionId);
         }
 
         // Only using timer for non-live sessions
         if (!liveSession) {
-            timeoutService.shutdownSessionTimer(sessionInfo);
-            final SessionInfo finalSessionInfo = sessionInfo;
-            Runnable deleteSession = () -> deleteSession(finalSessionInfo,
-                    true);
-
-            if (!isDeleteSessionRequest(method, requestContext)) {
+            if (isDeleteSessionRequest(method, requestContext)) {
+                timeoutService.shutdownSessionTimer(sessionInfo);
+            } else if (!sessionService.isLocalSession(sessionInfo)) {
+                // The instance which created the session expires it
+                sessionService.touchSession(sessionInfo);
+            } else {
+                final SessionInfo finalSessionInfo = sessionInfo;
                 timeoutService.startSessionTimer(sessionInfo,
-                        parseInt(hubTimeout), deleteSession);
+                        parseInt(hubTimeout),
+                        () -> deleteSession(finalSessionInfo, true));
             }
         }
     }
 
-    private String processStartSessionRequest(String requestBody,
+    private JsonNode processStartSessionRequest(JsonNode requestTree,
             String browserName) throws IOException {
-        String newRequestBody;
+        // All the changes are applied to the same tree
+        JsonPipeline newRequestBody = jsonService.pipeline(requestTree);
+
         // JSON processing to activate always the browser logging
         String jqActivateBrowserLogging = "walk(if type == \"object\" and .desiredCapabilities then .desiredCapabilities += { \"loggingPrefs\": { \"browser\" : \"ALL\" } }  else . end)";
-        newRequestBody = jsonService.processJsonWithJq(requestBody,
-                jqActivateBrowserLogging);
+        newRequestBody.jq(jqActivateBrowserLogging);
 
         // JSON processing to add binary path if opera
         if (browserName.equalsIgnoreCase("operablink")) {
             String jqOperaBinary = "walk(if type == \"object\" and .desiredCapabilities then .desiredCapabilities += { \"operaOptions\": {\"args\": [], \"binary\": \"/usr/bin/opera\", \"extensions\": [] } }  else . end)";
-            newRequestBody = jsonService.processJsonWithJq(newRequestBody,
-                    jqOperaBinary);
+            newRequestBody.jq(jqOperaBinary);
         }
 
         // JSON processing to remove banner if chrome
         if (browserName.equalsIgnoreCase("chrome")) {
             // Concat
             String jqChromeBanner = "walk(if type == \"object\" and .desiredCapabilities then .desiredCapabilities.chromeOptions.args += .desiredCapabilities.chromeOptions.args + [\"disable-infobars\"] else . end)";
-            newRequestBody = jsonService.processJsonWithJq(newRequestBody,
-                    jqChromeBanner);
+            newRequestBody.jq(jqChromeBanner);
         }
 
         // JSON processing to remove browserId
         String jqRemoveBrowserId = "walk(if type == \"object\" then del(.browserId) else . end)";
-        newRequestBody = jsonService.processJsonWithJq(newRequestBody,
-                jqRemoveBrowserId);
+        newRequestBody.jq(jqRemoveBrowserId);
 
-        return newRequestBody;
+        return newRequestBody.getTree();
     }
 
     private HttpStatus sessionResponse(String requestContext, HttpMethod method,
@@ -525,15 +604,6 @@ public class WebDriverService {
             Optional<HttpEntity<String>> optionalHttpEntity,
             boolean isCreateSession) throws JsonProcessingException {
         String hubUrl = sessionInfo.getHubUrl();
-
-        HttpComponentsClientHttpRequestFactory httpRequestFactory = new HttpComponentsClientHttpRequestFactory();
-        if (isCreateSession) {
-            int timeoutMillis = (int) SECONDS.toMillis(createSessionTimeoutSec);
-            httpRequestFactory.setConnectTimeout(timeoutMillis);
-            httpRequestFactory.setConnectionRequestTimeout(timeoutMillis);
-            httpRequestFactory.setReadTimeout(timeoutMillis);
-        }
-        RestTemplate restTemplate = new RestTemplate(httpRequestFactory);
         String finalUrl = hubUrl + requestContext;
         HttpEntity<?> finalHttpEntity = optionalHttpEntity.isPresent()
                 ? optionalHttpEntity.get() : httpEntity;
@@ -541,8 +611,8 @@ public class WebDriverService {
         log.debug("-> Request to browser: {} {} {}", method, finalUrl,
                 finalHttpEntity);
         try {
-            response = restTemplate.exchange(finalUrl, method, finalHttpEntity,
-                    String.class);
+            response = hubClientService.exchange(hubUrl, finalUrl, method,
+                    finalHttpEntity, isCreateSession);
         } catch (Exception e) {
             if (isCreateSession) {
                 log.debug("## Exception exchanging request", e);
@@ -588,13 +658,15 @@ public class WebDriverService {
 
         sessionService.putSession(sessionId, sessionInfo);
 
-        if (sessionService.activeWebSocketSessions() && !isLive) {
+        // Published even without clients, to keep the feed history complete
+        if (!isLive) {
             sessionService.sendNewSessionToAllClients(sessionInfo);
         }
     }
 
-    private Optional<HttpEntity<String>> optionalHttpEntity(String requestBody,
-            String browserName, String version) throws IOException {
+    private Optional<HttpEntity<String>> optionalHttpEntity(
+            JsonNode requestTree, String browserName, String version)
+            throws IOException {
         // Workaround due to bug of selenium-server 3.4.0
         // More info on: https://github.com/SeleniumHQ/selenium/issues/3808
         boolean firefoxWithVersion = browserName.equalsIgnoreCase("firefox")
@@ -606,8 +678,8 @@ public class WebDriverService {
                         || version.equalsIgnoreCase("nightly"));
         if (firefoxWithVersion || betaUnstable) {
             String jqRemoveVersionContent = "walk(if type == \"object\" and .version then .version=\"\" else . end)";
-            String jsonFirefox = jsonService.processJsonWithJq(requestBody,
-                    jqRemoveVersionContent);
+            String jsonFirefox = jsonService.pipeline(requestTree)
+                    .jq(jqRemoveVersionContent).toJson();
             log.debug("Using capabilities with empty version {}", jsonFirefox);
             return Optional.of(new HttpEntity<String>(jsonFirefox));
         }
@@ -620,13 +692,8 @@ public class WebDriverService {
         return responseEntity;
     }
 
-    public SessionInfo startBrowser(String requestBody,
-            String originalRequestBody)
+    public SessionInfo startBrowser(SessionCapabilities capabilities)
             throws IOException, InterruptedException {
-        DesiredCapabilities capabilities = jsonService
-                .jsonToObject(requestBody, WebDriverCapabilities.class)
-                .getDesiredCapabilities();
-
         String browserName = capabilities.getBrowserName();
         browserName = browserName.equalsIgnoreCase("operablink") ? "opera"
                 : browserName;
@@ -635,141 +702,109 @@ public class WebDriverService {
         String imageId = dockerHubService.getBrowserImageFromCapabilities(
                 browserName, version, platform);
 
-        log.info("Using {} as Docker image for {}", imageId, browserName);
-        String hubContainerName = dockerService
-                .generateContainerName(eusContainerPrefix + hubContainerSufix);
-
-        // Recording Volume
-        Volume recordings = new Volume(containerRecordingFolder);
-        List<Volume> volumes = asList(recordings);
-
-        List<Bind> volumeBinds = asList(new Bind(registryFolder, recordings));
-
-        // Port binding
-        int hubPort = dockerService.findRandomOpenPort();
-        Binding bindHubPort = bindPort(hubPort);
-        ExposedPort exposedHubPort = tcp(hubExposedPort);
-
-        int vncPort = dockerService.findRandomOpenPort();
-        Binding bindVncPort = bindPort(vncPort);
-        ExposedPort exposedVncPort = tcp(hubVncExposedPort);
-
-        int noVncBindedPort = dockerService.findRandomOpenPort();
-        Binding bindNoVncPort = bindPort(noVncBindedPort);
-        ExposedPort exposedNoVncPort = tcp(noVncExposedPort);
-
-        List<PortBinding> portBindings = asList(
-                new PortBinding(bindHubPort, exposedHubPort),
-                new PortBinding(bindVncPort, exposedVncPort),
-                new PortBinding(bindNoVncPort, exposedNoVncPort));
-        List<ExposedPort> exposedPorts = asList(exposedHubPort, exposedVncPort,
-                exposedNoVncPort);
-
-        // Envs
-        List<String> envs = asList(
-                "SCREEN_RESOLUTION=" + browserScreenResolution,
-                "TZ=" + browserTimezone);
-
-        DockerBuilder dockerBuilder = dockerBuilder(imageId, hubContainerName)
-                .exposedPorts(exposedPorts).portBindings(portBindings)
-                .volumes(volumes).binds(volumeBinds).shmSize(shmSize)
-                .envs(envs);
-        if (useTorm) {
-            dockerBuilder.network(dockerNetwork);
+        // Admission control: new sessions wait for a browser slot
+        admissionService.acquireBrowser();
+        SessionInfo sessionInfo;
+        try {
+            Optional<SessionInfo> pooledBrowser = browserPoolService
+                    .claim(imageId);
+            if (pooledBrowser.isPresent()) {
+                sessionInfo = pooledBrowser.get();
+                admissionService.admit(sessionInfo);
+            } else {
+                final String finalBrowserName = browserName;
+                sessionInfo = admissionService
+                        .start(() -> browserService.startBrowserContainer(
+                                finalBrowserName, imageId));
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            admissionService.cancel();
+            throw e;
         }
 
-        // Start
-        dockerService.startAndWaitContainer(dockerBuilder.build());
-
-        // Wait Reachable
-        String hubPath = "/wd/hub";
-        String hubIp = dockerService.getDockerServerIp();
-        String hubUrl = "http://" + hubIp + ":" + hubPort + hubPath;
-        dockerService.waitForHostIsReachable(hubUrl);
-        log.debug("Container: {} -- Hub URL: {}", hubContainerName, hubUrl);
-
-        // Save info into SessionInfo
-        SessionInfo sessionInfo = new SessionInfo();
-        sessionInfo.setHubUrl(hubUrl);
-        sessionInfo.setHubContainerName(hubContainerName);
-        sessionInfo.setBrowser(browserName);
-        sessionInfo.setVersion(dockerHubService.getVersionFromImage(imageId));
         SimpleDateFormat dateFormat = new SimpleDateFormat(wsDateFormat);
         sessionInfo.setCreationTime(dateFormat.format(new Date()));
-        sessionInfo.setHubBindPort(hubPort);
-        sessionInfo.setHubVncBindPort(hubPort);
-
-        String vncUrlFormat = "http://%s:%d/" + vncHtml
-                + "?resize=scale&autoconnect=true&password=" + hubVncPassword;
-        String vncUrl = format(vncUrlFormat, hubIp, noVncBindedPort);
-
-        String etHost = getenv(etHostEnv);
-        if (etHost != null) {
-            if (!etHost.equalsIgnoreCase("localhost")) {
-                hubIp = etHost;
-                vncUrl = format(vncUrlFormat, hubIp, noVncBindedPort);
-            }
-        }
-
-        dockerService.waitForHostIsReachable(vncUrl);
-
-        sessionInfo.setVncContainerName(hubContainerName);
-        sessionInfo.setVncUrl(vncUrl);
-        sessionInfo.setNoVncBindPort(noVncBindedPort);
-
-        String browserId = jsonService
-                .jsonToObject(originalRequestBody, WebDriverCapabilities.class)
-                .getDesiredCapabilities().getBrowserId();
-        sessionInfo.setBrowserId(browserId);
 
-        boolean manualRecording = jsonService
-                .jsonToObject(originalRequestBody, WebDriverCapabilities.class)
-                .getDesiredCapabilities().isManualRecording();
-        sessionInfo.setManualRecording(manualRecording);
+        sessionInfo.setBrowserId(capabilities.getBrowserId());
+        sessionInfo.setManualRecording(capabilities.isManualRecording());
 
         return sessionInfo;
     }
 
+    /**
+     * Deletes a session. The session is unregistered synchronously, and the
+     * rest of the teardown (stop recording, store its metadata, and stop the
+     * containers) is done asynchronously by the teardown service.
+     */
     public void deleteSession(SessionInfo sessionInfo, boolean timeout) {
-        try {
-            if (timeout) {
-                log.warn("Deleting session {} due to timeout of {} seconds",
-                        sessionInfo.getSessionId(), sessionInfo.getTimeout());
-            } else {
-                log.info("Deleting session {}", sessionInfo.getSessionId());
-            }
-
-            if (sessionInfo.getVncContainerName() != null) {
-                // Stop recording even if manually managed
-                recordingService.stopRecording(sessionInfo);
-                recordingService.storeMetadata(sessionInfo);
-                sessionService.sendRecordingToAllClients(sessionInfo);
-            }
+        String sessionId = sessionInfo.getSessionId();
+        if (timeout) {
+            log.warn("Deleting session {} due to timeout of {} seconds",
+                    sessionId, sessionInfo.getTimeout());
+        } else {
+            log.info("Deleting session {}", sessionId);
+        }
 
-            if (!sessionInfo.isLiveSession()) {
+        try {
+            // Browsers which never got a session were not notified
+            if (!sessionInfo.isLiveSession() && sessionId != null) {
                 sessionService.sendRemoveSessionToAllClients(sessionInfo);
             }
-
         } catch (Exception e) {
-            log.error("There was a problem deleting session {}",
-                    sessionInfo.getSessionId(), e);
-            throw new EusException(e);
+            log.warn("Exception notifying removal of session {}: {}",
+                    sessionId, e.getMessage());
         } finally {
-            sessionService.stopAllContainerOfSession(sessionInfo);
-            sessionService.removeSession(sessionInfo.getSessionId());
+            sessionService.removeSession(sessionId);
+            releaseSession(sessionInfo);
+        }
+        if (!sessionService.isLocalSession(sessionInfo)) {
+            // Created by another instance, which releases its host ports
+            sessionService.adoptSession(sessionInfo);
+        }
 
-            timeoutService.shutdownSessionTimer(sessionInfo);
+        TeardownService.Teardown teardown = teardownService
+                .teardown(sessionId);
+        if (sessionInfo.getVncContainerName() != null) {
+            // Stop recording even if manually managed
+            teardown.then("stop recording",
+                    () -> recordingService.stopRecording(sessionInfo))
+                    .then("store metadata",
+                            () -> recordingService.storeMetadata(sessionInfo))
+                    // Not broadcast again if storing metadata is retried
+                    .then("notify recording", () -> sessionService
+                            .sendRecordingToAllClients(sessionInfo));
         }
+        teardown.then("remove containers",
+                () -> sessionService.stopAllContainerOfSession(sessionInfo))
+                .submit();
+
         if (timeout) {
             throw new EusException("Timeout of " + sessionInfo.getTimeout()
-                    + " seconds in session " + sessionInfo.getSessionId());
+                    + " seconds in session " + sessionId);
         }
     }
 
+    private void releaseSession(SessionInfo sessionInfo) {
+        timeoutService.stopLogMonitor(sessionInfo.getSessionId());
+        timeoutService.shutdownSessionTimer(sessionInfo);
+        hubClientService.releaseHubClient(sessionInfo.getHubUrl());
+        admissionService.release(sessionInfo);
+    }
+
     private void stopBrowser(SessionInfo sessionInfo) {
         deleteSession(sessionInfo, false);
     }
 
+    public boolean isCreateSessionRequest(String requestUrl,
+            HttpMethod method) {
+        return isPostSessionRequest(method, getRequestContext(requestUrl));
+    }
+
+    private String getRequestContext(String requestUrl) {
+        return requestUrl.substring(
+                requestUrl.lastIndexOf(contextPath) + contextPath.length());
+    }
+
     private boolean isPostSessionRequest(HttpMethod method, String context) {
         if (context.startsWith("//")) {
             context = context.substring(1);
@@ -787,21 +822,6 @@ public class WebDriverService {
                 && countCharsInString(context, '/') == 2;
     }
 
-    private boolean isLive(String jsonMessage) {
-        boolean out = false;
-        try {
-            out = jsonService
-                    .jsonToObject(jsonMessage, WebDriverCapabilities.class)
-                    .getDesiredCapabilities().isLive();
-        } catch (Exception e) {
-            log.warn(
-                    "Exception {} checking if session is live. JSON message: {}",
-                    e.getMessage(), jsonMessage);
-        }
-        log.trace("Live session = {} -- JSON message: {}", out, jsonMessage);
-        return out;
-    }
-
     public Optional<String> getSessionIdFromPath(String path) {
         Optional<String> out = Optional.empty();
         int i = path.indexOf(webdriverSessionMessage);
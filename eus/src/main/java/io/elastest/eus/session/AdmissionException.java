@@ -0,0 +1,35 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.session;
+
+import io.elastest.eus.EusException;
+
+/**
+ * Exception raised when a new session cannot be admitted (i.e. there is no
+ * browser capacity before the queue timeout).
+ *
+ * @since 0.9.1
+ */
+public class AdmissionException extends EusException {
+
+    private static final long serialVersionUID = 1L;
+
+    public AdmissionException(String msg) {
+        super(msg);
+    }
+
+}
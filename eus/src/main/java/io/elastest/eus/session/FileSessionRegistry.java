@@ -0,0 +1,363 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.session;
+
+import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
+import static java.lang.String.format;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.elastest.eus.EusException;
+
+/**
+ * Session registry shared by several EUS instances through a common folder
+ * (e.g. a volume mounted in every replica). Each session is stored as a
+ * JSON file (sessions/{sessionId}.json), and each event as a file
+ * (events/{time}-{instance}-{n}.json) which is kept for a retention period.
+ * The folder is polled to detect the sessions created and removed by other
+ * instances, and their events. Sessions are cached locally, so that the
+ * hub URL of a session is read from disk only once per instance. The
+ * activity of a session in other instances is recorded as the modification
+ * time of its file.
+ *
+ * @since 0.9.1
+ */
+public class FileSessionRegistry implements SessionRegistry {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    static final String SESSIONS = "sessions";
+    static final String EVENTS = "events";
+    static final String JSON = ".json";
+    static final String TMP = ".tmp";
+
+    private Path sessionsFolder;
+    private Path eventsFolder;
+    private String instanceId;
+    private long pollMs;
+    private long touchMs;
+    private long eventRetentionMs;
+    private long startTime = currentTimeMillis();
+
+    private ObjectMapper objectMapper = new ObjectMapper()
+            .configure(FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    // Session id -> session (of this or other instances)
+    private Map<String, SessionInfo> sessions = new ConcurrentHashMap<>();
+
+    // Session id -> last time its file was touched by this instance
+    private Map<String, Long> touches = new ConcurrentHashMap<>();
+
+    // Sessions being removed by this instance
+    private Set<String> removing = ConcurrentHashMap.newKeySet();
+
+    private Set<String> seenEvents = new HashSet<>();
+    private AtomicLong eventCount = new AtomicLong();
+
+    private volatile SessionRegistryListener listener;
+    private ScheduledExecutorService pollExecutor;
+
+    public FileSessionRegistry(Path folder, String instanceId, long pollMs,
+            long touchMs, long eventRetentionMs) {
+        this.sessionsFolder = folder.resolve(SESSIONS);
+        this.eventsFolder = folder.resolve(EVENTS);
+        this.instanceId = instanceId;
+        this.pollMs = pollMs;
+        this.touchMs = touchMs;
+        this.eventRetentionMs = eventRetentionMs;
+        try {
+            Files.createDirectories(sessionsFolder);
+            Files.createDirectories(eventsFolder);
+        } catch (IOException e) {
+            throw new EusException(
+                    "Exception creating session registry in " + folder, e);
+        }
+    }
+
+    public void start() {
+        poll();
+        pollExecutor = newSingleThreadScheduledExecutor();
+        pollExecutor.scheduleWithFixedDelay(this::poll, pollMs, pollMs,
+                MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (pollExecutor != null) {
+            pollExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void put(String sessionId, SessionInfo sessionInfo) {
+        if (sessionInfo.getOwner() == null) {
+            sessionInfo.setOwner(instanceId);
+        }
+        try {
+            // Written before caching it, not to be seen as removed by poll
+            write(sessionsFolder, sessionId + JSON,
+                    objectMapper.writeValueAsBytes(sessionInfo));
+        } catch (IOException e) {
+            throw new EusException("Exception storing session " + sessionId,
+                    e);
+        }
+        sessions.put(sessionId, sessionInfo);
+    }
+
+    @Override
+    public Optional<SessionInfo> get(String sessionId) {
+        SessionInfo sessionInfo = sessions.get(sessionId);
+        if (sessionInfo == null) {
+            // Created by another instance since last poll
+            sessionInfo = read(sessionsFolder.resolve(sessionId + JSON));
+            if (sessionInfo != null) {
+                sessionInfo = cache(sessionId, sessionInfo);
+            }
+        }
+        return Optional.ofNullable(sessionInfo);
+    }
+
+    @Override
+    public void remove(String sessionId) {
+        // The file is deleted before evicting the session from the cache,
+        // so that a concurrent poll cannot cache it again. Meanwhile, the
+        // session is not notified as a removal made by another instance
+        removing.add(sessionId);
+        try {
+            Files.deleteIfExists(sessionsFolder.resolve(sessionId + JSON));
+        } catch (IOException e) {
+            log.warn("Exception removing session {}: {}", sessionId,
+                    e.getMessage());
+        } finally {
+            sessions.remove(sessionId);
+            touches.remove(sessionId);
+            removing.remove(sessionId);
+        }
+    }
+
+    @Override
+    public Map<String, SessionInfo> getSessions() {
+        return unmodifiableMap(sessions);
+    }
+
+    @Override
+    public void touch(String sessionId) {
+        long now = currentTimeMillis();
+        Long lastTouch = touches.get(sessionId);
+        if (lastTouch != null && now - lastTouch < touchMs) {
+            return;
+        }
+        touches.put(sessionId, now);
+        if (!sessionsFolder.resolve(sessionId + JSON).toFile()
+                .setLastModified(now)) {
+            log.debug("Session {} cannot be touched", sessionId);
+        }
+    }
+
+    @Override
+    public void publish(String event) {
+        String fileName = format("%013d-%s-%d%s", currentTimeMillis(),
+                instanceId, eventCount.incrementAndGet(), JSON);
+        try {
+            write(eventsFolder, fileName, event.getBytes(UTF_8));
+        } catch (IOException e) {
+            log.warn("Exception publishing event {}: {}", event,
+                    e.getMessage());
+        }
+    }
+
+    @Override
+    public void setListener(SessionRegistryListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Reads the changes made by other instances. It is called periodically
+     * once the registry is started.
+     */
+    public void poll() {
+        try {
+            pollSessions();
+            pollEvents();
+        } catch (Exception e) {
+            log.warn("Exception polling session registry: {}",
+                    e.getMessage());
+        }
+    }
+
+    private void pollSessions() throws IOException {
+        // Sessions cached before listing the files have been already
+        // written (or removed)
+        Map<String, SessionInfo> known = new HashMap<>(sessions);
+        Set<String> stored = new HashSet<>();
+        for (Path file : list(sessionsFolder)) {
+            String sessionId = stripJson(file);
+            stored.add(sessionId);
+            SessionInfo sessionInfo = known.get(sessionId);
+            if (sessionInfo == null) {
+                sessionInfo = read(file);
+                if (sessionInfo != null) {
+                    cache(sessionId, sessionInfo);
+                }
+            } else if (isOwned(sessionInfo)) {
+                // Activity in other instances
+                sessionInfo.touch(file.toFile().lastModified());
+            }
+        }
+
+        known.forEach((sessionId, sessionInfo) -> {
+            if (!stored.contains(sessionId) && !removing.contains(sessionId)
+                    && sessions.remove(sessionId, sessionInfo)) {
+                touches.remove(sessionId);
+                log.debug("Session {} removed by another instance",
+                        sessionId);
+                if (isOwned(sessionInfo) && listener != null) {
+                    listener.onSessionRemoved(sessionInfo);
+                }
+            }
+        });
+    }
+
+    private void pollEvents() throws IOException {
+        long now = currentTimeMillis();
+        Set<String> listed = new TreeSet<>();
+        for (Path file : list(eventsFolder)) {
+            listed.add(file.getFileName().toString());
+        }
+        seenEvents.retainAll(listed);
+
+        for (String fileName : listed) {
+            Path file = eventsFolder.resolve(fileName);
+            long time = eventTime(fileName);
+            if (now - time > eventRetentionMs) {
+                // Already read by every instance
+                Files.deleteIfExists(file);
+                continue;
+            }
+            if (!seenEvents.add(fileName) || time < startTime
+                    || isOwnEvent(fileName)) {
+                continue;
+            }
+            try {
+                String event = new String(Files.readAllBytes(file), UTF_8);
+                if (listener != null) {
+                    listener.onEvent(event);
+                }
+            } catch (IOException e) {
+                log.debug("Event {} not available: {}", fileName,
+                        e.getMessage());
+            }
+        }
+    }
+
+    private SessionInfo cache(String sessionId, SessionInfo sessionInfo) {
+        SessionInfo cached = sessions.putIfAbsent(sessionId, sessionInfo);
+        if (cached != null) {
+            return cached;
+        }
+        // Removed while it was being read: the file is deleted before
+        // evicting the session, so either it is missing now or the removal
+        // evicts this copy
+        if (!Files.exists(sessionsFolder.resolve(sessionId + JSON))) {
+            sessions.remove(sessionId, sessionInfo);
+            return null;
+        }
+        return sessionInfo;
+    }
+
+    private boolean isOwned(SessionInfo sessionInfo) {
+        return instanceId.equals(sessionInfo.getOwner());
+    }
+
+    private boolean isOwnEvent(String fileName) {
+        String withoutTime = fileName.substring(fileName.indexOf('-') + 1);
+        return withoutTime.substring(0, withoutTime.lastIndexOf('-'))
+                .equals(instanceId);
+    }
+
+    private long eventTime(String fileName) {
+        try {
+            return Long.parseLong(fileName.substring(0, fileName.indexOf('-')));
+        } catch (RuntimeException e) {
+            // Unknown file: it is removed after the retention period
+            return 0;
+        }
+    }
+
+    private SessionInfo read(Path file) {
+        try {
+            return objectMapper.readValue(file.toFile(), SessionInfo.class);
+        } catch (IOException e) {
+            // Removed (or not readable) in the meantime
+            log.trace("Session file {} not available: {}", file,
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    private void write(Path folder, String fileName, byte[] content)
+            throws IOException {
+        // Written to a temporary file first, so that readers never see
+        // partial content
+        Path tmpFile = folder.resolve(fileName + TMP);
+        Files.write(tmpFile, content);
+        Files.move(tmpFile, folder.resolve(fileName), ATOMIC_MOVE,
+                REPLACE_EXISTING);
+    }
+
+    private List<Path> list(Path folder) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder,
+                "*" + JSON)) {
+            stream.forEach(files::add);
+        }
+        return files;
+    }
+
+    private String stripJson(Path file) {
+        String fileName = file.getFileName().toString();
+        return fileName.substring(0, fileName.length() - JSON.length());
+    }
+
+}
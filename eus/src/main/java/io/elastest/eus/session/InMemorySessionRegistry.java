@@ -0,0 +1,72 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.session;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session registry local to this EUS instance (the default one).
+ *
+ * @since 0.9.1
+ */
+public class InMemorySessionRegistry implements SessionRegistry {
+
+    private Map<String, SessionInfo> sessions = new ConcurrentHashMap<>();
+
+    @Override
+    public void put(String sessionId, SessionInfo sessionInfo) {
+        sessions.put(sessionId, sessionInfo);
+    }
+
+    @Override
+    public Optional<SessionInfo> get(String sessionId) {
+        return Optional.ofNullable(sessions.get(sessionId));
+    }
+
+    @Override
+    public void remove(String sessionId) {
+        sessions.remove(sessionId);
+    }
+
+    @Override
+    public Map<String, SessionInfo> getSessions() {
+        return sessions;
+    }
+
+    @Override
+    public void touch(String sessionId) {
+        // All the sessions are owned by this instance
+    }
+
+    @Override
+    public void publish(String event) {
+        // There are no other instances
+    }
+
+    @Override
+    public void setListener(SessionRegistryListener listener) {
+        // There are no other instances
+    }
+
+    @Override
+    public void close() {
+        sessions.clear();
+    }
+
+}
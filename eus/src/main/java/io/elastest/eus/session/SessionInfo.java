@@ -16,13 +16,10 @@
  */
 package io.elastest.eus.session;
 
+import static java.lang.System.currentTimeMillis;
 import static java.lang.invoke.MethodHandles.lookup;
 import static org.slf4j.LoggerFactory.getLogger;
 
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Future;
-
 import org.slf4j.Logger;
 
 /**
@@ -42,8 +39,11 @@ public class SessionInfo {
     private String creationTime;
     private String browser;
     private String version;
+    private String imageId;
+    private String node;
+    private String owner;
     private boolean liveSession;
-    private List<Future<?>> timeoutFutures = new CopyOnWriteArrayList<>();
+    private volatile long lastActivity = currentTimeMillis();
     private int hubBindPort;
     private int hubVncBindPort;
     private int noVncBindPort;
@@ -115,6 +115,30 @@ public class SessionInfo {
         this.version = version;
     }
 
+    public String getImageId() {
+        return imageId;
+    }
+
+    public void setImageId(String imageId) {
+        this.imageId = imageId;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public void setNode(String node) {
+        this.node = node;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
     public boolean isLiveSession() {
         return liveSession;
     }
@@ -123,12 +147,21 @@ public class SessionInfo {
         this.liveSession = liveSession;
     }
 
-    public List<Future<?>> getTimeoutFutures() {
-        return timeoutFutures;
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public void touch() {
+        this.lastActivity = currentTimeMillis();
     }
 
-    public void addTimeoutFuture(Future<?> timeoutFuture) {
-        this.timeoutFutures.add(timeoutFuture);
+    /**
+     * Records an activity seen at the given time (e.g. in other instance).
+     */
+    public void touch(long time) {
+        if (time > lastActivity) {
+            this.lastActivity = time;
+        }
     }
 
     public int getHubBindPort() {
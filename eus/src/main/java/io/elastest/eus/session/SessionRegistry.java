@@ -0,0 +1,58 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.session;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Registry of WebDriver sessions. It can be local to this EUS instance, or
+ * shared among several instances (so that a session created by one of them
+ * can be served by any other), which also exchange session events.
+ *
+ * @since 0.9.1
+ */
+public interface SessionRegistry {
+
+    void put(String sessionId, SessionInfo sessionInfo);
+
+    Optional<SessionInfo> get(String sessionId);
+
+    void remove(String sessionId);
+
+    /**
+     * Sessions of every EUS instance sharing the registry (session id ->
+     * session information).
+     */
+    Map<String, SessionInfo> getSessions();
+
+    /**
+     * Records activity (a command) in a session owned by another instance,
+     * so that its owner does not expire it.
+     */
+    void touch(String sessionId);
+
+    /**
+     * Sends an event (JSON message) to the rest of EUS instances.
+     */
+    void publish(String event);
+
+    void setListener(SessionRegistryListener listener);
+
+    void close();
+
+}
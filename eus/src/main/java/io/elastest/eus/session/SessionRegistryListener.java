@@ -0,0 +1,37 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.session;
+
+/**
+ * Listener of the changes made in a shared session registry by other EUS
+ * instances.
+ *
+ * @since 0.9.1
+ */
+public interface SessionRegistryListener {
+
+    /**
+     * Event published by another EUS instance.
+     */
+    void onEvent(String event);
+
+    /**
+     * Session of this instance removed by another EUS instance.
+     */
+    void onSessionRemoved(SessionInfo sessionInfo);
+
+}
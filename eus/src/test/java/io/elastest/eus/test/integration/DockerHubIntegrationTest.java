@@ -58,6 +58,8 @@ public class DockerHubIntegrationTest {
     @Test
     @DisplayName("Get Selenoid browser images from Docker Hub")
     void testBrowserMap() throws IOException {
+        // The catalog is loaded in background, so it is refreshed to be sure
+        dockerHubService.refreshCatalog();
         Map<String, List<String>> browsers = dockerHubService.getBrowsers();
         log.debug("Browser map {}", browsers);
 
@@ -16,11 +16,15 @@
  */
 package io.elastest.eus.test.integration;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import org.junit.jupiter.api.DisplayName;
@@ -63,4 +67,44 @@ public class JqIntegrationTest {
         assertThat(result, not(containsString(version)));
     }
 
+    @Test
+    @DisplayName("Add field to every object")
+    void testAddField() throws IOException {
+        String json = "{\"sessionId\":\"1\",\"status\":0,"
+                + "\"value\":[{\"id\":\"2\",\"hubContainerName\":\"x\"},"
+                + "{\"element\":{\"id\":\"3\"}},\"text\"]}";
+        String result = jsonService.addField(json, "hubContainerName",
+                "hub");
+
+        assertThat(result, equalTo("{\"sessionId\":\"1\",\"status\":0,"
+                + "\"value\":[{\"id\":\"2\",\"hubContainerName\":\"hub\"},"
+                + "{\"element\":{\"id\":\"3\",\"hubContainerName\":\"hub\"},"
+                + "\"hubContainerName\":\"hub\"},\"text\"],"
+                + "\"hubContainerName\":\"hub\"}"));
+        assertThat(jsonService.addField("", "hubContainerName", "hub"),
+                equalTo(""));
+    }
+
+    @Test
+    @DisplayName("Add field while copying a JSON stream")
+    void testCopyAddingField() throws IOException {
+        String[] jsons = { " {\"sessionId\":\"1\",\"value\":\"abc\"}", "{}",
+                "{\"value\":[{\"id\":\"2\",\"hubContainerName\":{\"a\":[1]}},"
+                        + "{\"n\":1.5E10,\"b\":true,\"s\":\"\\u00e9\\n\"},"
+                        + "null,[{}]]}",
+                "[1, {\"x\": 2}]", "\"text\"" };
+        for (String json : jsons) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long size = jsonService.copyAddingField(
+                    new ByteArrayInputStream(json.getBytes(UTF_8)), out,
+                    "hubContainerName", "hub");
+
+            // Same output as the responses read in memory
+            String expected = jsonService.addField(json, "hubContainerName",
+                    "hub");
+            assertThat(out.toString(UTF_8.name()), equalTo(expected));
+            assertThat(size, equalTo((long) out.size()));
+        }
+    }
+
 }
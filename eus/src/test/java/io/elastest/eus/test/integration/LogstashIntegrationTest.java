@@ -17,19 +17,25 @@
 package io.elastest.eus.test.integration;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
 import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.findAll;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
 import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.Thread.sleep;
 import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
 import static org.slf4j.LoggerFactory.getLogger;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 
 import java.net.ServerSocket;
+import java.util.List;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
@@ -45,9 +51,13 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.matching.RequestPatternBuilder;
 
+import io.elastest.eus.json.WebDriverLog;
 import io.elastest.eus.service.LogstashService;
 
 /**
@@ -102,6 +112,28 @@ public class LogstashIntegrationTest {
                 equalTo("application/json; charset=UTF-8")));
     }
 
+    @Test
+    @DisplayName("Send enqueued console logs in a batch to mock logstash")
+    void testBatch() throws Exception {
+        List<WebDriverLog.Value> values = new ObjectMapper().readValue(
+                "[{\"level\":\"INFO\",\"message\":\"message 1\"},"
+                        + "{\"level\":\"INFO\",\"message\":\"message 2\"}]",
+                new TypeReference<List<WebDriverLog.Value>>() {
+                });
+        logstashService.enqueueBrowserConsole(values, "batchSessionId");
+
+        RequestPatternBuilder batchRequest = postRequestedFor(urlEqualTo("/"))
+                .withRequestBody(containing("batchSessionId"));
+        long deadline = currentTimeMillis() + SECONDS.toMillis(10);
+        while (findAll(batchRequest).isEmpty()
+                && currentTimeMillis() < deadline) {
+            sleep(100);
+        }
+        verify(1, batchRequest
+                .withRequestBody(containing("[INFO] message 1"))
+                .withRequestBody(containing("[INFO] message 2")));
+    }
+
     @AfterAll
     void teardown() {
         wireMockServer.stop();
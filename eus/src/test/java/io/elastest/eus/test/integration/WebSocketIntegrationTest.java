@@ -40,6 +40,8 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.web.server.LocalServerPort;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
 import io.elastest.eus.json.WebSocketNewSession;
 import io.elastest.eus.json.WebSocketRecordedSession;
 import io.elastest.eus.service.JsonService;
@@ -132,7 +134,81 @@ public class WebSocketIntegrationTest {
 
         latch.await(5, SECONDS);
 
+        assertTrue(receivedMessage[0].contains("\"snapshot\""));
         assertTrue(receivedMessage[0].contains(wsProtocolNewSession));
+        assertTrue(receivedMessage[0].contains("\"seq\""));
+        webSocketClient.closeSession();
+    }
+
+    @Test
+    @DisplayName("Tests resuming the session feed through WebSocket")
+    void testResumeSessions() throws Exception {
+        String wsUrl = "ws://localhost:" + serverPort + contextPath + wsPath;
+        final String[] snapshot = { "" };
+        final String[] receivedMessage = { "" };
+
+        CountDownLatch snapshotLatch = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(1);
+        WebSocketClient webSocketClient = new WebSocketClient(wsUrl);
+        webSocketClient.addMessageHandler(new MessageHandler() {
+            @Override
+            public void handleMessage(String message) {
+                log.debug("Received message: {}", message);
+                if (message.contains("\"snapshot\"")) {
+                    snapshot[0] = message;
+                    snapshotLatch.countDown();
+                } else if (message.contains("my-resumed-session-id")) {
+                    receivedMessage[0] = message;
+                    latch.countDown();
+                }
+            }
+        });
+
+        webSocketClient.sendMessage(wsProtocolGetSessions);
+        assertTrue(snapshotLatch.await(5, SECONDS));
+        JsonNode snapshotNode = jsonService.readTree(snapshot[0]);
+        String epoch = snapshotNode.get("epoch").asText();
+        long seq = snapshotNode.get("seq").asLong();
+
+        SessionInfo sessionInfo = new SessionInfo();
+        sessionInfo.setSessionId("my-resumed-session-id");
+        sessionInfo.setBrowser("firefox");
+        sessionInfo.setVersion("60");
+        sessionService.sendNewSessionToAllClients(sessionInfo);
+        assertTrue(latch.await(5, SECONDS));
+
+        // Events after the last seq are sent again
+        CountDownLatch resumeLatch = new CountDownLatch(1);
+        webSocketClient.addMessageHandler(new MessageHandler() {
+            @Override
+            public void handleMessage(String message) {
+                if (message.contains("my-resumed-session-id")) {
+                    receivedMessage[0] = message;
+                    resumeLatch.countDown();
+                }
+            }
+        });
+        webSocketClient.sendMessage(
+                wsProtocolGetSessions + ":" + epoch + ":" + seq);
+
+        assertTrue(resumeLatch.await(5, SECONDS));
+        assertTrue(receivedMessage[0].contains(wsProtocolNewSession));
+        assertTrue(receivedMessage[0].contains("\"seq\""));
+
+        // The seq of another epoch (e.g. of another instance) is not used
+        CountDownLatch otherEpochLatch = new CountDownLatch(1);
+        webSocketClient.addMessageHandler(new MessageHandler() {
+            @Override
+            public void handleMessage(String message) {
+                if (message.contains("\"snapshot\"")) {
+                    otherEpochLatch.countDown();
+                }
+            }
+        });
+        webSocketClient.sendMessage(
+                wsProtocolGetSessions + ":other-" + epoch + ":" + seq);
+
+        assertTrue(otherEpochLatch.await(5, SECONDS));
         webSocketClient.closeSession();
     }
 
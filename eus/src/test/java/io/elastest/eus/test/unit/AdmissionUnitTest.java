@@ -0,0 +1,168 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static io.elastest.eus.docker.DockerNode.LOCAL;
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.internal.util.reflection.FieldSetter;
+
+import com.github.dockerjava.api.model.Info;
+
+import io.elastest.eus.docker.DockerNode;
+import io.elastest.eus.service.AdmissionService;
+import io.elastest.eus.service.DockerService;
+import io.elastest.eus.session.AdmissionException;
+import io.elastest.eus.session.SessionInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Tests for the admission control of new sessions.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for admission control")
+public class AdmissionUnitTest {
+
+    AdmissionService admissionService;
+    DockerService dockerService;
+    DockerNode node;
+
+    @BeforeEach
+    void setup() throws Exception {
+        // Docker node with 4 GB of memory and 8 CPUs
+        node = new DockerNode(LOCAL, null, null, 0, null, null, null, null);
+        Info info = info(4096, 8);
+        dockerService = mock(DockerService.class);
+        when(dockerService.getNodes()).thenReturn(asList(node));
+        when(dockerService.getDockerInfo(LOCAL)).thenReturn(info);
+
+        admissionService = new AdmissionService(dockerService,
+                new SimpleMeterRegistry());
+
+        // Values injected with Spring properties
+        setField("admissionMaxBrowsers", 10);
+        setField("admissionMaxStarts", 2);
+        setField("admissionQueueTimeoutSec", 1);
+        setField("admissionBrowserMemoryMb", 1024L);
+        setField("admissionBrowserCpus", 0.5);
+        admissionService.init();
+    }
+
+    @Test
+    @DisplayName("Browsers are limited by the memory of the Docker host")
+    void testCapacity() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            startBrowser("browser-" + i);
+        }
+        assertThrows(AdmissionException.class,
+                admissionService::acquireBrowser);
+
+        // A released slot is available again (only once)
+        admissionService.release(sessionInfo("browser-0"));
+        admissionService.release(sessionInfo("browser-0"));
+        startBrowser("browser-4");
+        assertThrows(AdmissionException.class,
+                admissionService::acquireBrowser);
+    }
+
+    @Test
+    @DisplayName("Capacity of each node is refreshed after its health check")
+    @SuppressWarnings("unchecked")
+    void testNodeCapacity() throws Exception {
+        assertThat(node.getCapacity(), equalTo(4));
+        for (int i = 0; i < 4; i++) {
+            startBrowser("browser-" + i);
+        }
+
+        // The node has now 8 GB of memory (4 more browsers)
+        ArgumentCaptor<Consumer<DockerNode>> healthListener = ArgumentCaptor
+                .forClass(Consumer.class);
+        verify(dockerService).setHealthListener(healthListener.capture());
+        Info info = info(8192, 8);
+        when(dockerService.getDockerInfo(LOCAL)).thenReturn(info);
+        healthListener.getValue().accept(node);
+        assertThat(node.getCapacity(), equalTo(8));
+        for (int i = 4; i < 8; i++) {
+            startBrowser("browser-" + i);
+        }
+        assertThrows(AdmissionException.class,
+                admissionService::acquireBrowser);
+
+        // And then 2 GB: browsers running keep their slot
+        info = info(2048, 8);
+        when(dockerService.getDockerInfo(LOCAL)).thenReturn(info);
+        healthListener.getValue().accept(node);
+        assertThat(node.getCapacity(), equalTo(2));
+        for (int i = 0; i < 6; i++) {
+            admissionService.release(sessionInfo("browser-" + i));
+        }
+        assertThrows(AdmissionException.class,
+                admissionService::acquireBrowser);
+        admissionService.release(sessionInfo("browser-6"));
+        startBrowser("browser-8");
+    }
+
+    @Test
+    @DisplayName("Failed starts give back their slot")
+    void testCancel() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            admissionService.acquireBrowser();
+            admissionService.cancel();
+        }
+        SessionInfo sessionInfo = startBrowser("browser");
+        assertThat(sessionInfo.getHubContainerName(), equalTo("browser"));
+    }
+
+    private Info info(long memoryMb, int cpus) {
+        Info info = mock(Info.class);
+        when(info.getMemTotal()).thenReturn(memoryMb * 1024 * 1024);
+        when(info.getNCPU()).thenReturn(cpus);
+        return info;
+    }
+
+    private SessionInfo startBrowser(String containerName) throws Exception {
+        admissionService.acquireBrowser();
+        return admissionService.start(() -> sessionInfo(containerName));
+    }
+
+    private SessionInfo sessionInfo(String containerName) {
+        SessionInfo sessionInfo = new SessionInfo();
+        sessionInfo.setHubContainerName(containerName);
+        return sessionInfo;
+    }
+
+    private void setField(String name, Object value) throws Exception {
+        FieldSetter.setField(admissionService,
+                AdmissionService.class.getDeclaredField(name), value);
+    }
+
+}
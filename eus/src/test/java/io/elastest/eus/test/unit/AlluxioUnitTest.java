@@ -18,9 +18,13 @@ package io.elastest.eus.test.unit;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
 import static java.lang.invoke.MethodHandles.lookup;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.not;
@@ -30,9 +34,17 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.net.ServerSocket;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.io.IOUtils;
@@ -52,6 +64,9 @@ import com.github.tomakehurst.wiremock.client.WireMock;
 
 import io.elastest.eus.service.AlluxioService;
 import io.elastest.eus.test.util.MockitoExtension;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 /**
  * Tests for EDM Alluxio.
@@ -71,12 +86,18 @@ public class AlluxioUnitTest {
     AlluxioService alluxioService;
 
     WireMockServer wireMockServer;
+    MeterRegistry meterRegistry = new SimpleMeterRegistry();
 
     // Test data
     String filename = "foo";
     String nonExistentFilename = "non-existent-file";
     String streamId = "1";
     String contentFile = "dummy";
+    String retriedFilename = "retried";
+    String retriedStreamId = "2";
+    String unavailableFilename = "unavailable";
+    String playlistFilename = "playlist";
+    String playlistStreamId = "3";
 
     @BeforeAll
     void setup() throws Exception {
@@ -103,6 +124,10 @@ public class AlluxioUnitTest {
                 .getDeclaredField(metadataExtensionFieldName),
                 metadataExtension);
 
+        FieldSetter.setField(alluxioService,
+                AlluxioService.class.getDeclaredField("meterRegistry"),
+                meterRegistry);
+
         log.debug("Mock servicio for Alluxio in URL {}", mockAlluxioUrl);
 
         // Stubbing service
@@ -118,6 +143,44 @@ public class AlluxioUnitTest {
                 .willReturn(aResponse().withStatus(200)));
         stubFor(post(urlEqualTo("/api/v1/paths//" + filename + "/delete"))
                 .willReturn(aResponse().withStatus(200)));
+        stubFor(post(urlEqualTo(
+                "/api/v1/paths//" + retriedFilename + "/create-file"))
+                        .willReturn(aResponse().withStatus(200)
+                                .withBody(retriedStreamId)));
+        String retriedWrite = "/api/v1/streams/" + retriedStreamId + "/write";
+        stubFor(post(urlEqualTo(retriedWrite)).inScenario("retry")
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse().withStatus(500))
+                .willSetStateTo("failed"));
+        stubFor(post(urlEqualTo(retriedWrite)).inScenario("retry")
+                .whenScenarioStateIs("failed")
+                .willReturn(aResponse().withStatus(200)));
+        stubFor(post(
+                urlEqualTo("/api/v1/streams/" + retriedStreamId + "/close"))
+                        .willReturn(aResponse().withStatus(200)));
+        stubFor(post(
+                urlEqualTo("/api/v1/paths//" + retriedFilename + "/delete"))
+                        .willReturn(aResponse().withStatus(200)));
+        stubFor(post(urlEqualTo(
+                "/api/v1/paths//" + unavailableFilename + "/create-file"))
+                        .willReturn(aResponse().withStatus(500)));
+        String tmpPlaylist = "/api/v1/paths//" + playlistFilename + ".tmp";
+        stubFor(post(urlEqualTo(tmpPlaylist + "/create-file"))
+                .willReturn(aResponse().withStatus(200)
+                        .withBody(playlistStreamId)));
+        stubFor(post(urlEqualTo(tmpPlaylist + "/delete"))
+                .willReturn(aResponse().withStatus(200)));
+        stubFor(post(urlPathEqualTo(tmpPlaylist + "/rename"))
+                .willReturn(aResponse().withStatus(200)));
+        stubFor(post(
+                urlEqualTo("/api/v1/streams/" + playlistStreamId + "/write"))
+                        .willReturn(aResponse().withStatus(200)));
+        stubFor(post(
+                urlEqualTo("/api/v1/streams/" + playlistStreamId + "/close"))
+                        .willReturn(aResponse().withStatus(200)));
+        stubFor(post(
+                urlEqualTo("/api/v1/paths//" + playlistFilename + "/delete"))
+                        .willReturn(aResponse().withStatus(200)));
         String alluxioListJson = IOUtils.toString(
                 this.getClass().getResourceAsStream("/list-alluxio.json"),
                 Charset.defaultCharset());
@@ -134,6 +197,15 @@ public class AlluxioUnitTest {
         assertThat(response, equalTo(contentFile));
     }
 
+    @Test
+    @DisplayName("Copy file")
+    void testCopyFile() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long count = alluxioService.copyFile(filename, out);
+        assertThat(count, equalTo((long) contentFile.length()));
+        assertThat(out.toString(), equalTo(contentFile));
+    }
+
     @Test
     @DisplayName("Get Non-Existent File")
     void testGetNonExistentFile() throws IOException {
@@ -148,6 +220,102 @@ public class AlluxioUnitTest {
         alluxioService.writeFile(filename, contentFile.getBytes());
     }
 
+    @Test
+    @DisplayName("Write file in chunks")
+    void testWriteFileInChunks() throws Exception {
+        Field chunkSizeField = AlluxioService.class
+                .getDeclaredField("uploadChunkSize");
+        FieldSetter.setField(alluxioService, chunkSizeField, 2);
+        try {
+            Counter uploadedBytes = meterRegistry
+                    .counter("eus.alluxio.upload.bytes");
+            double uploadedBefore = uploadedBytes.count();
+            List<Long> progress = new ArrayList<>();
+            boolean writeFileResult = alluxioService.writeFile(filename,
+                    () -> new ByteArrayInputStream(contentFile.getBytes()),
+                    progress::add);
+            assertThat(writeFileResult, equalTo(true));
+            assertThat(progress, equalTo(Arrays.asList(2L, 4L, 5L)));
+            assertThat(uploadedBytes.count() - uploadedBefore,
+                    equalTo((double) contentFile.length()));
+        } finally {
+            FieldSetter.setField(alluxioService, chunkSizeField, 0);
+        }
+    }
+
+    @Test
+    @DisplayName("Restart failed upload")
+    void testRestartFailedUpload() throws Exception {
+        Field retriesField = AlluxioService.class
+                .getDeclaredField("uploadRetries");
+        FieldSetter.setField(alluxioService, retriesField, 1);
+        try {
+            boolean writeFileResult = alluxioService
+                    .writeFile(retriedFilename, contentFile.getBytes());
+            assertThat(writeFileResult, equalTo(true));
+            verify(2, postRequestedFor(urlEqualTo(
+                    "/api/v1/paths//" + retriedFilename + "/create-file")));
+            verify(1, postRequestedFor(urlEqualTo(
+                    "/api/v1/paths//" + retriedFilename + "/delete")));
+        } finally {
+            FieldSetter.setField(alluxioService, retriesField, 0);
+        }
+    }
+
+    @Test
+    @DisplayName("Replace file through a temporary one")
+    void testReplaceFile() throws IOException {
+        boolean replaced = alluxioService.replaceFile(playlistFilename,
+                contentFile.getBytes());
+        assertThat(replaced, equalTo(true));
+        verify(1, postRequestedFor(urlEqualTo(
+                "/api/v1/paths//" + playlistFilename + ".tmp/create-file")));
+        verify(1, postRequestedFor(
+                urlEqualTo("/api/v1/paths//" + playlistFilename + "/delete")));
+        verify(1, postRequestedFor(urlPathEqualTo(
+                "/api/v1/paths//" + playlistFilename + ".tmp/rename"))
+                        .withQueryParam("dst",
+                                WireMock.equalTo("/" + playlistFilename)));
+    }
+
+    @Test
+    @DisplayName("Spool files when Alluxio fails")
+    void testSpool() throws Exception {
+        Path spool = Files.createTempDirectory("spool");
+        Field spoolFolderField = AlluxioService.class
+                .getDeclaredField("spoolFolder");
+        FieldSetter.setField(alluxioService, spoolFolderField,
+                spool.toString());
+        try {
+            boolean written = alluxioService.writeFileOrSpool(
+                    unavailableFilename, contentFile.getBytes());
+            assertThat(written, equalTo(false));
+
+            // Local files are copied to the spool
+            Path localFile = Files.createTempFile("segment", ".m4s");
+            Files.write(localFile, contentFile.getBytes());
+            written = alluxioService.writeFileOrSpool(unavailableFilename,
+                    localFile);
+            Files.delete(localFile);
+            assertThat(written, equalTo(false));
+            assertThat(Files.readAllBytes(spool.resolve(unavailableFilename)),
+                    equalTo(contentFile.getBytes()));
+            Files.write(spool.resolve(filename), contentFile.getBytes());
+
+            // The file failing again does not prevent writing the other one
+            alluxioService.replaySpool();
+            assertThat(Files.exists(spool.resolve(unavailableFilename)),
+                    equalTo(true));
+            assertThat(Files.exists(spool.resolve(filename)), equalTo(false));
+        } finally {
+            FieldSetter.setField(alluxioService, spoolFolderField, null);
+            for (File file : spool.toFile().listFiles()) {
+                Files.delete(file.toPath());
+            }
+            Files.delete(spool);
+        }
+    }
+
     @Test
     @DisplayName("Delete file")
     void testDeleteFile() throws IOException {
@@ -0,0 +1,93 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.elastest.eus.json.ConsoleLogWriter;
+import io.elastest.eus.json.WebDriverLog;
+
+/**
+ * Tests for the JSON encoding of browser console logs.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for console log writer")
+public class ConsoleLogWriterUnitTest {
+
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    String message = "He said \"hi\" \\o/\n\tbye\u0001";
+
+    List<WebDriverLog.Value> readValues() throws IOException {
+        String json = "[{\"level\":\"SEVERE\",\"message\":"
+                + objectMapper.writeValueAsString(message)
+                + ",\"timestamp\":1530000000000,\"source\":\"javascript\"}]";
+        return objectMapper.readValue(json,
+                new TypeReference<List<WebDriverLog.Value>>() {
+                });
+    }
+
+    @Test
+    @DisplayName("Escape flattened console messages")
+    void testFlatMessages() throws IOException {
+        ConsoleLogWriter writer = new ConsoleLogWriter(new JsonFactory(),
+                false);
+        int length = writer.write("component", "exec", readValues());
+        JsonNode body = objectMapper
+                .readTree(new String(writer.getBuffer(), 0, length, UTF_8));
+
+        assertThat(body.get("component").asText(), equalTo("component"));
+        assertThat(body.get("stream").asText(), equalTo("console"));
+        assertThat(body.get("messages").get(0).asText(),
+                equalTo("[SEVERE] " + message));
+    }
+
+    @Test
+    @DisplayName("Keep the fields of structured console messages")
+    void testStructuredMessages() throws IOException {
+        ConsoleLogWriter writer = new ConsoleLogWriter(new JsonFactory(),
+                true);
+        int length = writer.write("component", "exec", readValues());
+        JsonNode messages = objectMapper
+                .readTree(new String(writer.getBuffer(), 0, length, UTF_8))
+                .get("messages");
+
+        assertThat(messages.get(0).get("level").asText(), equalTo("SEVERE"));
+        assertThat(messages.get(0).get("message").asText(), equalTo(message));
+        assertThat(messages.get(0).get("timestamp").asLong(),
+                equalTo(1530000000000L));
+        assertThat(messages.get(0).get("source").asText(),
+                equalTo("javascript"));
+    }
+
+}
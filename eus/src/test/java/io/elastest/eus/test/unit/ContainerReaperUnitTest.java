@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.internal.util.reflection.FieldSetter;
+
+import com.github.dockerjava.api.model.Container;
+
+import io.elastest.eus.service.AdmissionService;
+import io.elastest.eus.service.BrowserPoolService;
+import io.elastest.eus.service.ContainerReaperService;
+import io.elastest.eus.service.DockerService;
+import io.elastest.eus.service.SessionService;
+import io.elastest.eus.session.SessionInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Tests for the reaper of orphaned containers.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for container reaper")
+public class ContainerReaperUnitTest {
+
+    DockerService dockerService = mock(DockerService.class);
+    SessionService sessionService = mock(SessionService.class);
+    BrowserPoolService browserPoolService = mock(BrowserPoolService.class);
+    AdmissionService admissionService = mock(AdmissionService.class);
+    ContainerReaperService reaperService;
+
+    @BeforeEach
+    void setup() throws Exception {
+        reaperService = new ContainerReaperService(dockerService,
+                sessionService, browserPoolService, admissionService,
+                new SimpleMeterRegistry());
+
+        // Values injected with Spring properties
+        setField("reaperEnabled", false);
+        setField("reaperGraceSec", 300);
+        setField("reaperConcurrency", 2);
+        setField("reaperNamePrefix", "");
+        setField("eusContainerPrefix", "eus-");
+        setField("hubContainerSufix", "browser-");
+        reaperService.init();
+    }
+
+    @AfterEach
+    void teardown() {
+        reaperService.cleanUp();
+    }
+
+    @Test
+    @DisplayName("Only orphaned containers are reaped")
+    void testReap() {
+        SessionInfo sessionInfo = new SessionInfo();
+        sessionInfo.setHubContainerName("eus-browser-session");
+        Map<String, SessionInfo> sessionRegistry = new HashMap<>();
+        sessionRegistry.put("session", sessionInfo);
+        when(sessionService.getSessionRegistry()).thenReturn(sessionRegistry);
+        when(browserPoolService.getPooledContainers())
+                .thenReturn(singleton("eus-browser-pooled"));
+
+        long now = MILLISECONDS.toSeconds(currentTimeMillis());
+        when(dockerService.listEusContainers(any())).thenReturn(asList(
+                container("eus-browser-session", now - 3600),
+                container("eus-browser-pooled", now - 3600),
+                container("eus-browser-leaked", now - 3600),
+                container("eus-browser-new", now + 60)));
+
+        reaperService.reap();
+
+        verify(dockerService).stopAndRemoveContainer("eus-browser-leaked");
+        verify(dockerService).releaseContainerPorts(any(),
+                eq("eus-browser-leaked"));
+        verify(admissionService).release("eus-browser-leaked");
+        verify(dockerService, never())
+                .stopAndRemoveContainer("eus-browser-session");
+        verify(dockerService, never())
+                .stopAndRemoveContainer("eus-browser-pooled");
+        // Within the grace period
+        verify(dockerService, never())
+                .stopAndRemoveContainer("eus-browser-new");
+    }
+
+    @Test
+    @DisplayName("Containers other than browsers are not reaped")
+    void testNonBrowserContainer() {
+        when(sessionService.getSessionRegistry()).thenReturn(new HashMap<>());
+        long now = MILLISECONDS.toSeconds(currentTimeMillis());
+        when(dockerService.listEusContainers(any())).thenReturn(
+                asList(container("docker-compose-ui-1234", now - 3600)));
+
+        reaperService.reap();
+
+        verify(dockerService, never())
+                .stopAndRemoveContainer("docker-compose-ui-1234");
+        verify(admissionService, never()).release("docker-compose-ui-1234");
+    }
+
+    private Container container(String name, long created) {
+        Container container = mock(Container.class);
+        when(container.getNames()).thenReturn(new String[] { "/" + name });
+        when(container.getCreated()).thenReturn(created);
+        return container;
+    }
+
+    private void setField(String name, Object value) throws Exception {
+        FieldSetter.setField(reaperService,
+                ContainerReaperService.class.getDeclaredField(name), value);
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static java.util.Collections.singletonMap;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.command.EventsCmd;
+import com.github.dockerjava.api.model.Event;
+import com.github.dockerjava.api.model.EventActor;
+import com.github.dockerjava.core.command.EventsResultCallback;
+
+import io.elastest.eus.docker.DockerEventsWatcher;
+import io.elastest.eus.test.util.MockitoExtension;
+
+/**
+ * Tests for the cache of container states kept from Docker events.
+ *
+ * @since 0.9.1
+ */
+@ExtendWith(MockitoExtension.class)
+@Tag("unit")
+@DisplayName("Unit tests for Docker events watcher")
+public class DockerEventsWatcherUnitTest {
+
+    static final String CONTAINER_NAME = "eus-browser-1";
+
+    @Mock
+    DockerClient dockerClient;
+
+    @Mock
+    EventsCmd eventsCmd;
+
+    DockerEventsWatcher watcher;
+    EventsResultCallback callback;
+    List<String> destroyed = new ArrayList<>();
+
+    @BeforeEach
+    void setup() {
+        when(dockerClient.eventsCmd()).thenReturn(eventsCmd);
+        when(eventsCmd.withEventFilter(any())).thenReturn(eventsCmd);
+        doAnswer(invocation -> {
+            callback = invocation.getArgument(0);
+            return callback;
+        }).when(eventsCmd).exec(any());
+
+        watcher = new DockerEventsWatcher(dockerClient, 60000);
+        watcher.setDestroyListener(destroyed::add);
+        watcher.start();
+        callback.onStart(mock(Closeable.class));
+    }
+
+    @AfterEach
+    void teardown() {
+        watcher.close();
+    }
+
+    @Test
+    @DisplayName("Container states are updated by events")
+    void testStates() {
+        assertThat(watcher.isRunning(CONTAINER_NAME), nullValue());
+
+        callback.onNext(event("start"));
+        assertThat(watcher.isRunning(CONTAINER_NAME), equalTo(true));
+
+        callback.onNext(event("die"));
+        assertThat(watcher.isRunning(CONTAINER_NAME), equalTo(false));
+
+        callback.onNext(event("destroy"));
+        assertThat(watcher.isRunning(CONTAINER_NAME), nullValue());
+        assertThat(destroyed.contains(CONTAINER_NAME), equalTo(true));
+    }
+
+    @Test
+    @DisplayName("States read from the daemon do not overwrite events")
+    void testCacheState() {
+        callback.onNext(event("start"));
+        watcher.cacheState(CONTAINER_NAME, false);
+        assertThat(watcher.isRunning(CONTAINER_NAME), equalTo(true));
+
+        watcher.evictState(CONTAINER_NAME);
+        watcher.cacheState(CONTAINER_NAME, false);
+        assertThat(watcher.isRunning(CONTAINER_NAME), equalTo(false));
+    }
+
+    @Test
+    @DisplayName("States are unknown while disconnected")
+    void testDisconnection() {
+        callback.onNext(event("start"));
+        callback.onError(new RuntimeException("Connection reset"));
+        assertThat(watcher.isConnected(), equalTo(false));
+        assertThat(watcher.isRunning(CONTAINER_NAME), nullValue());
+
+        // Events received before the disconnection are not kept
+        callback.onStart(mock(Closeable.class));
+        assertThat(watcher.isRunning(CONTAINER_NAME), nullValue());
+    }
+
+    @Test
+    @DisplayName("Readiness futures are completed by events")
+    void testReadiness() throws Exception {
+        CompletableFuture<Boolean> ready = watcher.expect(CONTAINER_NAME);
+        callback.onNext(event("start"));
+        assertThat(ready.get(), equalTo(true));
+
+        watcher.forget(CONTAINER_NAME);
+        CompletableFuture<Boolean> died = watcher.expect(CONTAINER_NAME);
+        callback.onNext(event("die"));
+        assertThrows(ExecutionException.class, died::get);
+    }
+
+    private Event event(String action) {
+        EventActor actor = mock(EventActor.class);
+        when(actor.getAttributes())
+                .thenReturn(singletonMap("name", CONTAINER_NAME));
+        Event event = mock(Event.class);
+        when(event.getAction()).thenReturn(action);
+        when(event.getActor()).thenReturn(actor);
+        return event;
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.elastest.eus.session.FileSessionRegistry;
+import io.elastest.eus.session.SessionInfo;
+import io.elastest.eus.session.SessionRegistryListener;
+
+/**
+ * Tests for the session registry shared by several EUS instances.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for shared session registry")
+public class FileSessionRegistryUnitTest {
+
+    static final String SESSION_ID = "my-session-id";
+    static final String HUB_URL = "http://172.17.0.1:37000/wd/hub";
+
+    Path folder;
+    FileSessionRegistry registry1;
+    FileSessionRegistry registry2;
+    SessionRegistryListener listener1 = mock(SessionRegistryListener.class);
+    SessionRegistryListener listener2 = mock(SessionRegistryListener.class);
+
+    @BeforeEach
+    void setup() throws IOException {
+        folder = Files.createTempDirectory("eus-sessions");
+        registry1 = new FileSessionRegistry(folder, "eus-1", 1000, 0, 60000);
+        registry2 = new FileSessionRegistry(folder, "eus-2", 1000, 0, 60000);
+        registry1.setListener(listener1);
+        registry2.setListener(listener2);
+    }
+
+    @AfterEach
+    void teardown() throws IOException {
+        registry1.close();
+        registry2.close();
+        FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    private SessionInfo newSession() {
+        return newSession(SESSION_ID);
+    }
+
+    private SessionInfo newSession(String sessionId) {
+        SessionInfo sessionInfo = new SessionInfo();
+        sessionInfo.setSessionId(sessionId);
+        sessionInfo.setHubUrl(HUB_URL);
+        return sessionInfo;
+    }
+
+    @Test
+    @DisplayName("Sessions are routable from other instances")
+    void testSharedSession() {
+        registry1.put(SESSION_ID, newSession());
+
+        SessionInfo sessionInfo = registry2.get(SESSION_ID).get();
+        assertThat(sessionInfo.getHubUrl(), equalTo(HUB_URL));
+        assertThat(sessionInfo.getOwner(), equalTo("eus-1"));
+
+        registry2.poll();
+        assertThat(registry2.getSessions().size(), equalTo(1));
+        assertThat(registry2.get("other-session-id").isPresent(),
+                equalTo(false));
+    }
+
+    @Test
+    @DisplayName("Owner is notified of sessions removed by other instances")
+    void testRemoteRemoval() {
+        registry1.put(SESSION_ID, newSession());
+        registry2.get(SESSION_ID);
+        registry2.remove(SESSION_ID);
+
+        registry1.poll();
+        registry2.poll();
+        ArgumentCaptor<SessionInfo> removed = ArgumentCaptor
+                .forClass(SessionInfo.class);
+        verify(listener1).onSessionRemoved(removed.capture());
+        verify(listener2, never()).onSessionRemoved(any());
+        assertThat(removed.getValue().getSessionId(), equalTo(SESSION_ID));
+        assertThat(registry1.getSessions().isEmpty(), equalTo(true));
+    }
+
+    @Test
+    @DisplayName("Removed sessions are not read again by a concurrent poll")
+    void testRemovalWhilePolling() throws InterruptedException {
+        AtomicBoolean polling = new AtomicBoolean(true);
+        Thread poller = new Thread(() -> {
+            while (polling.get()) {
+                registry1.poll();
+            }
+        });
+        poller.start();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                String sessionId = SESSION_ID + "-" + i;
+                registry1.put(sessionId, newSession(sessionId));
+                registry1.remove(sessionId);
+            }
+        } finally {
+            polling.set(false);
+            poller.join();
+        }
+
+        registry1.poll();
+        assertThat(registry1.getSessions().isEmpty(), equalTo(true));
+        verify(listener1, never()).onSessionRemoved(any());
+    }
+
+    @Test
+    @DisplayName("Events are received by the other instances")
+    void testEvents() {
+        String event = "{\"removeSession\":{\"id\":\"" + SESSION_ID + "\"}}";
+        registry1.publish(event);
+
+        registry1.poll();
+        registry2.poll();
+        registry2.poll();
+        verify(listener2).onEvent(event);
+        verify(listener1, never()).onEvent(anyString());
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.http.HttpMethod.GET;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.internal.util.reflection.FieldSetter;
+import org.springframework.http.HttpEntity;
+
+import io.elastest.eus.EusException;
+import io.elastest.eus.service.HubClientService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Tests for the pooled HTTP clients of browser hubs.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for hub clients")
+public class HubClientUnitTest {
+
+    static final String HUB_URL = "http://localhost:37000/wd/hub";
+
+    HubClientService hubClientService;
+
+    @BeforeEach
+    void setup() throws Exception {
+        hubClientService = new HubClientService(new SimpleMeterRegistry());
+
+        // Values injected with Spring properties
+        setField("hubClientMaxPerRoute", 2);
+        setField("hubClientIdleTimeoutSec", 0);
+        setField("createSessionTimeoutSec", 1);
+        hubClientService.init();
+    }
+
+    @AfterEach
+    void teardown() {
+        hubClientService.cleanUp();
+    }
+
+    @Test
+    @DisplayName("Released hubs are not used until a new session")
+    void testReleasedHub() {
+        hubClientService.getRestTemplate(HUB_URL, true);
+        assertThat(hubClientService.findRestTemplate(HUB_URL).isPresent(),
+                equalTo(true));
+
+        // Commands of the deleted session fail without creating a new pool
+        hubClientService.releaseHubClient(HUB_URL);
+        assertThrows(EusException.class, () -> hubClientService
+                .exchange(HUB_URL, HUB_URL + "/status", GET,
+                        HttpEntity.EMPTY, false));
+        assertThat(hubClientService.findRestTemplate(HUB_URL).isPresent(),
+                equalTo(false));
+
+        // A new browser on the same hub URL
+        hubClientService.getRestTemplate(HUB_URL, true);
+        assertThat(hubClientService.findRestTemplate(HUB_URL).isPresent(),
+                equalTo(true));
+    }
+
+    private void setField(String name, Object value) throws Exception {
+        FieldSetter.setField(hubClientService,
+                HubClientService.class.getDeclaredField(name), value);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import io.elastest.eus.docker.DockerImagePuller;
+import io.elastest.eus.docker.DockerNode;
+import io.elastest.eus.docker.NodePlacement;
+
+/**
+ * Tests for the placement of containers among Docker nodes.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for placement of containers in Docker nodes")
+public class NodePlacementUnitTest {
+
+    static final String IMAGE = "elastestbrowsers/chrome:latest";
+
+    private DockerNode node(String id, int containers, int maxContainers,
+            boolean hasImage) {
+        DockerImagePuller imagePuller = mock(DockerImagePuller.class);
+        when(imagePuller.isLocal(IMAGE)).thenReturn(hasImage);
+        DockerNode node = new DockerNode(id, "tcp://" + id + ":2376", id,
+                maxContainers, null, null, imagePuller, null);
+        node.getContainers().set(containers);
+        return node;
+    }
+
+    private String select(NodePlacement placement, List<DockerNode> nodes) {
+        Optional<DockerNode> node = placement.select(nodes, IMAGE);
+        return node.isPresent() ? node.get().getId() : null;
+    }
+
+    @Test
+    @DisplayName("Least loaded and bin packing placements")
+    void testLoad() {
+        List<DockerNode> nodes = asList(node("n1", 2, 4, false),
+                node("n2", 3, 4, false), node("n3", 4, 4, false));
+
+        assertThat(select(NodePlacement.LEAST_LOADED, nodes), equalTo("n1"));
+        // Full nodes are skipped
+        assertThat(select(NodePlacement.BIN_PACKING, nodes), equalTo("n2"));
+    }
+
+    @Test
+    @DisplayName("Nodes with the image are preferred by image affinity")
+    void testImageAffinity() {
+        List<DockerNode> nodes = asList(node("n1", 0, 4, false),
+                node("n2", 3, 4, true), node("n3", 4, 4, true));
+        assertThat(select(NodePlacement.IMAGE_AFFINITY, nodes),
+                equalTo("n2"));
+
+        List<DockerNode> withoutImage = asList(node("n1", 1, 4, false),
+                node("n2", 0, 4, false));
+        assertThat(select(NodePlacement.IMAGE_AFFINITY, withoutImage),
+                equalTo("n2"));
+    }
+
+    @Test
+    @DisplayName("No node is selected when all are full")
+    void testFull() {
+        List<DockerNode> nodes = asList(node("n1", 4, 4, false));
+        assertThat(select(NodePlacement.LEAST_LOADED, nodes), equalTo(null));
+        assertThat(NodePlacement.fromString("image-affinity"),
+                equalTo(NodePlacement.IMAGE_AFFINITY));
+    }
+
+    @Test
+    @DisplayName("Concurrent placements do not exceed the node capacity")
+    void testReserve() throws Exception {
+        DockerNode node = node("n1", 0, 4, false);
+        ExecutorService executor = newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> reserved = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                reserved.add(executor.submit(node::tryReserve));
+            }
+            int slots = 0;
+            for (Future<Boolean> future : reserved) {
+                slots += future.get() ? 1 : 0;
+            }
+            assertThat(slots, equalTo(4));
+            assertThat(node.getContainers().get(), equalTo(4));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Released slots can be reserved again
+        node.getContainers().decrementAndGet();
+        assertThat(node.tryReserve(), equalTo(true));
+        assertThat(node.tryReserve(), equalTo(false));
+    }
+
+}
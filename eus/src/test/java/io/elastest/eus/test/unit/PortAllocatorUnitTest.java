@@ -0,0 +1,97 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import io.elastest.eus.docker.DockerException;
+import io.elastest.eus.docker.PortAllocator;
+
+/**
+ * Tests for the allocator of host ports.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for port allocator")
+public class PortAllocatorUnitTest {
+
+    @Test
+    @DisplayName("Concurrent allocations do not collide")
+    void testConcurrentAllocation() {
+        PortAllocator portAllocator = PortAllocator.fromRange("40000-40999");
+        Set<Integer> ports = ConcurrentHashMap.newKeySet();
+        IntStream.range(0, 1000).parallel()
+                .forEach(i -> ports.add(portAllocator.allocate()));
+
+        assertThat(ports.size(), equalTo(1000));
+        assertThat(portAllocator.getLeased(), equalTo(1000));
+    }
+
+    @Test
+    @DisplayName("Released ports are leased again")
+    void testRelease() {
+        PortAllocator portAllocator = new PortAllocator(40000, 40001);
+        int port1 = portAllocator.allocate();
+        int port2 = portAllocator.allocate();
+        assertThrows(DockerException.class, portAllocator::allocate);
+
+        portAllocator.release(port1);
+        portAllocator.release(50000);
+        assertThat(portAllocator.allocate(), equalTo(port1));
+        assertThat(portAllocator.getLeased(), equalTo(2));
+        assertThat(port2, equalTo(40001));
+    }
+
+    @Test
+    @DisplayName("Only the ports still leased for a container are released")
+    void testReleaseAll() {
+        PortAllocator portAllocator = new PortAllocator(40000, 40002);
+        int port1 = portAllocator.allocate("container-1");
+        int port2 = portAllocator.allocate("container-1");
+
+        // Released (e.g. by the session) and leased again for another one
+        portAllocator.release(port2);
+        portAllocator.allocate("container-2");
+        int port3 = portAllocator.allocate("container-2");
+        assertThat(port3, equalTo(port2));
+
+        assertThat(portAllocator.releaseAll("container-1"), equalTo(1));
+        assertThat(portAllocator.getLeased(), equalTo(2));
+        assertThat(portAllocator.allocate(), equalTo(port1));
+    }
+
+    @Test
+    @DisplayName("Invalid port ranges are rejected")
+    void testInvalidRange() {
+        assertThrows(IllegalArgumentException.class,
+                () -> PortAllocator.fromRange("40000"));
+        assertThrows(IllegalArgumentException.class,
+                () -> new PortAllocator(40001, 40000));
+    }
+
+}
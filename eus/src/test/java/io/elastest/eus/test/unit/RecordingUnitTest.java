@@ -0,0 +1,389 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpHeaders.CONTENT_RANGE;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.PARTIAL_CONTENT;
+import static org.springframework.http.HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
+import static org.springframework.test.util.ReflectionTestUtils.invokeMethod;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import io.elastest.eus.json.WebSocketRecordings;
+import io.elastest.eus.json.WebSocketRecordingsQuery;
+import io.elastest.eus.json.WebSocketSessionInfoEntry;
+import io.elastest.eus.service.AlluxioService;
+import io.elastest.eus.service.DockerService;
+import io.elastest.eus.service.JsonService;
+import io.elastest.eus.service.RecordingService;
+import io.elastest.eus.test.util.MockitoExtension;
+
+/**
+ * Tests for recording service (queries and streaming of recordings).
+ *
+ * @since 0.9.1
+ */
+@ExtendWith(MockitoExtension.class)
+@Tag("unit")
+@DisplayName("Unit tests for RecordingService")
+public class RecordingUnitTest {
+
+    static final String DATE_FORMAT = "dd-MM-yyyy hh:mm:ss z";
+    static final String RECORDING_ID = "browser4_session1";
+    static final String RECORDING_FILE = RECORDING_ID + ".mp4";
+    static final String RECORDING_CONTENT = "0123456789";
+
+    @InjectMocks
+    RecordingService recordingService;
+
+    @Mock
+    DockerService dockerService;
+
+    @Spy
+    JsonService jsonService = new JsonService();
+
+    @Mock
+    AlluxioService alluxioService;
+
+    Path folder;
+
+    @BeforeEach
+    void setup() throws IOException {
+        folder = Files.createTempDirectory("eus-recordings");
+        setField(recordingService, "registryFolder", folder + "/");
+        setField(recordingService, "registryRecordingExtension", ".mp4");
+        setField(recordingService, "registryMetadataExtension", ".eus");
+        setField(recordingService, "edmAlluxioUrl", "");
+        setField(recordingService, "wsDateFormat", DATE_FORMAT);
+        setField(recordingService, "wsRecordingsPageSize", 50);
+        setField(recordingService, "recordingDownloadPoolSize", 2);
+        setField(recordingService, "recordingIndexTtlSec", 60);
+        invokeMethod(recordingService, "postConstruct");
+
+        storeRecording("browser1_session1", "chrome",
+                "01-01-2018 10:00:00 UTC");
+        storeRecording("browser1_session2", "chrome",
+                "02-01-2018 10:00:00 UTC");
+        storeRecording("browser2_session1", "firefox",
+                "03-01-2018 10:00:00 UTC");
+        storeRecording("browser2_session2", "firefox",
+                "04-01-2018 10:00:00 UTC");
+        storeRecording("browser3_session1", "Chrome",
+                "05-01-2018 10:00:00 UTC");
+    }
+
+    @AfterEach
+    void teardown() throws IOException {
+        recordingService.cleanUp();
+        FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    @Test
+    @DisplayName("Recordings are paged newest first")
+    void testPaging() throws IOException {
+        WebSocketRecordings recordings = recordingService
+                .findRecordings(query("{\"size\":2}"));
+        assertThat(ids(recordings), equalTo(
+                asList("browser3_session1", "browser2_session2")));
+        assertThat(recordings.getTotal(), equalTo(5L));
+
+        recordings = recordingService
+                .findRecordings(query("{\"page\":1,\"size\":2}"));
+        assertThat(ids(recordings), equalTo(
+                asList("browser2_session1", "browser1_session2")));
+
+        recordings = recordingService
+                .findRecordings(query("{\"page\":2,\"size\":2}"));
+        assertThat(ids(recordings), equalTo(asList("browser1_session1")));
+        assertThat(recordings.getPage(), equalTo(2));
+        assertThat(recordings.getSize(), equalTo(2));
+
+        recordings = recordingService.findRecordings(query("{}"));
+        assertThat(recordings.getRecordedSessions().size(), equalTo(5));
+        assertThat(recordings.getSize(), equalTo(50));
+    }
+
+    @Test
+    @DisplayName("Recordings are filtered by browser, browser id and date")
+    void testFilters() throws Exception {
+        WebSocketRecordings recordings = recordingService
+                .findRecordings(query("{\"browser\":\"chrome\"}"));
+        assertThat(ids(recordings), equalTo(asList("browser3_session1",
+                "browser1_session2", "browser1_session1")));
+        assertThat(recordings.getTotal(), equalTo(3L));
+
+        recordings = recordingService
+                .findRecordings(query("{\"browserId\":\"browser2\"}"));
+        assertThat(ids(recordings), equalTo(
+                asList("browser2_session2", "browser2_session1")));
+
+        long from = time("02-01-2018 10:00:00 UTC");
+        long to = time("04-01-2018 10:00:00 UTC");
+        recordings = recordingService.findRecordings(
+                query("{\"from\":" + from + ",\"to\":" + to + "}"));
+        assertThat(ids(recordings), equalTo(asList("browser2_session2",
+                "browser2_session1", "browser1_session2")));
+
+        recordings = recordingService.findRecordings(query(
+                "{\"browser\":\"firefox\",\"from\":" + to + ",\"size\":1}"));
+        assertThat(ids(recordings), equalTo(asList("browser2_session2")));
+        assertThat(recordings.getTotal(), equalTo(1L));
+    }
+
+    @Test
+    @DisplayName("Deleted recordings are removed from the index")
+    void testDelete() throws IOException {
+        assertThat(recordingService.findRecordings(query("{}")).getTotal(),
+                equalTo(5L));
+
+        recordingService.deleteRecording("browser1_session1");
+
+        WebSocketRecordings recordings = recordingService
+                .findRecordings(query("{}"));
+        assertThat(recordings.getTotal(), equalTo(4L));
+        assertThat(ids(recordings).contains("browser1_session1"),
+                equalTo(false));
+    }
+
+    @Test
+    @DisplayName("The index is reloaded when it expires")
+    void testIndexReload() throws Exception {
+        assertThat(recordingService.findRecordings(query("{}")).getTotal(),
+                equalTo(5L));
+
+        // Changes of another instance sharing the registry
+        storeRecording("browser4_session1", "firefox",
+                "06-01-2018 10:00:00 UTC");
+        Files.delete(folder.resolve("browser1_session1.eus"));
+        assertThat(recordingService.findRecordings(query("{}")).getTotal(),
+                equalTo(5L));
+
+        setField(recordingService, "recordingIndexTtlSec", 0);
+        Thread.sleep(10);
+        WebSocketRecordings recordings = recordingService
+                .findRecordings(query("{}"));
+        assertThat(recordings.getTotal(), equalTo(5L));
+        assertThat(ids(recordings).get(0), equalTo("browser4_session1"));
+        assertThat(ids(recordings).contains("browser1_session1"),
+                equalTo(false));
+    }
+
+    @Test
+    @DisplayName("Range requests get partial content")
+    void testRange() throws IOException {
+        FileUtils.writeStringToFile(folder.resolve(RECORDING_FILE).toFile(),
+                RECORDING_CONTENT, "UTF-8");
+
+        ResponseEntity<StreamingResponseBody> response = recordingService
+                .streamRecording(RECORDING_ID, "bytes=2-5");
+        assertThat(response.getStatusCode(), equalTo(PARTIAL_CONTENT));
+        assertThat(response.getHeaders().getFirst(CONTENT_RANGE),
+                equalTo("bytes 2-5/10"));
+        assertThat(response.getHeaders().getContentLength(), equalTo(4L));
+        assertThat(body(response), equalTo("2345"));
+
+        response = recordingService.streamRecording(RECORDING_ID, null);
+        assertThat(response.getStatusCode(), equalTo(OK));
+        assertThat(body(response), equalTo(RECORDING_CONTENT));
+    }
+
+    @Test
+    @DisplayName("Ranges out of the recording are not satisfiable")
+    void testRangeNotSatisfiable() throws IOException {
+        FileUtils.writeStringToFile(folder.resolve(RECORDING_FILE).toFile(),
+                RECORDING_CONTENT, "UTF-8");
+
+        ResponseEntity<StreamingResponseBody> response = recordingService
+                .streamRecording(RECORDING_ID, "bytes=10-");
+        assertThat(response.getStatusCode(),
+                equalTo(REQUESTED_RANGE_NOT_SATISFIABLE));
+        assertThat(response.getHeaders().getFirst(CONTENT_RANGE),
+                equalTo("bytes */10"));
+    }
+
+    @Test
+    @DisplayName("Concurrent requests share the download from Alluxio")
+    void testSharedDownload() throws Exception {
+        setField(recordingService, "edmAlluxioUrl", "http://alluxio/");
+        CountDownLatch downloadAllowed = new CountDownLatch(1);
+        when(alluxioService.getFileLength(RECORDING_FILE))
+                .thenReturn((long) RECORDING_CONTENT.length());
+        doAnswer(invocation -> {
+            downloadAllowed.await();
+            OutputStream out = invocation.getArgument(1);
+            byte[] content = RECORDING_CONTENT.getBytes("UTF-8");
+            out.write(content, 0, 5);
+            out.write(content, 5, content.length - 5);
+            return (long) content.length;
+        }).when(alluxioService).copyFile(eq(RECORDING_FILE), any());
+
+        ResponseEntity<StreamingResponseBody> whole = recordingService
+                .streamRecording(RECORDING_ID, null);
+        ResponseEntity<StreamingResponseBody> partial = recordingService
+                .streamRecording(RECORDING_ID, "bytes=6-");
+        assertThat(whole.getStatusCode(), equalTo(OK));
+        assertThat(partial.getStatusCode(), equalTo(PARTIAL_CONTENT));
+        assertThat(partial.getHeaders().getFirst(CONTENT_RANGE),
+                equalTo("bytes 6-9/10"));
+
+        downloadAllowed.countDown();
+        assertThat(body(whole), equalTo(RECORDING_CONTENT));
+        assertThat(body(partial), equalTo("6789"));
+        verify(alluxioService, times(1)).copyFile(eq(RECORDING_FILE), any());
+        assertThat(FileUtils.readFileToString(
+                folder.resolve(RECORDING_FILE).toFile(), "UTF-8"),
+                equalTo(RECORDING_CONTENT));
+    }
+
+    @Test
+    @DisplayName("Recordings not found in Alluxio are not downloaded")
+    void testNotInAlluxio() throws IOException {
+        setField(recordingService, "edmAlluxioUrl", "http://alluxio/");
+        when(alluxioService.getFileLength(RECORDING_FILE)).thenReturn(-1L);
+
+        ResponseEntity<StreamingResponseBody> response = recordingService
+                .streamRecording(RECORDING_ID, null);
+        assertThat(response.getStatusCode(), equalTo(NOT_FOUND));
+        assertThat(folder.resolve(RECORDING_FILE + ".part").toFile().exists(),
+                equalTo(false));
+        verify(alluxioService, never()).copyFile(anyString(), any());
+    }
+
+    @Test
+    @DisplayName("Files of a HLS playlist")
+    void testPlaylistFiles() {
+        List<String> playlist = asList("#EXTM3U", "#EXT-X-VERSION:7",
+                "#EXT-X-MAP:URI=\"init.mp4\"", "", "#EXTINF:10.0,",
+                "segment0.m4s", "#EXTINF:10.0,", "  segment1.m4s  ",
+                "#EXT-X-ENDLIST");
+        assertThat(RecordingService.getPlaylistFiles(playlist),
+                equalTo(asList("init.mp4", "segment0.m4s", "segment1.m4s")));
+    }
+
+    @Test
+    @DisplayName("Only the first segments of a recording are awaited")
+    void testSegmentedRecording() throws Exception {
+        setField(recordingService, "edmAlluxioUrl", "http://alluxio/");
+        setField(recordingService, "recordingSegmented", true);
+        setField(recordingService, "registryPlaylistExtension", ".m3u8");
+        setField(recordingService, "contextPath", "/eus/v1");
+        setField(recordingService, "registryContextPath", "/recordings");
+        String playlist = "#EXTM3U\n#EXT-X-MAP:URI=\"init.mp4\"\n"
+                + "#EXTINF:10.0,\nsegment0.m4s\n"
+                + "#EXTINF:10.0,\nsegment1.m4s\n";
+        CountDownLatch downloadAllowed = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            String fileName = invocation.getArgument(0);
+            OutputStream out = invocation.getArgument(1);
+            if (fileName.equals("segment1.m4s")) {
+                downloadAllowed.await();
+            }
+            byte[] content = (fileName.endsWith(".m3u8") ? playlist
+                    : fileName).getBytes("UTF-8");
+            out.write(content);
+            return (long) content.length;
+        }).when(alluxioService).copyFile(anyString(), any());
+
+        ResponseEntity<String> response = recordingService
+                .getRecording(RECORDING_ID);
+        assertThat(response.getBody(),
+                equalTo("/eus/v1/recordings/" + RECORDING_ID + ".m3u8"));
+        assertThat(folder.resolve("init.mp4").toFile().exists(),
+                equalTo(true));
+        assertThat(folder.resolve("segment0.m4s").toFile().exists(),
+                equalTo(true));
+        assertThat(folder.resolve("segment1.m4s").toFile().exists(),
+                equalTo(false));
+
+        // The rest of segments are downloaded in background
+        downloadAllowed.countDown();
+        File lastSegment = folder.resolve("segment1.m4s").toFile();
+        for (int i = 0; i < 50 && !lastSegment.exists(); i++) {
+            Thread.sleep(100);
+        }
+        assertThat(lastSegment.exists(), equalTo(true));
+    }
+
+    private void storeRecording(String id, String browser,
+            String creationTime) throws IOException {
+        String metadata = "{\"recordedSession\":{\"id\":\"" + id
+                + "\",\"browser\":\"" + browser + "\",\"creationTime\":\""
+                + creationTime + "\"}}";
+        FileUtils.writeStringToFile(folder.resolve(id + ".eus").toFile(),
+                metadata, "UTF-8");
+        new File(folder.toFile(), id + ".mp4").createNewFile();
+    }
+
+    private String body(ResponseEntity<StreamingResponseBody> response)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getBody().writeTo(out);
+        return out.toString("UTF-8");
+    }
+
+    private WebSocketRecordingsQuery query(String json) throws IOException {
+        return jsonService.jsonToObject(json, WebSocketRecordingsQuery.class);
+    }
+
+    private List<String> ids(WebSocketRecordings recordings) {
+        return recordings.getRecordedSessions().stream()
+                .map(WebSocketSessionInfoEntry::getId).collect(toList());
+    }
+
+    private long time(String creationTime) throws ParseException {
+        return new SimpleDateFormat(DATE_FORMAT).parse(creationTime)
+                .getTime();
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.elastest.eus.json.SessionCapabilities;
+
+/**
+ * Tests for the capabilities of new session requests.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for session capabilities")
+public class SessionCapabilitiesUnitTest {
+
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    @DisplayName("Parse JSON Wire capabilities")
+    void testJsonWireCapabilities() throws IOException {
+        SessionCapabilities capabilities = SessionCapabilities
+                .fromJson(objectMapper.readTree("{\"desiredCapabilities\":{"
+                        + "\"browserName\":\"chrome\",\"version\":\"66\","
+                        + "\"platform\":\"ANY\",\"live\":true,"
+                        + "\"browserId\":\"id\"}}"));
+
+        assertThat(capabilities.getBrowserName(), equalTo("chrome"));
+        assertThat(capabilities.getVersion(), equalTo("66"));
+        assertThat(capabilities.getPlatform(), equalTo("ANY"));
+        assertThat(capabilities.isLive(), equalTo(true));
+        assertThat(capabilities.getBrowserId(), equalTo("id"));
+        assertThat(capabilities.isManualRecording(), equalTo(false));
+    }
+
+    @Test
+    @DisplayName("Parse W3C capabilities")
+    void testW3cCapabilities() throws IOException {
+        SessionCapabilities capabilities = SessionCapabilities
+                .fromJson(objectMapper.readTree("{\"capabilities\":{"
+                        + "\"alwaysMatch\":{\"browserName\":\"firefox\"},"
+                        + "\"firstMatch\":[{\"browserVersion\":\"60.0\"}]}}"));
+
+        assertThat(capabilities.getBrowserName(), equalTo("firefox"));
+        assertThat(capabilities.getVersion(), equalTo("60.0"));
+        assertThat(capabilities.getPlatform(), nullValue());
+        assertThat(capabilities.isLive(), equalTo(false));
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.internal.util.reflection.FieldSetter;
+
+import io.elastest.eus.service.TeardownService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Tests for the asynchronous teardown of sessions.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for Teardown Service")
+public class TeardownUnitTest {
+
+    TeardownService teardownService;
+
+    @BeforeEach
+    void setup() throws Exception {
+        teardownService = new TeardownService(new SimpleMeterRegistry());
+
+        // Values injected with Spring properties
+        setField("teardownPoolSize", 2);
+        setField("teardownQueueSize", 10);
+        setField("teardownRetries", 2);
+        setField("teardownRetryDelayMs", 1L);
+        setField("teardownShutdownTimeoutSec", 10L);
+        teardownService.init();
+    }
+
+    @AfterEach
+    void teardown() {
+        teardownService.cleanUp();
+    }
+
+    @Test
+    @DisplayName("Stages are retried and run in order")
+    void testStagesRetried() {
+        List<String> executed = new CopyOnWriteArrayList<>();
+        AtomicInteger attempts = new AtomicInteger();
+
+        teardownService.teardown("session").then("flaky", () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IOException("Transient error");
+            }
+            executed.add("flaky");
+        }).then("last", () -> executed.add("last")).submit();
+        teardownService.cleanUp();
+
+        assertThat(attempts.get(), equalTo(3));
+        assertThat(executed.toString(), equalTo("[flaky, last]"));
+    }
+
+    @Test
+    @DisplayName("A failing stage does not prevent the next ones")
+    void testFailingStage() {
+        List<String> executed = new CopyOnWriteArrayList<>();
+        AtomicInteger attempts = new AtomicInteger();
+
+        teardownService.teardown("session").then("broken", () -> {
+            attempts.incrementAndGet();
+            throw new IOException("Permanent error");
+        }).then("last", () -> executed.add("last")).submit();
+        teardownService.cleanUp();
+
+        assertThat(attempts.get(), equalTo(3));
+        assertThat(executed.toString(), equalTo("[last]"));
+    }
+
+    @Test
+    @DisplayName("Pending teardowns are drained on shutdown")
+    void testDrain() {
+        AtomicInteger tornDown = new AtomicInteger();
+        int sessions = 12;
+        for (int i = 0; i < sessions; i++) {
+            teardownService.teardown("session-" + i).then("remove", () -> {
+                Thread.sleep(10);
+                tornDown.incrementAndGet();
+            }).submit();
+        }
+        teardownService.cleanUp();
+
+        assertThat(tornDown.get(), equalTo(sessions));
+    }
+
+    @Test
+    @DisplayName("Teardowns submitted after shutdown run in the caller")
+    void testTeardownAfterShutdown() {
+        List<String> executed = new CopyOnWriteArrayList<>();
+        teardownService.cleanUp();
+
+        teardownService.teardown("session").then("remove",
+                () -> executed.add(Thread.currentThread().getName()))
+                .submit();
+
+        assertThat(executed.toString(),
+                equalTo("[" + Thread.currentThread().getName() + "]"));
+    }
+
+    private void setField(String name, Object value) throws Exception {
+        FieldSetter.setField(teardownService,
+                TeardownService.class.getDeclaredField(name), value);
+    }
+
+}
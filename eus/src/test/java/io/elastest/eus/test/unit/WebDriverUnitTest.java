@@ -17,16 +17,41 @@
 package io.elastest.eus.test.unit;
 
 import static org.junit.jupiter.api.Assertions.assertThrows;
-
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpMethod.POST;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
 
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.springframework.http.HttpEntity;
+import org.springframework.web.client.RestClientException;
 
+import io.elastest.eus.EusException;
+import io.elastest.eus.service.AdmissionService;
+import io.elastest.eus.service.BrowserPoolService;
+import io.elastest.eus.service.BrowserService;
+import io.elastest.eus.service.DockerHubService;
+import io.elastest.eus.service.DockerService;
+import io.elastest.eus.service.HubClientService;
+import io.elastest.eus.service.JsonService;
+import io.elastest.eus.service.RecordingService;
+import io.elastest.eus.service.SessionService;
+import io.elastest.eus.service.TeardownService;
+import io.elastest.eus.service.TimeoutService;
 import io.elastest.eus.service.WebDriverService;
+import io.elastest.eus.session.SessionInfo;
 import io.elastest.eus.test.util.MockitoExtension;
+import io.micrometer.core.instrument.MeterRegistry;
 
 /**
  * Tests for shell service.
@@ -42,6 +67,42 @@ public class WebDriverUnitTest {
     @InjectMocks
     WebDriverService webDriverService;
 
+    @Mock
+    DockerHubService dockerHubService;
+
+    @Mock
+    DockerService dockerService;
+
+    @Spy
+    JsonService jsonService = new JsonService();
+
+    @Mock
+    SessionService sessionService;
+
+    @Mock
+    RecordingService recordingService;
+
+    @Mock
+    TimeoutService timeoutService;
+
+    @Mock
+    HubClientService hubClientService;
+
+    @Mock
+    BrowserService browserService;
+
+    @Mock
+    BrowserPoolService browserPoolService;
+
+    @Mock(answer = RETURNS_DEEP_STUBS)
+    TeardownService teardownService;
+
+    @Mock
+    AdmissionService admissionService;
+
+    @Mock
+    MeterRegistry meterRegistry;
+
     @Test
     @DisplayName("Try to get WebRtc Monitoring Local Storage String")
     void testGetWebRtcMonitoringLocalStorageStr() {
@@ -51,4 +112,31 @@ public class WebDriverUnitTest {
         });
 
     }
-}
\ No newline at end of file
+
+    @Test
+    @DisplayName("The browser is released if the session cannot be created")
+    void testFailedSessionCreation() throws Exception {
+        setField(webDriverService, "contextPath", "/eus/v1");
+        setField(webDriverService, "webdriverSessionMessage", "/session");
+        setField(webDriverService, "webdriverNavigationGetMessage", "/url");
+        setField(webDriverService, "wsDateFormat", "dd-MM-yyyy hh:mm:ss z");
+
+        SessionInfo sessionInfo = new SessionInfo();
+        sessionInfo.setHubUrl("http://localhost:37000/wd/hub");
+        sessionInfo.setHubContainerName("eus-hub");
+        when(admissionService.start(any())).thenReturn(sessionInfo);
+        when(hubClientService.exchange(anyString(), anyString(), any(), any(),
+                anyBoolean()))
+                        .thenThrow(new RestClientException("Not reachable"));
+
+        HttpEntity<String> request = new HttpEntity<>(
+                "{\"desiredCapabilities\":{\"browserName\":\"chrome\"}}");
+        assertThrows(EusException.class,
+                () -> webDriverService.session(request,
+                        "http://localhost:8040/eus/v1/session", POST));
+
+        verify(admissionService).release(sessionInfo);
+        verify(teardownService).teardown(any());
+    }
+
+}